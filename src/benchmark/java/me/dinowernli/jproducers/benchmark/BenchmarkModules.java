@@ -0,0 +1,798 @@
+package me.dinowernli.jproducers.benchmark;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.BindingAnnotation;
+import me.dinowernli.jproducers.Annotations.ProducerModule;
+import me.dinowernli.jproducers.Annotations.Produces;
+import me.dinowernli.jproducers.Annotations.ProducesIntoSet;
+import me.dinowernli.jproducers.Present;
+import me.dinowernli.jproducers.PresentDouble;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * The producer modules exercised by the benchmarks, each shaped like a typical kind of graph. Every
+ * module passes around its own {@code Value} type and produces a {@code @Result Value}, so that
+ * any combination of modules can be added to the same context. The annotation processor generates a
+ * factory for each module, so that contexts can also be built without reflection.
+ */
+class BenchmarkModules {
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Result {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step0 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step1 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step2 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step3 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step4 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step5 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step6 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step7 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step8 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step9 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step10 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step11 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step12 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step13 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step14 {}
+
+  @BindingAnnotation
+  @Retention(RetentionPolicy.RUNTIME)
+  @interface Step15 {}
+
+  /** A chain of 16 producers, each depending on the previous one. */
+  @ProducerModule
+  static class ChainModule {
+    /** The values passed between the producers of this module. */
+    static class Value {
+      final int value;
+
+      Value(int value) {
+        this.value = value;
+      }
+    }
+
+    @Produces
+    @Step0
+    static Value produce0() {
+      return new Value(0);
+    }
+
+    @Produces
+    @Step1
+    static Value produce1(@Step0 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step2
+    static Value produce2(@Step1 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step3
+    static Value produce3(@Step2 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step4
+    static Value produce4(@Step3 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step5
+    static Value produce5(@Step4 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step6
+    static Value produce6(@Step5 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step7
+    static Value produce7(@Step6 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step8
+    static Value produce8(@Step7 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step9
+    static Value produce9(@Step8 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step10
+    static Value produce10(@Step9 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step11
+    static Value produce11(@Step10 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step12
+    static Value produce12(@Step11 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step13
+    static Value produce13(@Step12 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step14
+    static Value produce14(@Step13 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step15
+    static Value produce15(@Step14 Present<Value> previous) throws ExecutionException {
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Result
+    static Value produceResult(@Step15 Present<Value> last) throws ExecutionException {
+      return last.get();
+    }
+  }
+
+  /** 16 independent producers fanning out from a common seed and back into a single consumer. */
+  @ProducerModule
+  static class FanModule {
+    /** The values passed between the producers of this module. */
+    static class Value {
+      final int value;
+
+      Value(int value) {
+        this.value = value;
+      }
+    }
+
+    @Produces
+    static Value produceSeed() {
+      return new Value(1);
+    }
+
+    @Produces
+    @Step0
+    static Value produce0(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 0);
+    }
+
+    @Produces
+    @Step1
+    static Value produce1(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 1);
+    }
+
+    @Produces
+    @Step2
+    static Value produce2(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 2);
+    }
+
+    @Produces
+    @Step3
+    static Value produce3(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 3);
+    }
+
+    @Produces
+    @Step4
+    static Value produce4(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 4);
+    }
+
+    @Produces
+    @Step5
+    static Value produce5(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 5);
+    }
+
+    @Produces
+    @Step6
+    static Value produce6(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 6);
+    }
+
+    @Produces
+    @Step7
+    static Value produce7(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 7);
+    }
+
+    @Produces
+    @Step8
+    static Value produce8(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 8);
+    }
+
+    @Produces
+    @Step9
+    static Value produce9(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 9);
+    }
+
+    @Produces
+    @Step10
+    static Value produce10(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 10);
+    }
+
+    @Produces
+    @Step11
+    static Value produce11(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 11);
+    }
+
+    @Produces
+    @Step12
+    static Value produce12(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 12);
+    }
+
+    @Produces
+    @Step13
+    static Value produce13(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 13);
+    }
+
+    @Produces
+    @Step14
+    static Value produce14(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 14);
+    }
+
+    @Produces
+    @Step15
+    static Value produce15(Present<Value> seed) throws ExecutionException {
+      return new Value(seed.get().value + 15);
+    }
+
+    @Produces
+    @Result
+    static Value produceResult(
+        @Step0 Present<Value> value0,
+        @Step1 Present<Value> value1,
+        @Step2 Present<Value> value2,
+        @Step3 Present<Value> value3,
+        @Step4 Present<Value> value4,
+        @Step5 Present<Value> value5,
+        @Step6 Present<Value> value6,
+        @Step7 Present<Value> value7,
+        @Step8 Present<Value> value8,
+        @Step9 Present<Value> value9,
+        @Step10 Present<Value> value10,
+        @Step11 Present<Value> value11,
+        @Step12 Present<Value> value12,
+        @Step13 Present<Value> value13,
+        @Step14 Present<Value> value14,
+        @Step15 Present<Value> value15) throws ExecutionException {
+      int sum = 0;
+      sum += value0.get().value;
+      sum += value1.get().value;
+      sum += value2.get().value;
+      sum += value3.get().value;
+      sum += value4.get().value;
+      sum += value5.get().value;
+      sum += value6.get().value;
+      sum += value7.get().value;
+      sum += value8.get().value;
+      sum += value9.get().value;
+      sum += value10.get().value;
+      sum += value11.get().value;
+      sum += value12.get().value;
+      sum += value13.get().value;
+      sum += value14.get().value;
+      sum += value15.get().value;
+      return new Value(sum);
+    }
+  }
+
+  /** Two producers sharing a dependency, joined by a single consumer. */
+  @ProducerModule
+  static class DiamondModule {
+    /** The values passed between the producers of this module. */
+    static class Value {
+      final int value;
+
+      Value(int value) {
+        this.value = value;
+      }
+    }
+
+    @Produces
+    static Value produceTop() {
+      return new Value(1);
+    }
+
+    @Produces
+    @Step0
+    static Value produceLeft(Present<Value> top) throws ExecutionException {
+      return new Value(top.get().value + 1);
+    }
+
+    @Produces
+    @Step1
+    static Value produceRight(Present<Value> top) throws ExecutionException {
+      return new Value(top.get().value + 2);
+    }
+
+    @Produces
+    @Result
+    static Value produceBottom(@Step0 Present<Value> left, @Step1 Present<Value> right)
+        throws ExecutionException {
+      return new Value(left.get().value + right.get().value);
+    }
+  }
+
+  /** 32 producers contributing to a single set. */
+  @ProducerModule
+  static class SetModule {
+    /** The values passed between the producers of this module. */
+    static class Value {
+      final int value;
+
+      Value(int value) {
+        this.value = value;
+      }
+    }
+
+    @ProducesIntoSet
+    static Value produceElement0() {
+      return new Value(0);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement1() {
+      return new Value(1);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement2() {
+      return new Value(2);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement3() {
+      return new Value(3);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement4() {
+      return new Value(4);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement5() {
+      return new Value(5);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement6() {
+      return new Value(6);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement7() {
+      return new Value(7);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement8() {
+      return new Value(8);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement9() {
+      return new Value(9);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement10() {
+      return new Value(10);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement11() {
+      return new Value(11);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement12() {
+      return new Value(12);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement13() {
+      return new Value(13);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement14() {
+      return new Value(14);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement15() {
+      return new Value(15);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement16() {
+      return new Value(16);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement17() {
+      return new Value(17);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement18() {
+      return new Value(18);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement19() {
+      return new Value(19);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement20() {
+      return new Value(20);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement21() {
+      return new Value(21);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement22() {
+      return new Value(22);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement23() {
+      return new Value(23);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement24() {
+      return new Value(24);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement25() {
+      return new Value(25);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement26() {
+      return new Value(26);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement27() {
+      return new Value(27);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement28() {
+      return new Value(28);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement29() {
+      return new Value(29);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement30() {
+      return new Value(30);
+    }
+
+    @ProducesIntoSet
+    static Value produceElement31() {
+      return new Value(31);
+    }
+
+    @Produces
+    @Result
+    static Value produceResult(Present<ImmutableSet<Value>> elements) throws ExecutionException {
+      return new Value(elements.get().size());
+    }
+  }
+
+  /** A chain of producers returning futures which complete on another thread. */
+  @ProducerModule
+  static class AsyncModule {
+    /** The values passed between the producers of this module. */
+    static class Value {
+      final int value;
+
+      Value(int value) {
+        this.value = value;
+      }
+    }
+
+    /** Completes the futures returned by the producers, like the callbacks of an rpc client. */
+    private static final Executor executor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("benchmark-async-%d").build());
+
+    @Produces
+    @Step0
+    static ListenableFuture<Value> produce0() {
+      return Futures.immediateFuture(new Value(0));
+    }
+
+    @Produces
+    @Step1
+    static ListenableFuture<Value> produce1(@Step0 Present<Value> previous)
+        throws ExecutionException {
+      Value value = new Value(previous.get().value + 1);
+      return Futures.submitAsync(() -> Futures.immediateFuture(value), executor);
+    }
+
+    @Produces
+    @Step2
+    static ListenableFuture<Value> produce2(@Step1 Present<Value> previous)
+        throws ExecutionException {
+      Value value = new Value(previous.get().value + 1);
+      return Futures.submitAsync(() -> Futures.immediateFuture(value), executor);
+    }
+
+    @Produces
+    @Step3
+    static ListenableFuture<Value> produce3(@Step2 Present<Value> previous)
+        throws ExecutionException {
+      Value value = new Value(previous.get().value + 1);
+      return Futures.submitAsync(() -> Futures.immediateFuture(value), executor);
+    }
+
+    @Produces
+    @Result
+    static ListenableFuture<Value> produceResult(@Step3 Present<Value> last)
+        throws ExecutionException {
+      return Futures.submitAsync(() -> Futures.immediateFuture(last.get()), executor);
+    }
+  }
+
+  /**
+   * A slow chain of producers next to many fast producers which become ready before the chain
+   * starts. Used to compare the order in which contended executors start ready producers.
+   */
+  @ProducerModule
+  static class MixedModule {
+    /** The values passed between the producers of this module. */
+    static class Value {
+      final int value;
+
+      Value(int value) {
+        this.value = value;
+      }
+    }
+
+    /** The amount of work done by each producer of the slow chain, in JMH tokens. */
+    private static final long SLOW_TOKENS = 20_000;
+
+    /** The amount of work done by each of the fast producers, in JMH tokens. */
+    private static final long FAST_TOKENS = 5_000;
+
+    @Produces
+    @Step0
+    static Value produceSlow0() {
+      Blackhole.consumeCPU(SLOW_TOKENS);
+      return new Value(0);
+    }
+
+    @Produces
+    @Step1
+    static Value produceSlow1(@Step0 Present<Value> previous) throws ExecutionException {
+      Blackhole.consumeCPU(SLOW_TOKENS);
+      return new Value(previous.get().value + 1);
+    }
+
+    @Produces
+    @Step2
+    static Value produceSlow2(@Step1 Present<Value> previous) throws ExecutionException {
+      Blackhole.consumeCPU(SLOW_TOKENS);
+      return new Value(previous.get().value + 1);
+    }
+
+    @ProducesIntoSet
+    static Value produceFast0() {
+      Blackhole.consumeCPU(FAST_TOKENS);
+      return new Value(0);
+    }
+
+    @ProducesIntoSet
+    static Value produceFast1() {
+      Blackhole.consumeCPU(FAST_TOKENS);
+      return new Value(1);
+    }
+
+    @ProducesIntoSet
+    static Value produceFast2() {
+      Blackhole.consumeCPU(FAST_TOKENS);
+      return new Value(2);
+    }
+
+    @ProducesIntoSet
+    static Value produceFast3() {
+      Blackhole.consumeCPU(FAST_TOKENS);
+      return new Value(3);
+    }
+
+    @ProducesIntoSet
+    static Value produceFast4() {
+      Blackhole.consumeCPU(FAST_TOKENS);
+      return new Value(4);
+    }
+
+    @ProducesIntoSet
+    static Value produceFast5() {
+      Blackhole.consumeCPU(FAST_TOKENS);
+      return new Value(5);
+    }
+
+    @ProducesIntoSet
+    static Value produceFast6() {
+      Blackhole.consumeCPU(FAST_TOKENS);
+      return new Value(6);
+    }
+
+    @ProducesIntoSet
+    static Value produceFast7() {
+      Blackhole.consumeCPU(FAST_TOKENS);
+      return new Value(7);
+    }
+
+    @Produces
+    @Result
+    static Value produceResult(@Step2 Present<Value> slow, Present<ImmutableSet<Value>> fast)
+        throws ExecutionException {
+      return new Value(slow.get().value + fast.get().size());
+    }
+  }
+
+  /** A chain of producers passing doubles, which are not boxed along the way. */
+  @ProducerModule
+  static class NumericModule {
+    /** The output of this module. */
+    static class Value {
+      final double value;
+
+      Value(double value) {
+        this.value = value;
+      }
+    }
+
+    @Produces
+    @Step0
+    static double produce0() {
+      return 1.0;
+    }
+
+    @Produces
+    @Step1
+    static double produce1(@Step0 PresentDouble previous) throws ExecutionException {
+      return previous.getAsDouble() * 1.5;
+    }
+
+    @Produces
+    @Step2
+    static double produce2(@Step1 PresentDouble previous) throws ExecutionException {
+      return previous.getAsDouble() * 1.5;
+    }
+
+    @Produces
+    @Step3
+    static double produce3(@Step2 PresentDouble previous) throws ExecutionException {
+      return previous.getAsDouble() * 1.5;
+    }
+
+    @Produces
+    @Step4
+    static double produce4(@Step3 PresentDouble previous) throws ExecutionException {
+      return previous.getAsDouble() * 1.5;
+    }
+
+    @Produces
+    @Step5
+    static double produce5(@Step4 PresentDouble previous) throws ExecutionException {
+      return previous.getAsDouble() * 1.5;
+    }
+
+    @Produces
+    @Step6
+    static double produce6(@Step5 PresentDouble previous) throws ExecutionException {
+      return previous.getAsDouble() * 1.5;
+    }
+
+    @Produces
+    @Step7
+    static double produce7(@Step6 PresentDouble previous) throws ExecutionException {
+      return previous.getAsDouble() * 1.5;
+    }
+
+    @Produces
+    @Result
+    static Value produceResult(@Step7 PresentDouble last) throws ExecutionException {
+      return new Value(last.getAsDouble());
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package me.dinowernli.jproducers.benchmark;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import me.dinowernli.jproducers.Graph;
+import me.dinowernli.jproducers.ProducerContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of setting up contexts and graphs, without running any producers. Contexts
+ * contain the modules of all shapes plus a number of small generated modules, see
+ * {@link ScaledModules}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextBenchmark {
+  @Param
+  public Shape shape;
+
+  /** The number of generated modules in the context, in addition to the modules of all shapes. */
+  @Param({"0", "50", "250"})
+  public int extraModules;
+
+  @Param
+  public ModuleSource moduleSource;
+
+  private ProducerContext context;
+
+  @Setup
+  public void setUp() {
+    context = newContext();
+  }
+
+  /** Discovers the producers of all the modules and resolves their bindings. */
+  @Benchmark
+  public ProducerContext buildContext() {
+    return newContext();
+  }
+
+  /** Instantiates a graph from the plan cached by the context. */
+  @Benchmark
+  public Graph<?> newGraph() {
+    return context.newGraph(shape.result());
+  }
+
+  /** Instantiates the first graph of a fresh context, which includes computing its plan. */
+  @Benchmark
+  public Graph<?> newGraphWithPlanning() {
+    return newContext().newGraph(shape.result());
+  }
+
+  private ProducerContext newContext() {
+    ProducerContext.Builder builder = ProducerContext.builder()
+        .executor(MoreExecutors.directExecutor());
+    switch (moduleSource) {
+      case REFLECTION:
+        builder.addClasses(Shape.allModules())
+            .addClasses(ScaledModules.MODULES.subList(0, extraModules).toArray(new Class<?>[0]));
+        break;
+      case FACTORIES:
+        builder.addFactories(Arrays.asList(Shape.allFactories()))
+            .addFactories(ScaledModules.FACTORIES.subList(0, extraModules));
+        break;
+    }
+    return builder.build();
+  }
+
+  /** How the context finds the producers of its modules. */
+  public enum ModuleSource {
+    /** Discovers the producer methods reflectively, as {@code ProducerContext.forClasses} does. */
+    REFLECTION,
+
+    /** Uses the factories generated by the annotation processor, as {@code forFactories} does. */
+    FACTORIES,
+  }
+}
@@ -0,0 +1,62 @@
+package me.dinowernli.jproducers.benchmark;
+
+import me.dinowernli.jproducers.ProducerContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures running complete graphs of each shape, from instantiating the graph to retrieving its
+ * result. Run with "-prof gc" to also report the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecutionBenchmark {
+  @Param
+  public Shape shape;
+
+  @Param
+  public ExecutorType executorType;
+
+  private ExecutorService executor;
+  private ProducerContext context;
+
+  @Setup
+  public void setUp() throws Exception {
+    executor = executorType.create();
+    context = ProducerContext.builder()
+        .addClasses(shape.module())
+        .executor(executor)
+        .build();
+
+    // Computes the plan up front, so that it is not attributed to the first iteration.
+    run();
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  public Object run() throws ExecutionException, InterruptedException {
+    return context.newGraph(shape.result()).run().get();
+  }
+}
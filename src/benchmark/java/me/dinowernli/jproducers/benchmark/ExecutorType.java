@@ -0,0 +1,30 @@
+package me.dinowernli.jproducers.benchmark;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** The executors the benchmarks run producers on. */
+enum ExecutorType {
+  /** Runs producers on the calling thread, measuring the overhead of the library alone. */
+  DIRECT {
+    @Override
+    ExecutorService create() {
+      return MoreExecutors.newDirectExecutorService();
+    }
+  },
+
+  /** Runs producers on a fixed pool of threads, including the cost of handing off work. */
+  POOL {
+    @Override
+    ExecutorService create() {
+      return Executors.newFixedThreadPool(
+          Runtime.getRuntime().availableProcessors(),
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("benchmark-%d").build());
+    }
+  };
+
+  abstract ExecutorService create();
+}
@@ -0,0 +1,72 @@
+package me.dinowernli.jproducers.benchmark;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Key;
+import me.dinowernli.jproducers.ProducerContext;
+import me.dinowernli.jproducers.benchmark.BenchmarkModules.MixedModule;
+import me.dinowernli.jproducers.benchmark.BenchmarkModules.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares starting ready producers in order of readiness with starting them in order of their
+ * remaining critical path. Graphs of {@link MixedModule} run on a pool of two threads, so that the
+ * start of the slow chain has to queue for a thread behind the fast producers unless prioritized.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulingBenchmark {
+  private static final Key<MixedModule.Value> RESULT =
+      Key.get(MixedModule.Value.class, Result.class);
+
+  @Param({"false", "true"})
+  public boolean prioritized;
+
+  private ExecutorService executor;
+  private ProducerContext context;
+
+  @Setup
+  public void setUp() throws Exception {
+    executor = Executors.newFixedThreadPool(
+        2, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("benchmark-%d").build());
+    ProducerContext.Builder builder = ProducerContext.builder()
+        .addClasses(MixedModule.class)
+        .executor(executor);
+    if (prioritized) {
+      builder.prioritizeCriticalPath();
+    }
+    context = builder.build();
+
+    // Computes the plan up front, and gives the latency estimates a first sample.
+    run();
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  public Object run() throws ExecutionException, InterruptedException {
+    return context.newGraph(RESULT).run().get();
+  }
+}
@@ -0,0 +1,81 @@
+package me.dinowernli.jproducers.benchmark;
+
+import com.google.inject.Key;
+import me.dinowernli.jproducers.ProducerFactory;
+import me.dinowernli.jproducers.benchmark.BenchmarkModules.AsyncModule;
+import me.dinowernli.jproducers.benchmark.BenchmarkModules.ChainModule;
+import me.dinowernli.jproducers.benchmark.BenchmarkModules.DiamondModule;
+import me.dinowernli.jproducers.benchmark.BenchmarkModules.FanModule;
+import me.dinowernli.jproducers.benchmark.BenchmarkModules.NumericModule;
+import me.dinowernli.jproducers.benchmark.BenchmarkModules.Result;
+import me.dinowernli.jproducers.benchmark.BenchmarkModules.SetModule;
+
+/** The shapes of graph the benchmarks run, see {@link BenchmarkModules}. */
+enum Shape {
+  CHAIN(
+      ChainModule.class,
+      new BenchmarkModules_ChainModule_ProducerFactory(),
+      Key.get(ChainModule.Value.class, Result.class)),
+  FAN(
+      FanModule.class,
+      new BenchmarkModules_FanModule_ProducerFactory(),
+      Key.get(FanModule.Value.class, Result.class)),
+  DIAMOND(
+      DiamondModule.class,
+      new BenchmarkModules_DiamondModule_ProducerFactory(),
+      Key.get(DiamondModule.Value.class, Result.class)),
+  SET(
+      SetModule.class,
+      new BenchmarkModules_SetModule_ProducerFactory(),
+      Key.get(SetModule.Value.class, Result.class)),
+  ASYNC(
+      AsyncModule.class,
+      new BenchmarkModules_AsyncModule_ProducerFactory(),
+      Key.get(AsyncModule.Value.class, Result.class)),
+  NUMERIC(
+      NumericModule.class,
+      new BenchmarkModules_NumericModule_ProducerFactory(),
+      Key.get(NumericModule.Value.class, Result.class));
+
+  private final Class<?> module;
+  private final ProducerFactory factory;
+  private final Key<?> result;
+
+  Shape(Class<?> module, ProducerFactory factory, Key<?> result) {
+    this.module = module;
+    this.factory = factory;
+    this.result = result;
+  }
+
+  Class<?> module() {
+    return module;
+  }
+
+  /** Returns the factory generated for the module by the annotation processor. */
+  ProducerFactory factory() {
+    return factory;
+  }
+
+  /** Returns the key of the root of the graph. */
+  Key<?> result() {
+    return result;
+  }
+
+  /** Returns the modules of all shapes, e.g., to build a context with many modules. */
+  static Class<?>[] allModules() {
+    Class<?>[] result = new Class<?>[values().length];
+    for (Shape shape : values()) {
+      result[shape.ordinal()] = shape.module();
+    }
+    return result;
+  }
+
+  /** Returns the generated factories for the modules of all shapes, see {@link #allModules()}. */
+  static ProducerFactory[] allFactories() {
+    ProducerFactory[] result = new ProducerFactory[values().length];
+    for (Shape shape : values()) {
+      result[shape.ordinal()] = shape.factory();
+    }
+    return result;
+  }
+}
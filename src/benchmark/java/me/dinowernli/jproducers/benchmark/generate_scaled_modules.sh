@@ -0,0 +1,84 @@
+#!/bin/bash
+# Prints the source of ScaledModules, with as many modules as given by the only argument.
+set -eu
+count=$1
+
+cat <<EOF
+package me.dinowernli.jproducers.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import me.dinowernli.jproducers.Annotations.ProducerModule;
+import me.dinowernli.jproducers.Annotations.Produces;
+import me.dinowernli.jproducers.Present;
+import me.dinowernli.jproducers.ProducerFactory;
+import me.dinowernli.jproducers.benchmark.BenchmarkModules.Result;
+import me.dinowernli.jproducers.benchmark.BenchmarkModules.Step0;
+import me.dinowernli.jproducers.benchmark.BenchmarkModules.Step1;
+import me.dinowernli.jproducers.benchmark.BenchmarkModules.Step2;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Generated by generate_scaled_modules.sh: $count small modules of four producers each, which only
+ * exist to build contexts from many modules. Every module passes around its own {@code Value}.
+ */
+final class ScaledModules {
+  /** The modules, to discover their producers reflectively. */
+  static final ImmutableList<Class<?>> MODULES = ImmutableList.of(
+EOF
+for ((i = 0; i < count; ++i)); do
+  separator=$([ $i -lt $((count - 1)) ] && echo "," || echo ");")
+  echo "      Module$i.class$separator"
+done
+
+cat <<EOF
+
+  /** The factories generated for the modules by the annotation processor. */
+  static final ImmutableList<ProducerFactory> FACTORIES = ImmutableList.of(
+EOF
+for ((i = 0; i < count; ++i)); do
+  separator=$([ $i -lt $((count - 1)) ] && echo "," || echo ");")
+  echo "      new ScaledModules_Module${i}_ProducerFactory()$separator"
+done
+
+for ((i = 0; i < count; ++i)); do
+  cat <<EOF
+
+  @ProducerModule
+  static class Module$i {
+    static class Value {
+      final int value;
+
+      Value(int value) {
+        this.value = value;
+      }
+    }
+
+    @Produces
+    @Step0
+    static Value produceFirst() {
+      return new Value($i);
+    }
+
+    @Produces
+    @Step1
+    static Value produceSecond(@Step0 Present<Value> first) throws ExecutionException {
+      return new Value(first.get().value + 1);
+    }
+
+    @Produces
+    @Step2
+    static Value produceThird(@Step0 Present<Value> first, @Step1 Present<Value> second)
+        throws ExecutionException {
+      return new Value(first.get().value + second.get().value);
+    }
+
+    @Produces
+    @Result
+    static Value produceResult(@Step2 Present<Value> third) throws ExecutionException {
+      return third.get();
+    }
+  }
+EOF
+done
+echo "}"
@@ -20,4 +20,90 @@ public class Annotations {
   @Retention(RetentionPolicy.RUNTIME)
   @Target(ElementType.METHOD)
   public @interface ProducesIntoSet {}
+
+  /**
+   * Marks a producer as cheap enough to run directly on the thread which completed its last
+   * dependency, rather than being handed off to the executor of the context.
+   */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.METHOD)
+  public @interface Inline {}
+
+  /**
+   * Limits the number of concurrent executions of a producer across all the graphs of a context.
+   * An execution counts until the future returned by the producer (if any) has completed.
+   */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.METHOD)
+  public @interface ConcurrencyLimit {
+    int value();
+  }
+
+  /**
+   * Caches the values of a deterministic producer in its context, keyed by the values of its
+   * dependencies, so that graphs (including concurrently running ones) share a single execution.
+   * Executions with a failed dependency, as well as failed executions, are never cached.
+   */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.METHOD)
+  public @interface Cacheable {
+    /** The time after which a cached value expires, or zero if values do not expire. */
+    long expireAfterWriteMillis() default 0;
+
+    /** The maximum number of cached values, or zero if unbounded. */
+    long maximumSize() default 0;
+  }
+
+  /**
+   * Marks a producer which handles the executions of many graphs at once, e.g., by issuing a single
+   * batched backend call. Each parameter is a list of the presents of all executions in the batch,
+   * one element per execution, rather than a single present. The producer returns a list with one
+   * value per execution, in the same order, or (for producers with a single parameter) a map from
+   * the parameter values to the produced values.
+   *
+   * <p>Executions are collected for up to {@link #windowMillis} after the first one arrives, or
+   * until {@link #maxSize} executions have been collected, whichever comes first.
+   */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.METHOD)
+  public @interface Batched {
+    int maxSize() default 100;
+
+    long windowMillis() default 5;
+  }
+
+  /**
+   * Bounds the time a producer may take, measured from the start of its execution until its value
+   * (or the future it returned) is available. On expiry, the node fails with a
+   * {@link java.util.concurrent.TimeoutException}, or completes with the value of the fallback.
+   */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.METHOD)
+  public @interface Timeout {
+    long millis();
+
+    /**
+     * The name of a static method of the same module which computes a value in place of the timed
+     * out producer. It takes the same presents as the producer, synchronously returns the produced
+     * type, and runs on the timer thread, so it must be cheap.
+     */
+    String fallback() default "";
+  }
+
+  /**
+   * Hedges the executions of a producer returning a
+   * {@link com.google.common.util.concurrent.ListenableFuture}. If the returned future has not
+   * completed once the given percentile of the latencies observed so far has passed, the producer
+   * is invoked a second time with the same presents, and the node takes the value of whichever
+   * attempt succeeds first. The other attempt is cancelled. Only use this for idempotent producers.
+   */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.METHOD)
+  public @interface Hedged {
+    /** The percentile of the observed latencies after which a second attempt is started. */
+    double percentile() default 95;
+
+    /** The maximum number of second attempts as a fraction of all executions of the producer. */
+    double maxExtraLoad() default 0.05;
+  }
 }
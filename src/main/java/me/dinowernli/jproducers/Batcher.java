@@ -0,0 +1,167 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the executions of a batched producer from all the graphs of a context and invokes the
+ * producer once per batch. A batch is invoked once it is full, or once the batch window has passed
+ * since its first execution arrived.
+ */
+class Batcher {
+  private final ProducerBinding binding;
+  private final Executor executor;
+  private final ScheduledExecutorService timer;
+
+  /** The batch currently being collected, replaced by a new list whenever a batch is invoked. */
+  private List<Call> pending;
+
+  Batcher(ProducerBinding binding, Executor executor, ScheduledExecutorService timer) {
+    this.binding = binding;
+    this.executor = executor;
+    this.timer = timer;
+    this.pending = new ArrayList<>();
+  }
+
+  /**
+   * Adds an execution with the supplied arguments to the current batch and returns a future for
+   * its value.
+   */
+  ListenableFuture<Object> add(Object[] arguments) {
+    Call call = new Call(arguments);
+    List<Call> full = null;
+    boolean first = false;
+    List<Call> batch;
+    synchronized (this) {
+      batch = pending;
+      batch.add(call);
+      if (batch.size() >= binding.maxBatchSize()) {
+        full = batch;
+        pending = new ArrayList<>();
+      } else {
+        first = batch.size() == 1;
+      }
+    }
+
+    if (full != null) {
+      List<Call> invoked = full;
+      executor.execute(() -> invoke(invoked));
+    } else if (first) {
+      timer.schedule(() -> flush(batch), binding.batchWindow().toNanos(), TimeUnit.NANOSECONDS);
+    }
+    return call.result;
+  }
+
+  /** Invokes the supplied batch unless it has already been invoked because it filled up. */
+  private void flush(List<Call> batch) {
+    synchronized (this) {
+      if (pending != batch) {
+        return;
+      }
+      pending = new ArrayList<>();
+    }
+    executor.execute(() -> invoke(batch));
+  }
+
+  private void invoke(List<Call> batch) {
+    // Transpose the batch so that each argument is the list of the presents for one parameter.
+    int numParameters = binding.dependencies().size();
+    Object[] arguments = new Object[numParameters];
+    for (int i = 0; i < numParameters; ++i) {
+      List<Object> column = new ArrayList<>(batch.size());
+      for (Call call : batch) {
+        column.add(call.arguments[i]);
+      }
+      arguments[i] = Collections.unmodifiableList(column);
+    }
+
+    Object output;
+    try {
+      output = binding.invoker().invoke(arguments);
+    } catch (Throwable t) {
+      fail(batch, new RuntimeException("Unable to execute producer", t));
+      return;
+    }
+
+    if (output instanceof ListenableFuture) {
+      Futures.addCallback((ListenableFuture<?>) output, new FutureCallback<Object>() {
+        @Override
+        public void onSuccess(Object result) {
+          distribute(batch, result);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          fail(batch, t);
+        }
+      }, MoreExecutors.directExecutor());
+    } else {
+      distribute(batch, output);
+    }
+  }
+
+  /** Completes the executions of the batch with their respective values from the output. */
+  private void distribute(List<Call> batch, Object output) {
+    if (output instanceof List) {
+      List<?> values = (List<?>) output;
+      if (values.size() != batch.size()) {
+        fail(batch, new IllegalStateException(String.format(
+            "Batched producer [%s] returned %d values for %d executions",
+            binding.name(), values.size(), batch.size())));
+        return;
+      }
+      for (int i = 0; i < batch.size(); ++i) {
+        batch.get(i).result.set(values.get(i));
+      }
+    } else if (output instanceof Map) {
+      Map<?, ?> values = (Map<?, ?>) output;
+      for (Call call : batch) {
+        try {
+          Object key = ((Present<?>) call.arguments[0]).get();
+          if (values.containsKey(key)) {
+            call.result.set(values.get(key));
+          } else {
+            call.result.setException(new NoSuchElementException(String.format(
+                "Batched producer [%s] returned no value for [%s]", binding.name(), key)));
+          }
+        } catch (ExecutionException e) {
+          call.result.setException(e.getCause());
+        }
+      }
+    } else {
+      fail(batch, new IllegalStateException(String.format(
+          "Batched producer [%s] must return a list or a map, but got: %s",
+          binding.name(), output)));
+    }
+  }
+
+  private static void fail(List<Call> batch, Throwable t) {
+    for (Call call : batch) {
+      call.result.setException(t);
+    }
+  }
+
+  /** A single execution of the producer, i.e., the arguments supplied by one node. */
+  private static class Call {
+    private final Object[] arguments;
+    private final SettableFuture<Object> result;
+
+    private Call(Object[] arguments) {
+      this.arguments = arguments;
+      this.result = SettableFuture.create();
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.Key;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Runs graphs of a single shape over a sequence of input bindings, emitting the results in input
+ * order to a stream. At most a bounded number of graphs are in flight at any time, and graphs are
+ * constructed and started in chunks on the executor of the context rather than one by one.
+ */
+class BulkRun<T> {
+  /** The maximum number of graphs constructed and started by a single task. */
+  private static final int MAX_CHUNK_SIZE = 64;
+
+  private final Supplier<Graph<T>> graphs;
+  private final Iterator<? extends Map<Key<?>, ?>> inputs;
+  private final int maxInFlight;
+  private final Executor executor;
+  private final ProducerStream<Present<T>> results;
+
+  /** The results of the graphs which have been started but not emitted yet, in input order. */
+  private final ArrayDeque<SettableFuture<T>> pending;
+
+  private boolean exhausted;
+  private Throwable inputFailure;
+
+  /**
+   * Whether a thread is currently emitting results and starting further graphs. Results are emitted
+   * one at a time and in order, so other threads leave the work to that thread. Remains set once
+   * the stream has ended.
+   */
+  private boolean draining;
+
+  /** Whether the stream is full, in which case emitting resumes once it has room again. */
+  private boolean blocked;
+
+  BulkRun(
+      Supplier<Graph<T>> graphs,
+      Iterator<? extends Map<Key<?>, ?>> inputs,
+      int maxInFlight,
+      Executor executor) {
+    this.graphs = graphs;
+    this.inputs = inputs;
+    this.maxInFlight = maxInFlight;
+    this.executor = executor;
+    this.results = ProducerStream.create(maxInFlight);
+    this.pending = new ArrayDeque<>();
+  }
+
+  /** Starts the first graphs and returns the stream of results. */
+  ProducerStream<Present<T>> start() {
+    if (!fill()) {
+      // Nothing was started, so no completing graph is going to end the stream.
+      drain();
+    }
+    return results;
+  }
+
+  /**
+   * Starts graphs for further inputs until the maximum number of graphs is in flight. Returns
+   * whether any graphs were started.
+   */
+  private boolean fill() {
+    List<List<Map<Key<?>, ?>>> chunks = new ArrayList<>();
+    List<List<SettableFuture<T>>> chunkResults = new ArrayList<>();
+    synchronized (this) {
+      while (!exhausted && pending.size() < maxInFlight) {
+        int chunkSize = Math.min(MAX_CHUNK_SIZE, maxInFlight - pending.size());
+        List<Map<Key<?>, ?>> chunk = new ArrayList<>(chunkSize);
+        List<SettableFuture<T>> futures = new ArrayList<>(chunkSize);
+        try {
+          while (chunk.size() < chunkSize && inputs.hasNext()) {
+            chunk.add(inputs.next());
+            SettableFuture<T> result = SettableFuture.create();
+            futures.add(result);
+            pending.add(result);
+          }
+          exhausted = !inputs.hasNext();
+        } catch (RuntimeException e) {
+          exhausted = true;
+          inputFailure = e;
+        }
+        if (!chunk.isEmpty()) {
+          chunks.add(chunk);
+          chunkResults.add(futures);
+        }
+      }
+    }
+    for (int i = 0; i < chunks.size(); ++i) {
+      List<Map<Key<?>, ?>> chunk = chunks.get(i);
+      List<SettableFuture<T>> futures = chunkResults.get(i);
+      executor.execute(() -> runChunk(chunk, futures));
+    }
+    return !chunks.isEmpty();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void runChunk(List<Map<Key<?>, ?>> chunk, List<SettableFuture<T>> futures) {
+    for (int i = 0; i < chunk.size(); ++i) {
+      SettableFuture<T> result = futures.get(i);
+      if (result.isCancelled()) {
+        continue;
+      }
+      try {
+        Graph<T> graph = graphs.get();
+        for (Map.Entry<Key<?>, ?> input : chunk.get(i).entrySet()) {
+          graph.addInput((Key<Object>) input.getKey(), input.getValue());
+        }
+        result.setFuture(graph.run());
+      } catch (RuntimeException e) {
+        result.setException(e);
+      }
+      result.addListener(this::drain, MoreExecutors.directExecutor());
+    }
+  }
+
+  /**
+   * Emits the results which are done, in input order, and starts further graphs. Graphs completing
+   * while this runs, including those started by it on a direct executor, are picked up by this
+   * loop rather than by nested calls, so the stack does not grow with the number of inputs.
+   */
+  private void drain() {
+    synchronized (this) {
+      if (draining || blocked) {
+        return;
+      }
+      draining = true;
+    }
+    while (true) {
+      SettableFuture<T> next;
+      synchronized (this) {
+        next = pending.peek();
+        if (next == null && exhausted) {
+          finish();
+          return;
+        }
+        if (next == null || !next.isDone()) {
+          // The completion of the next result is checked with the lock, so its listener either
+          // sees this thread done or has completed the result before this check.
+          draining = false;
+          return;
+        }
+        pending.poll();
+      }
+
+      ListenableFuture<Void> writable = results.emit(present(next));
+      if (writable.isCancelled()) {
+        cancel();
+        return;
+      }
+      boolean full;
+      synchronized (this) {
+        full = !writable.isDone();
+        blocked = full;
+        draining = !full;
+      }
+      if (full) {
+        writable.addListener(this::onWritable, MoreExecutors.directExecutor());
+        return;
+      }
+      fill();
+    }
+  }
+
+  private void onWritable() {
+    synchronized (this) {
+      blocked = false;
+    }
+    // Nothing was started since the stream filled up, so there may be no graphs in flight.
+    fill();
+    drain();
+  }
+
+  /** Ends the stream once all results have been emitted. Called at most once, with the lock. */
+  private void finish() {
+    if (inputFailure == null) {
+      results.complete();
+    } else {
+      results.fail(inputFailure);
+    }
+  }
+
+  /** Stops starting graphs and cancels the running ones once the consumer has cancelled. */
+  private void cancel() {
+    List<SettableFuture<T>> running;
+    synchronized (this) {
+      exhausted = true;
+      running = new ArrayList<>(pending);
+      pending.clear();
+    }
+    for (SettableFuture<T> result : running) {
+      result.cancel(false /* mayInterruptIfRunning */);
+    }
+  }
+
+  private static <T> Present<T> present(ListenableFuture<T> result) {
+    try {
+      return Present.successful(result.get());
+    } catch (Throwable t) {
+      return Present.failed(t);
+    }
+  }
+}
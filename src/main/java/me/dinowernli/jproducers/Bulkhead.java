@@ -0,0 +1,117 @@
+package me.dinowernli.jproducers;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of concurrent executions of a single producer across all the graphs of a
+ * context. Executions which exceed the limit are queued rather than blocking a thread, and are
+ * started as soon as a running execution releases its permit.
+ */
+class Bulkhead {
+  private final int limit;
+  private final Executor executor;
+
+  /** The number of executions which currently hold a permit. */
+  private final AtomicInteger inFlight;
+  private final ConcurrentLinkedQueue<Waiter> waiters;
+
+  private final AtomicInteger queueDepth;
+  private final AtomicLong queuedExecutions;
+  private final AtomicLong totalWaitNanos;
+  private final AtomicLong maxWaitNanos;
+
+  /**
+   * Creates a bulkhead allowing up to {@code limit} concurrent executions. Executions which had to
+   * wait for a permit are started on the supplied executor.
+   */
+  Bulkhead(int limit, Executor executor) {
+    this.limit = limit;
+    this.executor = executor;
+    this.inFlight = new AtomicInteger();
+    this.waiters = new ConcurrentLinkedQueue<>();
+    this.queueDepth = new AtomicInteger();
+    this.queuedExecutions = new AtomicLong();
+    this.totalWaitNanos = new AtomicLong();
+    this.maxWaitNanos = new AtomicLong();
+  }
+
+  /**
+   * Runs the supplied execution using {@code starter} if a permit is available right away.
+   * Otherwise queues the execution until a permit is released. Every execution must eventually call
+   * {@link #release()}.
+   */
+  void submit(Runnable execution, Executor starter) {
+    if (tryAcquire()) {
+      starter.execute(execution);
+      return;
+    }
+    waiters.add(new Waiter(execution, System.nanoTime()));
+    queueDepth.incrementAndGet();
+    queuedExecutions.incrementAndGet();
+
+    // A permit may have been released between the failed acquisition and queueing.
+    drain();
+  }
+
+  /** Releases the permit held by a finished execution, starting the next queued one (if any). */
+  void release() {
+    inFlight.decrementAndGet();
+    drain();
+  }
+
+  BulkheadStats stats() {
+    long queued = queuedExecutions.get();
+    return new BulkheadStats(
+        limit,
+        inFlight.get(),
+        queueDepth.get(),
+        queued,
+        queued == 0 ? 0 : totalWaitNanos.get() / queued,
+        maxWaitNanos.get());
+  }
+
+  /** Starts queued executions for as long as there are both waiters and permits. */
+  private void drain() {
+    while (!waiters.isEmpty()) {
+      if (!tryAcquire()) {
+        return;
+      }
+      Waiter waiter = waiters.poll();
+      if (waiter == null) {
+        // Another thread took the waiter, give the permit back and check again.
+        inFlight.decrementAndGet();
+        continue;
+      }
+      queueDepth.decrementAndGet();
+      long waitNanos = System.nanoTime() - waiter.enqueuedNanos;
+      totalWaitNanos.addAndGet(waitNanos);
+      maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+      executor.execute(waiter.execution);
+    }
+  }
+
+  private boolean tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+      if (current >= limit) {
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private static class Waiter {
+    private final Runnable execution;
+    private final long enqueuedNanos;
+
+    private Waiter(Runnable execution, long enqueuedNanos) {
+      this.execution = execution;
+      this.enqueuedNanos = enqueuedNanos;
+    }
+  }
+}
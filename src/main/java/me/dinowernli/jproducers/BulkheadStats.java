@@ -0,0 +1,63 @@
+package me.dinowernli.jproducers;
+
+/** A snapshot of the state of the concurrency limit of a single producer. */
+public class BulkheadStats {
+  private final int limit;
+  private final int inFlight;
+  private final int queueDepth;
+  private final long queuedExecutions;
+  private final long averageWaitNanos;
+  private final long maxWaitNanos;
+
+  BulkheadStats(
+      int limit,
+      int inFlight,
+      int queueDepth,
+      long queuedExecutions,
+      long averageWaitNanos,
+      long maxWaitNanos) {
+    this.limit = limit;
+    this.inFlight = inFlight;
+    this.queueDepth = queueDepth;
+    this.queuedExecutions = queuedExecutions;
+    this.averageWaitNanos = averageWaitNanos;
+    this.maxWaitNanos = maxWaitNanos;
+  }
+
+  /** Returns the maximum number of concurrent executions of the producer. */
+  public int limit() {
+    return limit;
+  }
+
+  /** Returns the number of executions currently running (or waiting for their future). */
+  public int inFlight() {
+    return inFlight;
+  }
+
+  /** Returns the number of executions currently waiting for a permit. */
+  public int queueDepth() {
+    return queueDepth;
+  }
+
+  /** Returns the total number of executions which had to wait for a permit. */
+  public long queuedExecutions() {
+    return queuedExecutions;
+  }
+
+  /** Returns the average time spent waiting for a permit by the executions which had to wait. */
+  public long averageWaitNanos() {
+    return averageWaitNanos;
+  }
+
+  public long maxWaitNanos() {
+    return maxWaitNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "BulkheadStats{limit=%d, inFlight=%d, queueDepth=%d, queued=%d, avgWait=%dns, "
+            + "maxWait=%dns}",
+        limit, inFlight, queueDepth, queuedExecutions, averageWaitNanos, maxWaitNanos);
+  }
+}
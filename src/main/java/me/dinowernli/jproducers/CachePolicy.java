@@ -0,0 +1,97 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.base.Preconditions;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.function.ToIntFunction;
+
+/**
+ * Describes how the values of a cacheable producer are retained, see {@code @Cacheable}. A policy
+ * without any bounds caches values for the lifetime of the context.
+ */
+public class CachePolicy {
+  private final Optional<Duration> expireAfterWrite;
+  private final long maximumSize;
+  private final long maximumWeight;
+  private final Optional<ToIntFunction<Object>> weigher;
+
+  private CachePolicy(
+      Optional<Duration> expireAfterWrite,
+      long maximumSize,
+      long maximumWeight,
+      Optional<ToIntFunction<Object>> weigher) {
+    this.expireAfterWrite = expireAfterWrite;
+    this.maximumSize = maximumSize;
+    this.maximumWeight = maximumWeight;
+    this.weigher = weigher;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Returns the time after which a cached value expires, if values expire. */
+  public Optional<Duration> expireAfterWrite() {
+    return expireAfterWrite;
+  }
+
+  /** Returns the maximum number of cached values, or zero if unbounded. */
+  public long maximumSize() {
+    return maximumSize;
+  }
+
+  /** Returns the maximum total weight of the cached values, if values are weighed. */
+  public long maximumWeight() {
+    return maximumWeight;
+  }
+
+  /** Returns the function computing the weight of a cached value, if values are weighed. */
+  public Optional<ToIntFunction<Object>> weigher() {
+    return weigher;
+  }
+
+  public static class Builder {
+    private Optional<Duration> expireAfterWrite;
+    private long maximumSize;
+    private long maximumWeight;
+    private Optional<ToIntFunction<Object>> weigher;
+
+    private Builder() {
+      this.expireAfterWrite = Optional.empty();
+      this.maximumSize = 0;
+      this.maximumWeight = 0;
+      this.weigher = Optional.empty();
+    }
+
+    public Builder expireAfterWrite(Duration expireAfterWrite) {
+      Preconditions.checkArgument(
+          !expireAfterWrite.isNegative() && !expireAfterWrite.isZero(), "Expiry must be positive");
+      this.expireAfterWrite = Optional.of(expireAfterWrite);
+      return this;
+    }
+
+    public Builder maximumSize(long maximumSize) {
+      Preconditions.checkArgument(maximumSize > 0, "Maximum size must be positive");
+      Preconditions.checkState(!weigher.isPresent(), "Cannot bound both size and weight");
+      this.maximumSize = maximumSize;
+      return this;
+    }
+
+    /**
+     * Bounds the total weight of the cached values, as computed by the supplied function. Values
+     * are weighed once their computation has completed.
+     */
+    public Builder maximumWeight(long maximumWeight, ToIntFunction<Object> weigher) {
+      Preconditions.checkArgument(maximumWeight > 0, "Maximum weight must be positive");
+      Preconditions.checkState(maximumSize == 0, "Cannot bound both size and weight");
+      this.maximumWeight = maximumWeight;
+      this.weigher = Optional.of(weigher);
+      return this;
+    }
+
+    public CachePolicy build() {
+      return new CachePolicy(expireAfterWrite, maximumSize, maximumWeight, weigher);
+    }
+  }
+}
@@ -5,35 +5,77 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.Key;
+import me.dinowernli.jproducers.GraphPlan.NodePlan.Kind;
 
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /** Represents a single execution of a graph for a specific output type. */
 public class Graph<T> {
-  private final ExecutorService executor;
+  private static final long[] NO_PRIORITIES = new long[0];
+  private static final Object[] NO_ARGUMENTS = new Object[0];
 
-  /** The root node of this graph. */
-  private final Node<T> root;
+  /** The immutable plan this execution was instantiated from. */
+  private final GraphPlan<T> plan;
 
-  /** Maps expected explicit input keys to whether an input has actually been provided. */
-  private final ImmutableMap<Key<?>, Node<?>> explicitInputs;
+  /** The execution state of each node of the plan, indexed like the nodes of the plan. */
+  private final Node<?>[] nodes;
+
+  /** Used to enforce deadlines. */
+  private final ScheduledExecutorService timer;
+
+  /** Receives the trace of this run once it completes, if this run is traced. */
+  private final Optional<Consumer<GraphTrace>> traceSink;
+
+  /** Supplies values from earlier runs which nodes can use instead of running, if any. */
+  private final Optional<Memo> memo;
+
+  /**
+   * The priorities with which the nodes are started, see {@link #priorities}. Empty unless the
+   * context prioritizes executions.
+   */
+  private final long[] priorities;
+
+  /** Whether the graph has started running, from which point nodes notify it as they complete. */
+  private volatile boolean running;
 
   Graph(
-      ExecutorService executor,
-      Node<T> root,
-      ImmutableMap<Key<?>, Node<?>> explicitInputs) {
-    this.executor = executor;
-    this.root = root;
-    this.explicitInputs = explicitInputs;
+      GraphPlan<T> plan,
+      ScheduledExecutorService timer,
+      ImmutableList<GraphListener> listeners,
+      Optional<Consumer<GraphTrace>> traceSink,
+      Optional<Memo> memo,
+      boolean prioritized) {
+    this.plan = plan;
+    this.timer = timer;
+    this.traceSink = traceSink;
+    this.memo = memo;
+    this.priorities = prioritized ? priorities(plan) : NO_PRIORITIES;
+    this.nodes = new Node<?>[plan.nodes().size()];
+    for (int i = 0; i < nodes.length; ++i) {
+      nodes[i] = new Node<>(
+          plan.nodes().get(i), this, listeners, traceSink.isPresent(), prioritized);
+    }
+
+    // The caller consumes the root.
+    nodes[plan.root()].retain();
   }
 
   public <I> Graph<T> addInput(Key<I> key, I value) {
-    if (!explicitInputs.containsKey(key)) {
+    Integer index = plan.explicitInputs().get(key);
+    if (index == null) {
       throw new IllegalArgumentException("Attempted to bind unexpected input for key: " + key);
     }
-    Node<?> node = explicitInputs.get(key);
+    Node<?> node = nodes[index];
     if (node.isDone()) {
       throw new IllegalArgumentException("Attempted to bind already-bound input for key: " + key);
     }
@@ -41,59 +83,289 @@ public class Graph<T> {
     return this;
   }
 
-  /** Kicks off the execution of this graph. */
+  /** Completes the node with the supplied index with a value memoized from an earlier run. */
+  void seed(int index, ListenableFuture<?> value) {
+    nodes[index].acceptFuture(value);
+  }
+
+  /** Returns the value of the node with the supplied index. */
+  ListenableFuture<?> valueOf(int index) {
+    return nodes[index].value();
+  }
+
+  /**
+   * Kicks off the execution of this graph. Cancelling the returned future cancels all the work of
+   * the graph which is still outstanding, including the futures returned by producers, and
+   * prevents any further producers of this graph from starting.
+   */
+  @SuppressWarnings("unchecked")
   public ListenableFuture<T> run() {
-    for (Map.Entry<Key<?>, Node<?>> explicitInput : explicitInputs.entrySet()) {
-      if (!explicitInput.getValue().isDone()) {
+    for (Map.Entry<Key<?>, Integer> explicitInput : plan.explicitInputs().entrySet()) {
+      if (!nodes[explicitInput.getValue()].isDone()) {
         return Futures.immediateFailedFuture(
             new RuntimeException("Missing input for key: " + explicitInput.getKey()));
       }
     }
-    return processNode(root);
+
+    // Keep a handle on the result before starting, the root may well complete synchronously.
+    ListenableFuture<T> result = (ListenableFuture<T>) nodes[plan.root()].value();
+    if (traceSink.isPresent()) {
+      result.addListener(
+          () -> traceSink.get().accept(trace(System.nanoTime())), MoreExecutors.directExecutor());
+    }
+
+    // From here on, nodes notify the graph as they complete. Nodes which are already done, such
+    // as explicit inputs, are handled right away, which releases their consumers.
+    running = true;
+    for (Node<?> node : nodes) {
+      if (node.isDone()) {
+        onNodeDone(node);
+      }
+    }
+
+    // Demanding the root starts all the nodes it eagerly depends on which have no dependencies
+    // themselves. All other nodes are started by whichever of their dependencies completes last.
+    demand(plan.root());
+    return result;
+  }
+
+  /**
+   * Kicks off the execution of this graph like {@link #run()}, and cancels the execution if it has
+   * not completed within the supplied timeout. In that case, the returned future fails with a
+   * {@link java.util.concurrent.TimeoutException}.
+   */
+  public ListenableFuture<T> run(Duration timeout) {
+    return Futures.withTimeout(run(), timeout.toNanos(), TimeUnit.NANOSECONDS, timer);
   }
 
   /**
-   * Recursively kicks off execution of all required nodes for the supplied node and wires up the
-   * callbacks that make sure that results are propagated back to the supplied node. Returns a
-   * future which tracks the execution progress of the supplied node itself.
+   * Returns the priorities of the nodes of a graph of the supplied plan which starts now. Nodes
+   * with the least slack go first, i.e., those which have to start earliest for the graph to
+   * complete within its estimated critical path. Within a graph, this favors the nodes with the
+   * longest remaining path to the root, and across graphs, it favors older graphs.
    */
-  private <O> ListenableFuture<O> processNode(Node<O> node) {
-    for (Node<?> dependencyNode : node.dependencies()) {
-      ListenableFuture<?> dependencyValue = processNode(dependencyNode);
-      dependencyValue.addListener(() -> onDependencyDone(node), executor);
+  private static long[] priorities(GraphPlan<?> plan) {
+    long[] remaining = plan.criticalPathNanos();
+    long criticalPath = 0;
+    for (long nanos : remaining) {
+      criticalPath = Math.max(criticalPath, nanos);
     }
+    long deadline = System.nanoTime() + criticalPath;
+    for (int i = 0; i < remaining.length; ++i) {
+      // The later a node has to start at the latest, the lower its priority.
+      remaining[i] = -(deadline - remaining[i]);
+    }
+    return remaining;
+  }
 
-    // Trigger this explicitly here for degenerate cases where there are no dependencies, etc.
-    onDependencyDone(node);
+  /** Assembles the trace of the producer nodes of this run which have completed so far. */
+  private GraphTrace trace(long completedNanos) {
+    ImmutableList.Builder<GraphTrace.Span> spans = ImmutableList.builder();
+    int[] spanIndices = new int[nodes.length];
+    int numSpans = 0;
+    for (int i = 0; i < nodes.length; ++i) {
+      Optional<NodeTiming> timing = nodes[i].timing();
+      spanIndices[i] = timing.isPresent() ? numSpans++ : -1;
+      if (timing.isPresent()) {
+        spans.add(new GraphTrace.Span(
+            plan.nodes().get(i).producer().binding().name(),
+            timing.get(),
+            !succeeded(nodes[i].value()),
+            tracedDependencies(nodes[i].dependencies(), spanIndices)));
+      }
+    }
+    int root = plan.root();
+    ImmutableSet<Integer> rootSpans = spanIndices[root] >= 0
+        ? ImmutableSet.of(spanIndices[root])
+        : tracedDependencies(nodes[root].dependencies(), spanIndices);
+    return new GraphTrace(spans.build(), rootSpans, completedNanos);
+  }
 
-    return node.value();
+  /**
+   * Returns the spans of the supplied dependencies. Untraced dependencies such as sets are replaced
+   * by their own traced dependencies.
+   */
+  private ImmutableSet<Integer> tracedDependencies(int[] dependencies, int[] spanIndices) {
+    ImmutableSet.Builder<Integer> result = ImmutableSet.builder();
+    for (int dependency : dependencies) {
+      if (spanIndices[dependency] >= 0) {
+        result.add(spanIndices[dependency]);
+      } else {
+        result.addAll(tracedDependencies(nodes[dependency].dependencies(), spanIndices));
+      }
+    }
+    return result.build();
   }
 
   /**
-   * Called whenever a dependency of the supplied node has finished executing.
+   * Cancels the streams consumed by the supplied node, which has failed or was cancelled. Streams
+   * only have a single consumer, so this tells their producers to stop emitting chunks nobody is
+   * going to read. Consumers which succeed may well still be reading, e.g., if their own output is
+   * a stream derived from their input.
    */
-  private void onDependencyDone(Node<?> node) {
-    ImmutableList<Node<?>> dependencies = node.dependencies();
+  private void cancelStreams(Node<?> node) {
+    for (int dependency : node.dependencies()) {
+      ListenableFuture<?> value = nodes[dependency].value();
+      if (!value.isDone() || value.isCancelled()) {
+        continue;
+      }
+      try {
+        Object output = Futures.getDone(value);
+        if (output instanceof ProducerStream) {
+          ((ProducerStream<?>) output).cancel();
+        }
+      } catch (ExecutionException e) {
+        // The stream was never created, so there is nothing to cancel.
+      }
+    }
+  }
 
-    // We can't run this node if there are dependencies which haven't run yet.
-    if (dependencies.stream().anyMatch(d -> !d.isDone())) {
+  private static boolean succeeded(ListenableFuture<?> value) {
+    if (value.isCancelled()) {
+      return false;
+    }
+    try {
+      Futures.getDone(value);
+      return true;
+    } catch (ExecutionException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Called by every node once its value is available. Only handles the node if the graph is running
+   * and no other caller has handled it yet, so every node is handled exactly once.
+   */
+  void onNodeDone(Node<?> node) {
+    if (!running || !node.claimNotification()) {
       return;
     }
+    if (node.value().isCancelled() && node.isDemanded()) {
+      // Dependencies which are no longer needed by anyone are cancelled in turn.
+      int[] dependencies = node.dependencies();
+      for (int i = 0; i < dependencies.length; ++i) {
+        if (!node.isLazy(i) && nodes[dependencies[i]].release()) {
+          nodes[dependencies[i]].value().cancel(false /* mayInterruptIfRunning */);
+        }
+      }
+    }
+    if (node.consumesStreams() && node.isDemanded() && !succeeded(node.value())) {
+      cancelStreams(node);
+    }
 
-    // Construct present for all the arguments.
-    Object[] arguments = new Object[dependencies.size()];
-    for (int i = 0; i < dependencies.size(); ++i) {
-      Present<?> present;
-      try {
-        Node<?> dependencyNode = dependencies.get(i);
-        present = Present.successful(dependencyNode.value().get());
-      } catch (Throwable t) {
-        present = Present.failed(t);
+    for (int consumer : node.consumers()) {
+      Node<?> consumerNode = nodes[consumer];
+      if (consumerNode.kind() == Kind.SET_ASSEMBLY) {
+        // Sets are assembled incrementally, as their elements complete.
+        consumerNode.acceptElement(node.value());
+      }
+      if (consumerNode.onDependencyDone()) {
+        schedule(consumer);
       }
-      arguments[i] = present;
+    }
+  }
+
+  /**
+   * Marks the supplied node and, transitively, its eager dependencies as needed. Nodes only reached
+   * through lazy dependencies are not demanded until their handle is first used.
+   */
+  private void demand(int index) {
+    ArrayDeque<Integer> pending = new ArrayDeque<>();
+    pending.push(index);
+    while (!pending.isEmpty()) {
+      int current = pending.pop();
+      Node<?> node = nodes[current];
+      if (node.kind() == Kind.INPUT || node.isDone() || !node.demand()) {
+        // Nodes which are already done, e.g., seeded from an earlier run, need no dependencies.
+        continue;
+      }
+      int[] dependencies = node.dependencies();
+      for (int i = 0; i < dependencies.length; ++i) {
+        if (!node.isLazy(i)) {
+          nodes[dependencies[i]].retain();
+          pending.push(dependencies[i]);
+        }
+      }
+      if (node.onDependencyDone()) {
+        schedule(current);
+      }
+    }
+  }
+
+  /** Hands off the supplied node, all of whose dependencies have completed, for execution. */
+  @SuppressWarnings("unchecked")
+  private void schedule(int index) {
+    Node<?> node = nodes[index];
+    if (memo.isPresent()) {
+      Optional<ListenableFuture<?>> memoized = memo.get().reusableValue(this, index);
+      if (memoized.isPresent()) {
+        node.acceptFuture(memoized.get());
+        return;
+      }
+    }
+    if (node.kind() == Kind.SET_ASSEMBLY) {
+      node.completeSet(nodes);
+      return;
+    }
+    int[] dependencies = node.dependencies();
+
+    // Pass the shared presents of the dependencies, and handles for the lazy ones.
+    Object[] arguments = dependencies.length == 0 ? NO_ARGUMENTS : new Object[dependencies.length];
+    for (int i = 0; i < dependencies.length; ++i) {
+      arguments[i] = node.isLazy(i)
+          ? new LazyProducer<>(node, dependencies[i])
+          : nodes[dependencies[i]].present();
+    }
+
+    if (node.kind() == Kind.RESULTS) {
+      ImmutableMap.Builder<Key<?>, Present<?>> results = ImmutableMap.builder();
+      for (int i = 0; i < arguments.length; ++i) {
+        results.put(plan.resultKeys().get(i), (Present<?>) arguments[i]);
+      }
+      node.completeResults(new ProducerResults(results.build()));
+      return;
     }
 
     // Run the actual producer.
-    executor.submit(() -> node.execute(arguments));
+    node.start(arguments, priorities.length > 0 ? priorities[index] : 0);
+  }
+
+  /** Supplies the values of nodes which are known not to have changed since an earlier run. */
+  interface Memo {
+    /**
+     * Returns the value of the node of the supplied graph with the given index from an earlier run
+     * if it can be reused. Called once all eager dependencies of the node are done.
+     */
+    Optional<ListenableFuture<?>> reusableValue(Graph<?> graph, int index);
+  }
+
+  /** A handle on a lazy dependency, which demands the dependency when it is first asked for. */
+  private class LazyProducer<D> implements Producer<D> {
+    private final Node<?> consumer;
+    private final int dependency;
+    private final AtomicBoolean requested;
+
+    private LazyProducer(Node<?> consumer, int dependency) {
+      this.consumer = consumer;
+      this.dependency = dependency;
+      this.requested = new AtomicBoolean();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ListenableFuture<D> get() {
+      Node<D> node = (Node<D>) nodes[dependency];
+      if (requested.compareAndSet(false, true)) {
+        // The consumer needs the dependency until it completes itself.
+        node.retain();
+        consumer.value().addListener(() -> {
+          if (node.release()) {
+            node.value().cancel(false /* mayInterruptIfRunning */);
+          }
+        }, MoreExecutors.directExecutor());
+        demand(dependency);
+      }
+      return Futures.nonCancellationPropagating(node.value());
+    }
   }
 }
@@ -0,0 +1,30 @@
+package me.dinowernli.jproducers;
+
+/**
+ * Receives the lifecycle events of the producer nodes of every graph of a {@link ProducerContext}.
+ * Timestamps are taken from {@link System#nanoTime()}, and events of a single node are delivered
+ * in order, though possibly on different threads.
+ *
+ * <p>Listeners are called synchronously on the threads running the graph, so they must be cheap
+ * and thread-safe, and must not throw. All methods do nothing by default.
+ */
+public interface GraphListener {
+  /** Called once all the dependencies of a node have completed and it is handed off to run. */
+  default void onScheduled(Graph<?> graph, ProducerBinding producer, long nanos) {}
+
+  /** Called when the producer of a node starts running, i.e., after waiting in any queue. */
+  default void onStarted(Graph<?> graph, ProducerBinding producer, long nanos) {}
+
+  /**
+   * Called when the producer of a node has returned. For producers returning a future, the value
+   * of the node is only available once that future completes.
+   */
+  default void onProducerReturned(Graph<?> graph, ProducerBinding producer, long nanos) {}
+
+  /** Called once the value of a node is available. */
+  default void onSucceeded(Graph<?> graph, ProducerBinding producer, NodeTiming timing) {}
+
+  /** Called once a node has failed, including when it was cancelled or timed out. */
+  default void onFailed(
+      Graph<?> graph, ProducerBinding producer, NodeTiming timing, Throwable error) {}
+}
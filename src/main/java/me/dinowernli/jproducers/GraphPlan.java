@@ -0,0 +1,325 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Key;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * An immutable description of the nodes required to produce a specific root key. Plans are
+ * computed once per {@link ProducerContext} and root key, and are then used to cheaply instantiate
+ * any number of {@link Graph} executions.
+ */
+class GraphPlan<T> {
+  private static final int[] NO_NODES = new int[0];
+  private static final boolean[] ALL_EAGER = new boolean[0];
+
+  /** All the nodes of the plan, in an order where dependencies precede their consumers. */
+  private final ImmutableList<NodePlan> nodes;
+
+  /** The index of the root node in {@link #nodes}. */
+  private final int root;
+
+  /** Maps the keys which must be supplied as explicit inputs to the index of their node. */
+  private final ImmutableMap<Key<?>, Integer> explicitInputs;
+
+  /** For plans with a results node as root, the keys of its dependencies in order. */
+  private final ImmutableList<Key<?>> resultKeys;
+
+  private GraphPlan(
+      ImmutableList<NodePlan> nodes,
+      int root,
+      ImmutableMap<Key<?>, Integer> explicitInputs,
+      ImmutableList<Key<?>> resultKeys) {
+    this.nodes = nodes;
+    this.root = root;
+    this.explicitInputs = explicitInputs;
+    this.resultKeys = resultKeys;
+  }
+
+  /** Returns the nodes of this plan, with dependencies always preceding their consumers. */
+  ImmutableList<NodePlan> nodes() {
+    return nodes;
+  }
+
+  int root() {
+    return root;
+  }
+
+  ImmutableMap<Key<?>, Integer> explicitInputs() {
+    return explicitInputs;
+  }
+
+  ImmutableList<Key<?>> resultKeys() {
+    return resultKeys;
+  }
+
+  /**
+   * Returns, for every node, the estimated time from starting the node to the root of the plan
+   * being done, i.e., the length of the longest path of eager consumers from the node to the root
+   * weighted by the current latency estimates of their producers.
+   */
+  long[] criticalPathNanos() {
+    long[] result = new long[nodes.size()];
+    for (int i = nodes.size() - 1; i >= 0; --i) {
+      // Consumers always come after their dependencies, so they have already been computed.
+      NodePlan node = nodes.get(i);
+      long remaining = 0;
+      for (int consumer : node.consumers()) {
+        remaining = Math.max(remaining, result[consumer]);
+      }
+      result[i] = node.kind() == NodePlan.Kind.PRODUCER
+          ? remaining + node.producer().latencyEstimateNanos()
+          : remaining;
+    }
+    return result;
+  }
+
+  /** Describes a single node of a plan, i.e., everything about a node which is not run-specific. */
+  static class NodePlan {
+    enum Kind {
+      /** A node whose value is computed by invoking a producer. */
+      PRODUCER,
+
+      /** A node which assembles the values of its dependencies into a set. */
+      SET_ASSEMBLY,
+
+      /** A node whose value has to be supplied explicitly as input to the graph. */
+      INPUT,
+
+      /** The root of a graph with several outputs, collecting the values of its dependencies. */
+      RESULTS,
+    }
+
+    private final Kind kind;
+    private final Optional<ProducerRuntime> producer;
+
+    /** The raw type of the values of this node, which determines the kind of their presents. */
+    private final Class<?> valueType;
+    private final int[] dependencies;
+
+    /** Flags the lazy dependencies by index, or is empty if all dependencies are eager. */
+    private final boolean[] lazy;
+    private final int numEagerDependencies;
+    private final int[] consumers;
+    private final boolean consumesStreams;
+
+    private NodePlan(
+        Kind kind,
+        Optional<ProducerRuntime> producer,
+        Class<?> valueType,
+        int[] dependencies,
+        boolean[] lazy,
+        int[] consumers,
+        boolean consumesStreams) {
+      this.kind = kind;
+      this.producer = producer;
+      this.valueType = valueType;
+      this.dependencies = dependencies;
+      this.lazy = lazy;
+      this.consumers = consumers;
+      this.consumesStreams = consumesStreams;
+
+      int numLazy = 0;
+      for (boolean isLazy : lazy) {
+        numLazy += isLazy ? 1 : 0;
+      }
+      this.numEagerDependencies = dependencies.length - numLazy;
+    }
+
+    Kind kind() {
+      return kind;
+    }
+
+    /** Returns the producer for nodes of kind {@link Kind#PRODUCER}. */
+    ProducerRuntime producer() {
+      return producer.get();
+    }
+
+    Class<?> valueType() {
+      return valueType;
+    }
+
+    /** Returns the indices of the nodes which have to have completed before this node can run. */
+    int[] dependencies() {
+      return dependencies;
+    }
+
+    /**
+     * Returns whether the dependency with the supplied position is lazy, i.e., only computed once
+     * the producer asks for it rather than before the producer runs.
+     */
+    boolean isLazy(int dependency) {
+      return lazy.length > 0 && lazy[dependency];
+    }
+
+    /** Returns the number of dependencies which have to complete before this node can run. */
+    int numEagerDependencies() {
+      return numEagerDependencies;
+    }
+
+    /**
+     * Returns the indices of the nodes which consume the value of this node. A consumer appears
+     * once for every one of its eager dependencies which refers to this node.
+     */
+    int[] consumers() {
+      return consumers;
+    }
+
+    /** Returns whether any of the dependencies of this node produces a {@link ProducerStream}. */
+    boolean consumesStreams() {
+      return consumesStreams;
+    }
+
+    /** Returns whether this node is a producer whose value is a {@link ProducerStream}. */
+    private boolean producesStream() {
+      return producer.isPresent() && producer.get().binding().key().getTypeLiteral().getRawType()
+          == ProducerStream.class;
+    }
+
+    private NodePlan withConsumers(int[] consumers, boolean consumesStreams) {
+      return new NodePlan(
+          kind, producer, valueType, dependencies, lazy, consumers, consumesStreams);
+    }
+  }
+
+  /** Accumulates the nodes of a plan while the graph of producers is being resolved. */
+  static class Builder {
+    private final List<NodePlan> nodes;
+    private final HashMap<Key<?>, Integer> indices;
+    private final HashMap<ProducerRuntime, Integer> producerIndices;
+    private final HashMap<Key<?>, Integer> explicitInputs;
+    private ImmutableList<Key<?>> resultKeys;
+
+    Builder() {
+      this.nodes = new ArrayList<>();
+      this.indices = new HashMap<>();
+      this.producerIndices = new HashMap<>();
+      this.explicitInputs = new HashMap<>();
+      this.resultKeys = ImmutableList.of();
+    }
+
+    /** Returns the index of the node previously added for the supplied key, if any. */
+    Optional<Integer> indexOf(Key<?> key) {
+      return Optional.ofNullable(indices.get(key));
+    }
+
+    /**
+     * Returns the index of the node previously added for the supplied producer, if any. Unlike
+     * {@link #indexOf(Key)}, this also finds the nodes of producers which produce into a set.
+     */
+    Optional<Integer> indexOf(ProducerRuntime producer) {
+      return Optional.ofNullable(producerIndices.get(producer));
+    }
+
+    /**
+     * Adds a node which computes its value by invoking the supplied producer and returns its index.
+     * The returned node is not associated with any key.
+     */
+    int addProducer(ProducerRuntime producer, int[] dependencies, boolean[] lazy) {
+      Preconditions.checkState(
+          !producerIndices.containsKey(producer), "Already have a node for producer: " + producer);
+      Class<?> valueType = producer.binding().key().getTypeLiteral().getRawType();
+      int index = add(new NodePlan(NodePlan.Kind.PRODUCER, Optional.of(producer), valueType,
+          dependencies, lazy, NO_NODES, false /* consumesStreams */));
+      producerIndices.put(producer, index);
+      return index;
+    }
+
+    /** Adds a node which assembles its dependencies into a set and returns its index. */
+    int addSetAssembly(Key<?> key, int[] dependencies) {
+      int index = add(new NodePlan(NodePlan.Kind.SET_ASSEMBLY, Optional.empty(), ImmutableSet.class,
+          dependencies, ALL_EAGER, NO_NODES, false /* consumesStreams */));
+      associate(key, index);
+      return index;
+    }
+
+    /** Adds a node whose value is an explicit input of the graph and returns its index. */
+    int addInput(Key<?> key) {
+      int index = add(new NodePlan(NodePlan.Kind.INPUT, Optional.empty(),
+          key.getTypeLiteral().getRawType(), NO_NODES, ALL_EAGER, NO_NODES,
+          false /* consumesStreams */));
+      associate(key, index);
+      explicitInputs.put(key, index);
+      return index;
+    }
+
+    /**
+     * Adds a node which collects the values of the supplied nodes, which produce the given keys,
+     * and returns its index. Only the root of a plan can be such a node.
+     */
+    int addResults(ImmutableList<Key<?>> keys, int[] dependencies) {
+      Preconditions.checkState(resultKeys.isEmpty(), "Already have a results node");
+      resultKeys = keys;
+      return add(new NodePlan(NodePlan.Kind.RESULTS, Optional.empty(), ProducerResults.class,
+          dependencies, ALL_EAGER, NO_NODES, false /* consumesStreams */));
+    }
+
+    /** Records that the node with the supplied index produces the value for the supplied key. */
+    void associate(Key<?> key, int index) {
+      Preconditions.checkState(!indices.containsKey(key), "Already have a node for key: " + key);
+      indices.put(key, index);
+    }
+
+    <T> GraphPlan<T> build(int root) {
+      // Invert the eager dependency edges so that completing nodes can find their consumers
+      // directly. Lazy dependencies are requested explicitly instead.
+      int[] numConsumers = new int[nodes.size()];
+      int[] numEdges = new int[nodes.size()];
+      for (NodePlan node : nodes) {
+        for (int i = 0; i < node.dependencies().length; ++i) {
+          numEdges[node.dependencies()[i]]++;
+          if (!node.isLazy(i)) {
+            numConsumers[node.dependencies()[i]]++;
+          }
+        }
+      }
+      for (int i = 0; i < nodes.size(); ++i) {
+        if (nodes.get(i).producesStream() && numEdges[i] > 1) {
+          throw new IllegalArgumentException(
+              "Streams can only have a single consumer: " + nodes.get(i).producer());
+        }
+      }
+      int[][] consumers = new int[nodes.size()][];
+      for (int i = 0; i < nodes.size(); ++i) {
+        consumers[i] = numConsumers[i] == 0 ? NO_NODES : new int[numConsumers[i]];
+        numConsumers[i] = 0;
+      }
+      for (int i = 0; i < nodes.size(); ++i) {
+        NodePlan node = nodes.get(i);
+        for (int j = 0; j < node.dependencies().length; ++j) {
+          if (!node.isLazy(j)) {
+            int dependency = node.dependencies()[j];
+            consumers[dependency][numConsumers[dependency]++] = i;
+          }
+        }
+      }
+
+      ImmutableList.Builder<NodePlan> result = ImmutableList.builder();
+      for (int i = 0; i < nodes.size(); ++i) {
+        boolean consumesStreams = false;
+        for (int dependency : nodes.get(i).dependencies()) {
+          consumesStreams |= nodes.get(dependency).producesStream();
+        }
+        result.add(nodes.get(i).withConsumers(consumers[i], consumesStreams));
+      }
+      return new GraphPlan<>(
+          result.build(), root, ImmutableMap.copyOf(explicitInputs), resultKeys);
+    }
+
+    private int add(NodePlan node) {
+      for (int dependency : node.dependencies()) {
+        // Guarantees the topological ordering of the nodes in the resulting plan.
+        Preconditions.checkState(dependency < nodes.size(), "Dependency added after consumer");
+      }
+      nodes.add(node);
+      return nodes.size() - 1;
+    }
+  }
+}
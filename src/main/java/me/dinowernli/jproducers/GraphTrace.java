@@ -0,0 +1,194 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A record of a single graph run: when each of its producer nodes ran and which nodes it depended
+ * on. Only nodes which completed before the graph itself are included. Traces are collected for a
+ * sample of runs, see {@link ProducerContext.Builder#trace}.
+ */
+public class GraphTrace {
+  private final ImmutableList<Span> spans;
+  private final ImmutableSet<Integer> rootSpans;
+  private final long completedNanos;
+
+  GraphTrace(ImmutableList<Span> spans, ImmutableSet<Integer> rootSpans, long completedNanos) {
+    this.spans = spans;
+    this.rootSpans = rootSpans;
+    this.completedNanos = completedNanos;
+  }
+
+  /** Returns the spans of the nodes of the run, with dependencies preceding their consumers. */
+  public ImmutableList<Span> spans() {
+    return spans;
+  }
+
+  /** Returns the {@link System#nanoTime()} at which the result of the graph was available. */
+  public long completedNanos() {
+    return completedNanos;
+  }
+
+  /**
+   * Returns the chain of nodes which determined the latency of the run, starting with a node
+   * without dependencies and ending with the root. Each node is followed by its consumer, and is
+   * the dependency of that consumer which completed last.
+   */
+  public ImmutableList<Span> criticalPath() {
+    List<Span> result = new ArrayList<>();
+    Span current = lastCompleted(rootSpans);
+    while (current != null) {
+      result.add(current);
+      current = lastCompleted(current.dependencies());
+    }
+    Collections.reverse(result);
+    return ImmutableList.copyOf(result);
+  }
+
+  /**
+   * Returns the trace in the Chrome trace event format, which can be loaded by chrome://tracing or
+   * Perfetto. Every span gets its own row, and the spans on the critical path are marked. Numbers
+   * are always formatted the same way, regardless of the default locale.
+   */
+  public String toChromeTraceJson() {
+    long origin = origin();
+    ImmutableSet<Span> critical = ImmutableSet.copyOf(criticalPath());
+    StringBuilder result = new StringBuilder("{\"traceEvents\":[");
+    for (int i = 0; i < spans.size(); ++i) {
+      Span span = spans.get(i);
+      if (i > 0) {
+        result.append(',');
+      }
+      result.append(String.format(
+          Locale.ROOT,
+          "{\"name\":%s,\"cat\":\"producer\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,"
+              + "\"dur\":%.3f,\"args\":{\"queueMicros\":%.3f,\"runMicros\":%.3f,"
+              + "\"futureMicros\":%.3f,\"failed\":%b,\"critical\":%b}}",
+          quote(span.name()),
+          i,
+          micros(span.timing().scheduledNanos() - origin),
+          micros(span.timing().totalNanos()),
+          micros(span.timing().queueNanos()),
+          micros(span.timing().runNanos()),
+          micros(span.timing().futureNanos()),
+          span.failed(),
+          critical.contains(span)));
+    }
+    return result.append("],\"displayTimeUnit\":\"ms\"}").toString();
+  }
+
+  /**
+   * Returns the trace as a Graphviz digraph, with edges pointing from dependencies to their
+   * consumers. Nodes and edges on the critical path are highlighted.
+   */
+  public String toDot() {
+    ImmutableSet<Span> critical = ImmutableSet.copyOf(criticalPath());
+    StringBuilder result = new StringBuilder("digraph trace {\n");
+    for (int i = 0; i < spans.size(); ++i) {
+      Span span = spans.get(i);
+      result.append(String.format(
+          Locale.ROOT,
+          "  n%d [label=%s%s%s];\n",
+          i,
+          label(span),
+          critical.contains(span) ? ", color=red" : "",
+          span.failed() ? ", style=dashed" : ""));
+    }
+    for (int i = 0; i < spans.size(); ++i) {
+      Span span = spans.get(i);
+      for (int dependency : span.dependencies()) {
+        boolean onPath = critical.contains(span) && critical.contains(spans.get(dependency));
+        result.append(String.format(
+            Locale.ROOT, "  n%d -> n%d%s;\n", dependency, i, onPath ? " [color=red]" : ""));
+      }
+    }
+    return result.append("}\n").toString();
+  }
+
+  private Span lastCompleted(ImmutableSet<Integer> candidates) {
+    Span result = null;
+    for (int candidate : candidates) {
+      Span span = spans.get(candidate);
+      if (result == null
+          || span.timing().completedNanos() > result.timing().completedNanos()) {
+        result = span;
+      }
+    }
+    return result;
+  }
+
+  /** Returns the earliest timestamp of the trace, which all exported times are relative to. */
+  private long origin() {
+    long result = completedNanos;
+    for (Span span : spans) {
+      result = Math.min(result, span.timing().scheduledNanos());
+    }
+    return result;
+  }
+
+  private static double micros(long nanos) {
+    return nanos / 1e3;
+  }
+
+  private static String quote(String value) {
+    return '"' + escape(value) + '"';
+  }
+
+  /** Returns the quoted label of a span, with a line break before its latency. */
+  private static String label(Span span) {
+    // Only the name is escaped, since the line break must reach Graphviz as an escape sequence.
+    return String.format(
+        Locale.ROOT, "\"%s\\n%.3fms\"", escape(span.name()), span.timing().totalNanos() / 1e6);
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  /** The record of a single producer node of a traced run. */
+  public static class Span {
+    private final String name;
+    private final NodeTiming timing;
+    private final boolean failed;
+    private final ImmutableSet<Integer> dependencies;
+
+    Span(String name, NodeTiming timing, boolean failed, ImmutableSet<Integer> dependencies) {
+      this.name = name;
+      this.timing = timing;
+      this.failed = failed;
+      this.dependencies = dependencies;
+    }
+
+    /** Returns the name of the producer of the node. */
+    public String name() {
+      return name;
+    }
+
+    public NodeTiming timing() {
+      return timing;
+    }
+
+    /** Returns whether the node failed, was cancelled or timed out. */
+    public boolean failed() {
+      return failed;
+    }
+
+    /**
+     * Returns the positions in {@link GraphTrace#spans()} of the traced nodes this node depended
+     * on. Dependencies on sets refer to the producers of their elements.
+     */
+    public ImmutableSet<Integer> dependencies() {
+      return dependencies;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Span{name=%s, timing=%s, failed=%b}", name, timing, failed);
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package me.dinowernli.jproducers;
+
+/** A snapshot of the hedging of a single producer, see {@code @Hedged}. */
+public class HedgeStats {
+  private final long executions;
+  private final long hedges;
+  private final long wins;
+  private final long cappedHedges;
+  private final long delayNanos;
+
+  HedgeStats(long executions, long hedges, long wins, long cappedHedges, long delayNanos) {
+    this.executions = executions;
+    this.hedges = hedges;
+    this.wins = wins;
+    this.cappedHedges = cappedHedges;
+    this.delayNanos = delayNanos;
+  }
+
+  /** Returns the number of executions of the producer which returned a future. */
+  public long executions() {
+    return executions;
+  }
+
+  /** Returns the number of second attempts started for slow executions. */
+  public long hedges() {
+    return hedges;
+  }
+
+  /** Returns the number of second attempts which succeeded before the first attempt. */
+  public long wins() {
+    return wins;
+  }
+
+  /** Returns the number of slow executions which were not hedged to bound the extra load. */
+  public long cappedHedges() {
+    return cappedHedges;
+  }
+
+  /**
+   * Returns the current time after which a slow execution is hedged, or zero if too few latencies
+   * have been observed to hedge yet.
+   */
+  public long delayNanos() {
+    return delayNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "HedgeStats{executions=%d, hedges=%d, wins=%d, capped=%d, delay=%dns}",
+        executions, hedges, wins, cappedHedges, delayNanos);
+  }
+}
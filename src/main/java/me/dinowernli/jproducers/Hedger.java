@@ -0,0 +1,182 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Hedges the slow executions of a producer returning futures. Once the future returned by an
+ * execution has been pending for longer than a percentile of the latencies observed so far, a
+ * second attempt is started and the execution takes the value of whichever attempt succeeds
+ * first. The number of second attempts is bounded by a fraction of all executions.
+ */
+class Hedger {
+  /** The number of latencies to observe before hedging, so the percentile is meaningful. */
+  private static final long MIN_SAMPLES = 20;
+
+  /** The number of latencies after which the hedging delay is recomputed from the histogram. */
+  private static final long REFRESH_EVERY = 64;
+
+  private final double percentile;
+  private final double maxExtraLoad;
+  private final ScheduledExecutorService timer;
+
+  /** The latencies of first attempts, see {@link #hedge}. */
+  private final LatencyHistogram.Recorder latencies;
+  private final AtomicLong samples;
+
+  /** The time after which a pending execution is hedged, or zero before enough samples. */
+  private volatile long delayNanos;
+
+  private final AtomicLong executions;
+  private final AtomicLong hedges;
+  private final LongAdder wins;
+  private final LongAdder cappedHedges;
+
+  Hedger(double percentile, double maxExtraLoad, ScheduledExecutorService timer) {
+    this.percentile = percentile;
+    this.maxExtraLoad = maxExtraLoad;
+    this.timer = timer;
+    this.latencies = new LatencyHistogram.Recorder();
+    this.samples = new AtomicLong();
+    this.executions = new AtomicLong();
+    this.hedges = new AtomicLong();
+    this.wins = new LongAdder();
+    this.cappedHedges = new LongAdder();
+  }
+
+  /**
+   * Returns a future which follows the supplied future returned by an execution, and which may
+   * instead take the value of a second attempt started through the given supplier if the execution
+   * is slow. Cancelling the returned future cancels both attempts.
+   */
+  ListenableFuture<Object> hedge(
+      ListenableFuture<Object> primary, Supplier<ListenableFuture<Object>> secondAttempt) {
+    executions.incrementAndGet();
+    long startNanos = System.nanoTime();
+    long delay = delayNanos;
+    if (delay == 0) {
+      primary.addListener(() -> {
+        if (!primary.isCancelled()) {
+          record(System.nanoTime() - startNanos);
+        }
+      }, MoreExecutors.directExecutor());
+      return primary;
+    }
+    return new Race(primary, secondAttempt, startNanos, delay).result;
+  }
+
+  HedgeStats stats() {
+    return new HedgeStats(
+        executions.get(), hedges.get(), wins.sum(), cappedHedges.sum(), delayNanos);
+  }
+
+  private void record(long nanos) {
+    latencies.record(nanos);
+    long count = samples.incrementAndGet();
+    if (count == MIN_SAMPLES || (count > MIN_SAMPLES && count % REFRESH_EVERY == 0)) {
+      delayNanos = Math.max(1, latencies.snapshot().percentileNanos(percentile));
+    }
+  }
+
+  /** Reserves one second attempt, unless that would exceed the bound on the extra load. */
+  private boolean reserveHedge() {
+    if (hedges.incrementAndGet() <= maxExtraLoad * executions.get()) {
+      return true;
+    }
+    hedges.decrementAndGet();
+    cappedHedges.increment();
+    return false;
+  }
+
+  /** Returns whether the supplied future, which must be done, has failed or was cancelled. */
+  private static boolean failed(ListenableFuture<Object> future) {
+    try {
+      Futures.getDone(future);
+      return false;
+    } catch (ExecutionException | CancellationException e) {
+      return true;
+    }
+  }
+
+  /** The attempts of a single hedged execution. */
+  private class Race {
+    private final ListenableFuture<Object> primary;
+    private final Supplier<ListenableFuture<Object>> secondAttempt;
+    private final long startNanos;
+    private final SettableFuture<Object> result;
+    private final ScheduledFuture<?> scheduledHedge;
+    private volatile ListenableFuture<Object> hedge;
+
+    private Race(
+        ListenableFuture<Object> primary,
+        Supplier<ListenableFuture<Object>> secondAttempt,
+        long startNanos,
+        long delayNanos) {
+      this.primary = primary;
+      this.secondAttempt = secondAttempt;
+      this.startNanos = startNanos;
+      this.result = SettableFuture.create();
+      this.scheduledHedge = timer.schedule(this::startHedge, delayNanos, TimeUnit.NANOSECONDS);
+      primary.addListener(this::onPrimaryDone, MoreExecutors.directExecutor());
+      result.addListener(this::onResultDone, MoreExecutors.directExecutor());
+    }
+
+    /** Runs on the timer once the execution has been pending for the hedging delay. */
+    private void startHedge() {
+      if (primary.isDone() || result.isDone() || !reserveHedge()) {
+        return;
+      }
+      ListenableFuture<Object> attempt = secondAttempt.get();
+      hedge = attempt;
+      attempt.addListener(() -> {
+        if (complete(attempt, primary) && !failed(attempt)) {
+          wins.increment();
+          // The first attempt took at least this long, which is all that is known about it.
+          record(System.nanoTime() - startNanos);
+        }
+      }, MoreExecutors.directExecutor());
+      if (result.isDone()) {
+        // Completed while the second attempt was being started.
+        attempt.cancel(true);
+      }
+    }
+
+    private void onPrimaryDone() {
+      if (!primary.isCancelled()) {
+        record(System.nanoTime() - startNanos);
+      }
+      complete(primary, hedge);
+    }
+
+    /**
+     * Completes the result with the supplied attempt, which is done, unless it has failed while
+     * the other attempt may still succeed. Returns whether the result was completed.
+     */
+    private boolean complete(ListenableFuture<Object> attempt, ListenableFuture<Object> other) {
+      if (failed(attempt) && other != null && !other.isDone()) {
+        return false;
+      }
+      return result.setFuture(attempt);
+    }
+
+    private void onResultDone() {
+      scheduledHedge.cancel(false);
+      primary.cancel(true);
+      ListenableFuture<Object> attempt = hedge;
+      if (attempt != null) {
+        attempt.cancel(true);
+      }
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.Key;
+import me.dinowernli.jproducers.GraphPlan.NodePlan;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A graph for a specific output type which can be run repeatedly while its explicit inputs
+ * change. Every run only recomputes the nodes which transitively depend on inputs updated since the
+ * previous run, and reuses the values memoized by earlier runs for all other nodes. Producers must
+ * therefore be deterministic functions of their dependencies.
+ *
+ * <p>With early cutoff enabled, a recomputed node whose value equals its previous value does not
+ * cause its consumers to be recomputed either. Values are compared using {@link Object#equals}, and
+ * failures are never considered equal.
+ *
+ * <p>Runs must not overlap, and inputs can only be updated while no run is in progress.
+ */
+public class IncrementalGraph<T> {
+  private final GraphPlan<T> plan;
+  private final ScheduledExecutorService timer;
+  private final ImmutableList<GraphListener> listeners;
+  private final Supplier<Optional<Consumer<GraphTrace>>> traceSampler;
+  private final boolean prioritized;
+
+  /** For every node, the indices of all the nodes which consume it, eagerly or lazily. */
+  private final int[][] dependents;
+
+  /** The values of the explicit inputs for the next run, indexed like the nodes of the plan. */
+  private final ListenableFuture<?>[] inputs;
+
+  /** The values of the nodes as of the last run in which they were computed, if any. */
+  private ListenableFuture<?>[] memoized;
+
+  /** Whether a node has to be recomputed, i.e., whether its memoized value may be outdated. */
+  private boolean[] stale;
+
+  private boolean earlyCutoff;
+  private ListenableFuture<T> currentRun;
+
+  IncrementalGraph(
+      GraphPlan<T> plan,
+      ScheduledExecutorService timer,
+      ImmutableList<GraphListener> listeners,
+      Supplier<Optional<Consumer<GraphTrace>>> traceSampler,
+      boolean prioritized) {
+    this.plan = plan;
+    this.timer = timer;
+    this.listeners = listeners;
+    this.traceSampler = traceSampler;
+    this.prioritized = prioritized;
+    this.dependents = dependents(plan);
+    this.inputs = new ListenableFuture<?>[plan.nodes().size()];
+    this.memoized = new ListenableFuture<?>[plan.nodes().size()];
+    this.stale = new boolean[plan.nodes().size()];
+    Arrays.fill(stale, true);
+    this.earlyCutoff = false;
+    this.currentRun = Futures.immediateCancelledFuture();
+  }
+
+  /**
+   * Stops propagating changes through nodes whose recomputed value equals their previous value.
+   * Setting an input to a value equal to its current one then has no effect at all.
+   */
+  public synchronized IncrementalGraph<T> enableEarlyCutoff() {
+    earlyCutoff = true;
+    return this;
+  }
+
+  /**
+   * Sets the value of an explicit input for the next run, which invalidates all nodes that
+   * transitively depend on it.
+   */
+  public synchronized <I> IncrementalGraph<T> setInput(Key<I> key, I value) {
+    Preconditions.checkState(currentRun.isDone(), "Cannot update inputs during a run");
+    Integer index = plan.explicitInputs().get(key);
+    if (index == null) {
+      throw new IllegalArgumentException("Attempted to bind unexpected input for key: " + key);
+    }
+    ListenableFuture<I> future = Futures.immediateFuture(value);
+    if (earlyCutoff && inputs[index] != null && sameValue(inputs[index], future)) {
+      return this;
+    }
+    inputs[index] = future;
+    invalidate(index);
+    return this;
+  }
+
+  /**
+   * Computes the value of the root, running only the nodes invalidated since the previous run.
+   * Cancelling the returned future cancels the outstanding work of this run, whose nodes are then
+   * recomputed by the next run.
+   */
+  public synchronized ListenableFuture<T> run() {
+    Preconditions.checkState(currentRun.isDone(), "Previous run still in progress");
+
+    // Snapshots the memoized state, since late nodes of this run may still consult it while the
+    // next run is being prepared.
+    ListenableFuture<?>[] previous = memoized.clone();
+    boolean[] wasStale = stale.clone();
+    Optional<Graph.Memo> memo = earlyCutoff
+        ? Optional.of((graph, index) -> reusableValue(graph, index, previous, wasStale))
+        : Optional.empty();
+
+    Graph<T> graph = new Graph<>(plan, timer, listeners, traceSampler.get(), memo, prioritized);
+    for (int i = 0; i < inputs.length; ++i) {
+      if (inputs[i] != null) {
+        graph.seed(i, inputs[i]);
+      } else if (!wasStale[i]) {
+        graph.seed(i, previous[i]);
+      }
+    }
+    // The values are memoized before the returned future completes, since callers waiting for it
+    // are woken before the listeners of the graph's own future run. Otherwise, the next inputs
+    // could be set before this run has been memoized, which would then mark them as up to date.
+    ListenableFuture<T> result = graph.run();
+    currentRun = Futures.whenAllComplete(result).callAsync(() -> {
+      memoize(graph);
+      return result;
+    }, MoreExecutors.directExecutor());
+    return currentRun;
+  }
+
+  /** Marks the supplied node and all nodes which transitively depend on it as stale. */
+  private void invalidate(int index) {
+    boolean[] visited = new boolean[stale.length];
+    ArrayDeque<Integer> pending = new ArrayDeque<>();
+    pending.push(index);
+    while (!pending.isEmpty()) {
+      int current = pending.pop();
+      if (visited[current]) {
+        continue;
+      }
+      visited[current] = true;
+      stale[current] = true;
+      for (int dependent : dependents[current]) {
+        pending.push(dependent);
+      }
+    }
+  }
+
+  /** Records the values of the nodes which completed during the supplied run. */
+  private synchronized void memoize(Graph<T> graph) {
+    for (int i = 0; i < memoized.length; ++i) {
+      ListenableFuture<?> value = graph.valueOf(i);
+      if (value.isDone() && !value.isCancelled()) {
+        memoized[i] = value;
+        stale[i] = false;
+      } else if (stale[i]) {
+        // Not recomputed, e.g., an untaken lazy dependency, so the old value must not be used.
+        memoized[i] = null;
+      }
+    }
+  }
+
+  /**
+   * Returns the previous value of a stale node if none of its dependencies have changed, i.e., if
+   * each of them is either not stale or was recomputed to a value equal to its previous one.
+   */
+  private Optional<ListenableFuture<?>> reusableValue(
+      Graph<?> graph, int index, ListenableFuture<?>[] previous, boolean[] wasStale) {
+    if (previous[index] == null) {
+      return Optional.empty();
+    }
+    for (int dependency : plan.nodes().get(index).dependencies()) {
+      if (!wasStale[dependency]) {
+        continue;
+      }
+      ListenableFuture<?> current = graph.valueOf(dependency);
+      if (previous[dependency] == null
+          || !current.isDone()
+          || !sameValue(previous[dependency], current)) {
+        return Optional.empty();
+      }
+    }
+    return Optional.of(previous[index]);
+  }
+
+  /** Returns whether both futures are done and have succeeded with equal values. */
+  private static boolean sameValue(ListenableFuture<?> first, ListenableFuture<?> second) {
+    if (!first.isDone() || !second.isDone() || first.isCancelled() || second.isCancelled()) {
+      return false;
+    }
+    try {
+      return Objects.equals(Futures.getDone(first), Futures.getDone(second));
+    } catch (ExecutionException e) {
+      return false;
+    }
+  }
+
+  /** Returns, for every node of the plan, the nodes which depend on it. */
+  private static int[][] dependents(GraphPlan<?> plan) {
+    ImmutableList<NodePlan> nodes = plan.nodes();
+    int[] numDependents = new int[nodes.size()];
+    for (NodePlan node : nodes) {
+      for (int dependency : node.dependencies()) {
+        numDependents[dependency]++;
+      }
+    }
+    int[][] result = new int[nodes.size()][];
+    for (int i = 0; i < nodes.size(); ++i) {
+      result[i] = new int[numDependents[i]];
+      numDependents[i] = 0;
+    }
+    for (int i = 0; i < nodes.size(); ++i) {
+      for (int dependency : nodes.get(i).dependencies()) {
+        result[dependency][numDependents[dependency]++] = i;
+      }
+    }
+    return result;
+  }
+}
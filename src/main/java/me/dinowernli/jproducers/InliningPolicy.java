@@ -0,0 +1,51 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.base.Preconditions;
+
+import java.time.Duration;
+
+/**
+ * Decides which producers of a {@link ProducerContext} run inline, i.e., directly on the thread
+ * which completed their last dependency, instead of being handed off to the executor. Producers
+ * annotated with {@code @Inline} always run inline.
+ */
+public class InliningPolicy {
+  /** The number of executions to measure before the adaptive policy starts inlining a producer. */
+  static final int ADAPTIVE_WARMUP_EXECUTIONS = 16;
+
+  private static final InliningPolicy ANNOTATED_ONLY = new InliningPolicy(0L /* threshold */);
+
+  /** Producers whose average execution time stays below this many nanos are inlined. */
+  private final long thresholdNanos;
+
+  private InliningPolicy(long thresholdNanos) {
+    this.thresholdNanos = thresholdNanos;
+  }
+
+  /** Returns a policy which only inlines producers annotated with {@code @Inline}. */
+  public static InliningPolicy annotatedOnly() {
+    return ANNOTATED_ONLY;
+  }
+
+  /**
+   * Returns a policy which, in addition to the annotated producers, inlines every producer whose
+   * measured average execution time stays below the supplied threshold. Only the synchronous part
+   * of a producer counts, i.e., the time until it returns a value or a future.
+   */
+  public static InliningPolicy adaptive(Duration threshold) {
+    Preconditions.checkArgument(!threshold.isNegative() && !threshold.isZero());
+    return new InliningPolicy(threshold.toNanos());
+  }
+
+  /** Returns whether the execution times of producers need to be measured for this policy. */
+  boolean isAdaptive() {
+    return thresholdNanos > 0;
+  }
+
+  /** Returns whether a producer with the supplied execution time statistics should run inline. */
+  boolean shouldInline(long executions, long averageNanos) {
+    return isAdaptive()
+        && executions >= ADAPTIVE_WARMUP_EXECUTIONS
+        && averageNanos < thresholdNanos;
+  }
+}
@@ -0,0 +1,76 @@
+package me.dinowernli.jproducers;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * Invokes a producer with already-assembled arguments and returns its raw output, i.e., either a
+ * value or a {@link com.google.common.util.concurrent.ListenableFuture}.
+ */
+@FunctionalInterface
+public interface Invoker {
+  Object invoke(Object[] arguments) throws Throwable;
+
+  /**
+   * Returns an invoker which directly calls the supplied static method through a spreading
+   * {@link MethodHandle}. All access checks happen once, here, rather than on every invocation.
+   */
+  static Invoker forMethod(Method method) {
+    MethodHandle handle;
+    try {
+      method.setAccessible(true);
+      handle = MethodHandles.lookup().unreflect(method);
+    } catch (IllegalAccessException | RuntimeException e) {
+      throw new IllegalArgumentException("Unable to access producer: " + method, e);
+    }
+    MethodHandle spreader = handle.asSpreader(Object[].class, method.getParameterCount());
+    Class<?> returnType = method.getReturnType();
+    if (returnType == int.class) {
+      MethodHandle typed = spreader.asType(MethodType.methodType(int.class, Object[].class));
+      return (OfInt) arguments -> (int) typed.invokeExact(arguments);
+    } else if (returnType == long.class) {
+      MethodHandle typed = spreader.asType(MethodType.methodType(long.class, Object[].class));
+      return (OfLong) arguments -> (long) typed.invokeExact(arguments);
+    } else if (returnType == double.class) {
+      MethodHandle typed = spreader.asType(MethodType.methodType(double.class, Object[].class));
+      return (OfDouble) arguments -> (double) typed.invokeExact(arguments);
+    }
+    MethodHandle typed = spreader.asType(MethodType.methodType(Object.class, Object[].class));
+    return arguments -> typed.invokeExact(arguments);
+  }
+
+  /** An invoker for producers returning an int, which can be called without boxing the output. */
+  @FunctionalInterface
+  interface OfInt extends Invoker {
+    int invokeInt(Object[] arguments) throws Throwable;
+
+    @Override
+    default Object invoke(Object[] arguments) throws Throwable {
+      return invokeInt(arguments);
+    }
+  }
+
+  /** An invoker for producers returning a long, which can be called without boxing the output. */
+  @FunctionalInterface
+  interface OfLong extends Invoker {
+    long invokeLong(Object[] arguments) throws Throwable;
+
+    @Override
+    default Object invoke(Object[] arguments) throws Throwable {
+      return invokeLong(arguments);
+    }
+  }
+
+  /** An invoker for producers returning a double, which can be called without boxing the output. */
+  @FunctionalInterface
+  interface OfDouble extends Invoker {
+    double invokeDouble(Object[] arguments) throws Throwable;
+
+    @Override
+    default Object invoke(Object[] arguments) throws Throwable {
+      return invokeDouble(arguments);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A snapshot of a distribution of latencies. Latencies are counted in buckets whose bounds are
+ * powers of two nanoseconds, so percentiles are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+  /** Bucket 0 holds zero, bucket i > 0 holds the values in [2^(i-1), 2^i). */
+  private static final int NUM_BUCKETS = 64;
+
+  private final long[] buckets;
+  private final long count;
+  private final long sumNanos;
+  private final long maxNanos;
+
+  private LatencyHistogram(long[] buckets, long count, long sumNanos, long maxNanos) {
+    this.buckets = buckets;
+    this.count = count;
+    this.sumNanos = sumNanos;
+    this.maxNanos = maxNanos;
+  }
+
+  /** Returns the number of recorded latencies. */
+  public long count() {
+    return count;
+  }
+
+  public long meanNanos() {
+    return count == 0 ? 0 : sumNanos / count;
+  }
+
+  public long maxNanos() {
+    return maxNanos;
+  }
+
+  /**
+   * Returns an upper bound for the supplied percentile (between 0 and 100) of the recorded
+   * latencies, or zero if there are none.
+   */
+  public long percentileNanos(double percentile) {
+    Preconditions.checkArgument(
+        percentile >= 0 && percentile <= 100, "Percentile must be between 0 and 100");
+    long rank = (long) Math.ceil(percentile / 100 * count);
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      seen += buckets[i];
+      if (seen >= rank && seen > 0) {
+        return Math.min(upperBound(i), maxNanos);
+      }
+    }
+    return maxNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "LatencyHistogram{count=%d, mean=%dns, p50=%dns, p99=%dns, max=%dns}",
+        count, meanNanos(), percentileNanos(50), percentileNanos(99), maxNanos);
+  }
+
+  private static long upperBound(int bucket) {
+    return bucket == NUM_BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+  }
+
+  /** Records latencies without locking or allocating. */
+  static class Recorder {
+    private final AtomicLongArray buckets;
+    private final LongAdder sumNanos;
+    private final AtomicLong maxNanos;
+
+    Recorder() {
+      this.buckets = new AtomicLongArray(NUM_BUCKETS);
+      this.sumNanos = new LongAdder();
+      this.maxNanos = new AtomicLong();
+    }
+
+    void record(long nanos) {
+      // Guards against clocks going backwards.
+      long latency = Math.max(nanos, 0);
+      buckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(latency), NUM_BUCKETS - 1));
+      sumNanos.add(latency);
+      if (latency > maxNanos.get()) {
+        maxNanos.accumulateAndGet(latency, Math::max);
+      }
+    }
+
+    /** Returns the current distribution. Concurrent recordings may be partially included. */
+    LatencyHistogram snapshot() {
+      long[] result = new long[NUM_BUCKETS];
+      long total = 0;
+      for (int i = 0; i < NUM_BUCKETS; ++i) {
+        result[i] = buckets.get(i);
+        total += result[i];
+      }
+      return new LatencyHistogram(result, total, sumNanos.sum(), maxNanos.get());
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link GraphListener} which aggregates latency histograms and failure counts per producer
+ * across all the graphs of a context. Recording does not lock, and only allocates the first time
+ * a producer completes.
+ */
+public class LatencyRecorder implements GraphListener {
+  private final ConcurrentHashMap<String, ProducerRecorder> producers;
+
+  public LatencyRecorder() {
+    this.producers = new ConcurrentHashMap<>();
+  }
+
+  /** Returns the stats of every producer which has completed so far, keyed by producer name. */
+  public ImmutableMap<String, ProducerLatencyStats> stats() {
+    ImmutableMap.Builder<String, ProducerLatencyStats> result = ImmutableMap.builder();
+    for (Map.Entry<String, ProducerRecorder> entry : producers.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().snapshot());
+    }
+    return result.build();
+  }
+
+  @Override
+  public void onSucceeded(Graph<?> graph, ProducerBinding producer, NodeTiming timing) {
+    recorderFor(producer).record(timing);
+  }
+
+  @Override
+  public void onFailed(
+      Graph<?> graph, ProducerBinding producer, NodeTiming timing, Throwable error) {
+    ProducerRecorder recorder = recorderFor(producer);
+    recorder.failures.increment();
+    recorder.record(timing);
+  }
+
+  private ProducerRecorder recorderFor(ProducerBinding producer) {
+    // Avoids the locking of computeIfAbsent in the common case.
+    ProducerRecorder recorder = producers.get(producer.name());
+    return recorder != null
+        ? recorder
+        : producers.computeIfAbsent(producer.name(), name -> new ProducerRecorder());
+  }
+
+  private static class ProducerRecorder {
+    private final LongAdder failures = new LongAdder();
+    private final LatencyHistogram.Recorder queue = new LatencyHistogram.Recorder();
+    private final LatencyHistogram.Recorder run = new LatencyHistogram.Recorder();
+    private final LatencyHistogram.Recorder future = new LatencyHistogram.Recorder();
+    private final LatencyHistogram.Recorder total = new LatencyHistogram.Recorder();
+
+    private void record(NodeTiming timing) {
+      queue.record(timing.queueNanos());
+      run.record(timing.runNanos());
+      future.record(timing.futureNanos());
+      total.record(timing.totalNanos());
+    }
+
+    private ProducerLatencyStats snapshot() {
+      return new ProducerLatencyStats(
+          failures.sum(), queue.snapshot(), run.snapshot(), future.snapshot(), total.snapshot());
+    }
+  }
+}
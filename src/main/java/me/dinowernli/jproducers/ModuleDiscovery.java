@@ -0,0 +1,200 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Resources;
+import me.dinowernli.jproducers.Annotations.ProducerModule;
+import me.dinowernli.jproducers.naming.GeneratedNames;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finds the classes annotated with {@link ProducerModule} available to a class loader and returns
+ * their {@link ProducerFactory} instances.
+ *
+ * <p>The primary source of modules is the index resource written by the annotation processor for
+ * every library it runs on, so discovery only needs to read one small file per library and load the
+ * listed modules. For libraries compiled without the processor, the classpath can optionally be
+ * scanned instead.
+ */
+public class ModuleDiscovery {
+  /** How {@link ProducerModule} shows up in the constant pool of classes annotated with it. */
+  private static final byte[] MODULE_DESCRIPTOR =
+      ("L" + ProducerModule.class.getName().replace('.', '/') + ";")
+          .getBytes(StandardCharsets.UTF_8);
+
+  /** Returns the factories for all modules listed in the module indices of the class loader. */
+  public static ImmutableList<ProducerFactory> fromIndex(ClassLoader classLoader) {
+    return factoriesFor(indexedModules(classLoader), classLoader);
+  }
+
+  /**
+   * Returns the factories for all modules listed in the module indices of the class loader, and
+   * additionally for all modules found by scanning the entries of the supplied classpath which do
+   * not carry a module index themselves. Classpath entries are scanned in parallel, and only the
+   * classes which reference {@link ProducerModule} are actually loaded.
+   */
+  public static ImmutableList<ProducerFactory> fromIndexAndClasspath(
+      ClassLoader classLoader, String classpath) {
+    ImmutableSet.Builder<String> modules = ImmutableSet.builder();
+    modules.addAll(indexedModules(classLoader));
+    modules.addAll(scanClasspath(classpath));
+    return factoriesFor(modules.build(), classLoader);
+  }
+
+  /**
+   * Returns the binary names of the candidate modules found in those entries of the supplied
+   * classpath which do not have a module index.
+   */
+  static ImmutableSet<String> scanClasspath(String classpath) {
+    List<String> entries = Splitter.on(File.pathSeparatorChar).omitEmptyStrings()
+        .splitToList(classpath);
+    return entries.parallelStream()
+        .map(File::new)
+        .filter(File::exists)
+        .flatMap(ModuleDiscovery::scanEntry)
+        .collect(ImmutableSet.toImmutableSet());
+  }
+
+  /** Returns the binary names of the modules listed in any index visible to the class loader. */
+  private static ImmutableSet<String> indexedModules(ClassLoader classLoader) {
+    ImmutableSet.Builder<String> result = ImmutableSet.builder();
+    try {
+      for (URL index : Collections.list(classLoader.getResources(GeneratedNames.MODULE_INDEX))) {
+        result.addAll(parseIndex(Resources.toString(index, StandardCharsets.UTF_8)));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to read producer module index", e);
+    }
+    return result.build();
+  }
+
+  private static Iterable<String> parseIndex(String content) {
+    return Splitter.on('\n').trimResults().omitEmptyStrings().split(content);
+  }
+
+  /** Returns the binary names of the candidate modules in a single jar or class directory. */
+  private static Stream<String> scanEntry(File entry) {
+    try {
+      return entry.isDirectory() ? scanDirectory(entry.toPath()) : scanJar(entry);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to scan classpath entry " + entry, e);
+    }
+  }
+
+  private static Stream<String> scanDirectory(Path root) throws IOException {
+    Path index = root.resolve(GeneratedNames.MODULE_INDEX);
+    if (Files.exists(index)) {
+      // Already covered by the index lookup through the class loader.
+      return Stream.empty();
+    }
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    try (Stream<Path> files = Files.walk(root)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        String relative = root.relativize(file).toString().replace(File.separatorChar, '/');
+        if (relative.endsWith(".class") && referencesModule(Files.readAllBytes(file))) {
+          result.add(binaryName(relative));
+        }
+      }
+    }
+    return result.build().stream();
+  }
+
+  private static Stream<String> scanJar(File jar) throws IOException {
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    try (ZipFile zip = new ZipFile(jar)) {
+      if (zip.getEntry(GeneratedNames.MODULE_INDEX) != null) {
+        // Already covered by the index lookup through the class loader.
+        return Stream.empty();
+      }
+      Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+      while (zipEntries.hasMoreElements()) {
+        ZipEntry zipEntry = zipEntries.nextElement();
+        if (!zipEntry.getName().endsWith(".class") || zipEntry.getName().startsWith("META-INF/")) {
+          continue;
+        }
+        try (InputStream in = zip.getInputStream(zipEntry)) {
+          if (referencesModule(ByteStreams.toByteArray(in))) {
+            result.add(binaryName(zipEntry.getName()));
+          }
+        }
+      }
+    }
+    return result.build().stream();
+  }
+
+  /**
+   * Returns whether the supplied class file mentions the {@link ProducerModule} descriptor. This is
+   * a cheap necessary condition for being annotated, the class still has to be checked once loaded.
+   */
+  private static boolean referencesModule(byte[] classFile) {
+    outer:
+    for (int i = 0; i <= classFile.length - MODULE_DESCRIPTOR.length; ++i) {
+      for (int j = 0; j < MODULE_DESCRIPTOR.length; ++j) {
+        if (classFile[i + j] != MODULE_DESCRIPTOR[j]) {
+          continue outer;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private static String binaryName(String classFilePath) {
+    return classFilePath.substring(0, classFilePath.length() - ".class".length()).replace('/', '.');
+  }
+
+  private static ImmutableList<ProducerFactory> factoriesFor(
+      ImmutableSet<String> modules, ClassLoader classLoader) {
+    ImmutableList.Builder<ProducerFactory> result = ImmutableList.builder();
+    for (String module : modules) {
+      Class<?> moduleClass = loadClass(module, classLoader);
+      if (!moduleClass.isAnnotationPresent(ProducerModule.class)) {
+        continue;
+      }
+      result.add(factoryFor(moduleClass, classLoader));
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns the generated factory for the supplied module if there is one, and falls back to
+   * discovering its producers reflectively otherwise.
+   */
+  static ProducerFactory factoryFor(Class<?> module, ClassLoader classLoader) {
+    Class<?> factoryClass;
+    try {
+      factoryClass = Class.forName(GeneratedNames.factoryName(module.getName()), true, classLoader);
+    } catch (ClassNotFoundException e) {
+      return new ReflectiveProducerFactory(module);
+    }
+    try {
+      return (ProducerFactory) factoryClass.getConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Unable to instantiate producer factory " + factoryClass, e);
+    }
+  }
+
+  private static Class<?> loadClass(String name, ClassLoader classLoader) {
+    try {
+      return Class.forName(name, false /* initialize */, classLoader);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException("Unable to load producer module " + name, e);
+    }
+  }
+}
@@ -3,141 +3,524 @@ package me.dinowernli.jproducers;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import me.dinowernli.jproducers.GraphPlan.NodePlan;
 
-import java.lang.annotation.Retention;
-import java.lang.annotation.RetentionPolicy;
-import java.lang.reflect.Method;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
-/** Holds the execution state of a single producer in a specific graph execution. */
-class Node<T> {
-  private final Optional<Method> producer;
-  private final ImmutableList<Node<?>> dependencies;
-  private final SettableFuture<T> value;
+/**
+ * Holds the execution state of a single producer in a specific graph execution. The node is itself
+ * the future holding its value, so that executing a node allocates as little as possible: the
+ * graph is notified of its completion directly rather than through a listener, its counters are
+ * plain fields, and all consumers share a single {@link Present} of its value.
+ */
+class Node<T> extends AbstractFuture<T> implements Runnable {
+  // The updaters refer to the raw class, since class literals cannot be parameterized.
+  @SuppressWarnings("rawtypes")
+  private static final AtomicIntegerFieldUpdater<Node> PENDING_DEPENDENCIES =
+      AtomicIntegerFieldUpdater.newUpdater(Node.class, "pendingDependencies");
+  @SuppressWarnings("rawtypes")
+  private static final AtomicIntegerFieldUpdater<Node> DEMANDED =
+      AtomicIntegerFieldUpdater.newUpdater(Node.class, "demanded");
+  @SuppressWarnings("rawtypes")
+  private static final AtomicIntegerFieldUpdater<Node> LIVE_CONSUMERS =
+      AtomicIntegerFieldUpdater.newUpdater(Node.class, "liveConsumers");
+  @SuppressWarnings("rawtypes")
+  private static final AtomicIntegerFieldUpdater<Node> NOTIFIED =
+      AtomicIntegerFieldUpdater.newUpdater(Node.class, "notified");
 
-  static <T> Node<T> createComputedNode(Method producer, ImmutableList<Node<?>> dependencies) {
-    return new Node<>(Optional.of(producer), dependencies);
+  private final NodePlan plan;
+
+  /**
+   * The number of eager dependencies which have yet to complete before this node can run, plus one
+   * until the value of this node has been demanded.
+   */
+  private volatile int pendingDependencies;
+
+  /** Whether (1) or not (0) the value of this node has been demanded, eagerly or lazily. */
+  private volatile int demanded;
+
+  /**
+   * The number of demanded consumers which may still need the value of this node. The node is
+   * cancelled once this drops to zero before the node is done.
+   */
+  private volatile int liveConsumers;
+
+  /** Whether (1) or not (0) the graph has been notified of the completion of this node. */
+  private volatile int notified;
+
+  /** The value of this node as passed to consumers, created once the node is done. */
+  private volatile Present<T> present;
+
+  /** The arguments of the producer, only held from starting the node until it runs. */
+  private Object[] arguments;
+
+  /** Whether the producer returns a primitive, which this node holds without boxing it. */
+  private final boolean primitive;
+
+  /**
+   * The output of a producer returning a primitive. The future itself then only holds a
+   * placeholder, and the value is only boxed if requested through {@link #get}.
+   */
+  private volatile Present<T> unboxedOutput;
+
+  /** The graph this node belongs to, reported to listeners. */
+  private final Graph<?> graph;
+
+  /** The listeners of the context, notified of the lifecycle of this node. */
+  private final ImmutableList<GraphListener> listeners;
+
+  /**
+   * Whether to take timestamps, i.e., if there are listeners, the graph is traced or executions
+   * are prioritized. Otherwise, nothing is allocated for instrumentation.
+   */
+  private final boolean instrumented;
+
+  /** Whether to feed the latency of this node into the estimates used for prioritization. */
+  private final boolean prioritized;
+
+  /** The lifecycle timestamps of this node, only recorded if instrumented. */
+  private volatile boolean scheduled;
+  private volatile long scheduledNanos;
+  private volatile long startedNanos;
+  private volatile long returnedNanos;
+
+  /** The timing of this node, available once an instrumented node has completed. */
+  private volatile NodeTiming timing;
+
+  /** Creates the execution state for a node of the supplied graph described by the given plan. */
+  Node(
+      NodePlan plan,
+      Graph<?> graph,
+      ImmutableList<GraphListener> listeners,
+      boolean traced,
+      boolean prioritized) {
+    this.plan = plan;
+    this.graph = graph;
+    this.listeners = listeners;
+    this.prioritized = prioritized;
+    this.instrumented = traced || prioritized || !listeners.isEmpty();
+    this.pendingDependencies =
+        plan.numEagerDependencies() + (plan.kind() == NodePlan.Kind.INPUT ? 0 : 1);
+    this.primitive =
+        plan.kind() == NodePlan.Kind.PRODUCER && plan.producer().returnsPrimitive();
   }
 
-  static <T> Node<T> createConstantNode() {
-    return new Node<>(Optional.empty(), ImmutableList.of() /* dependencies */);
+  @Override
+  public T get() throws InterruptedException, ExecutionException {
+    T value = super.get();
+    return unboxedOutput != null ? unboxedOutput.get() : value;
   }
 
-  static <T> Node<ImmutableSet<T>> createSetAssemblyNode(ImmutableList<Node<?>> dependencies) {
-    return new Node<>(Optional.of(SET_PRODUCER), dependencies);
+  @Override
+  public T get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    T value = super.get(timeout, unit);
+    return unboxedOutput != null ? unboxedOutput.get() : value;
   }
 
-  private Node(Optional<Method> producer, ImmutableList<Node<?>> dependencies) {
-    this.producer = producer;
-    this.dependencies = dependencies;
-    this.value = SettableFuture.create();
+  /** Runs before any listener of this node, so the timing is recorded before consumers run. */
+  @Override
+  protected void afterDone() {
+    if (instrumented) {
+      onCompleted();
+    }
+    graph.onNodeDone(this);
   }
 
   /**
-   * Returns whether the output of this node is ready to be consumed (i.e., contains either a value
-   * or an error).
+   * Returns true for exactly one caller once this node is done, which must then notify the graph.
+   * The graph is notified either when the node completes or, for nodes which have completed before
+   * the graph started running, when it starts.
    */
-  boolean isDone() {
-    return value.isDone();
+  boolean claimNotification() {
+    return NOTIFIED.compareAndSet(this, 0, 1);
+  }
+
+  NodePlan.Kind kind() {
+    return plan.kind();
   }
 
   /**
    * Returns a future which completes when this node has executed and produced a value.
    */
   ListenableFuture<T> value() {
-    return value;
+    return this;
+  }
+
+  /**
+   * Returns the value of this node, which must be done, as a present. All consumers share the same
+   * instance, which is only created once.
+   */
+  @SuppressWarnings("unchecked")
+  Present<T> present() {
+    Present<T> result = present;
+    if (result == null && unboxedOutput != null && !isCancelled()) {
+      // The output is only set right before completing the node, which fails if cancelled.
+      result = unboxedOutput;
+      present = result;
+    } else if (result == null) {
+      // Racing callers create equivalent presents, so it does not matter which one is kept.
+      try {
+        result = (Present<T>) Present.successful(plan.valueType(), Futures.getDone(this));
+      } catch (Throwable t) {
+        result = (Present<T>) Present.failed(plan.valueType(), t);
+      }
+      present = result;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the indices of the nodes (within the same graph) which have to have completed before
+   * this node can run.
+   */
+  int[] dependencies() {
+    return plan.dependencies();
+  }
+
+  /** Returns the indices of the nodes (within the same graph) which consume this node's value. */
+  int[] consumers() {
+    return plan.consumers();
+  }
+
+  /** Returns whether any of the dependencies of this node produces a stream. */
+  boolean consumesStreams() {
+    return plan.consumesStreams();
+  }
+
+  /** Returns whether the dependency with the supplied position is passed as a lazy handle. */
+  boolean isLazy(int dependency) {
+    return plan.isLazy(dependency);
+  }
+
+  /**
+   * Records that one of the eager dependencies of this node has completed. Returns true for
+   * exactly one caller, namely the one recording the last outstanding completion or demand.
+   */
+  boolean onDependencyDone() {
+    return PENDING_DEPENDENCIES.decrementAndGet(this) == 0;
+  }
+
+  /**
+   * Records that the value of this node is needed. Returns true for the first caller only, in
+   * which case the caller must demand the eager dependencies of this node and then call
+   * {@link #onDependencyDone()} on behalf of the demand.
+   */
+  boolean demand() {
+    return DEMANDED.compareAndSet(this, 0, 1);
+  }
+
+  boolean isDemanded() {
+    return demanded == 1;
+  }
+
+  /** Records an additional consumer of this node, e.g., the caller or a demanded node. */
+  void retain() {
+    LIVE_CONSUMERS.incrementAndGet(this);
   }
 
   /**
-   * Returns the nodes which have to have completed before this node can run.
+   * Records that one of the consumers of this node no longer needs its value. Returns true for the
+   * caller releasing the last consumer.
    */
-  ImmutableList<Node<?>> dependencies() {
-    return dependencies;
+  boolean release() {
+    return LIVE_CONSUMERS.decrementAndGet(this) == 0;
   }
 
-  void execute(Object[] arguments) {
+  /**
+   * Starts the execution of this node, all of whose dependencies have completed, with the supplied
+   * arguments. Depending on the producer, this happens inline, on an executor, once the producer
+   * drops below its concurrency limit, or not at all if the value is already cached. Nodes which
+   * have been cancelled in the meantime are not started at all. Nodes waiting for a thread start
+   * in order of the supplied priority if the context prioritizes executions.
+   */
+  @SuppressWarnings("unchecked")
+  void start(Object[] arguments, long priority) {
+    if (isDone()) {
+      return;
+    }
+    if (instrumented) {
+      onScheduled();
+    }
+    ProducerRuntime producer = plan.producer();
+    if (!producer.cacheable() && !producer.hasTimeout() && !producer.hedged()) {
+      // The common case, where the node runs itself and nothing else needs to be allocated.
+      this.arguments = arguments;
+      producer.dispatch(this, priority);
+      return;
+    }
+    if (!producer.cacheable()) {
+      SettableFuture<Object> execution = SettableFuture.create();
+      setFuture((ListenableFuture<T>) execution);
+      producer.dispatch(() -> execute(arguments, execution), priority);
+      return;
+    }
+
+    // The execution may be shared with other graphs, so it must not be cancelled along with this
+    // node. Instead, it completes independently and this node follows it.
+    SettableFuture<Object> execution = SettableFuture.create();
+    Optional<ListenableFuture<?>> cached = producer.cachedOutput(arguments, execution);
+    ListenableFuture<?> shared = cached.isPresent() ? cached.get() : execution;
+    setFuture((ListenableFuture<T>) Futures.nonCancellationPropagating(shared));
+    if (!cached.isPresent()) {
+      producer.dispatch(() -> execute(arguments, execution), priority);
+    }
+  }
+
+  /** Invokes the producer with the arguments supplied to {@link #start} and completes this node. */
+  @Override
+  @SuppressWarnings("unchecked")
+  public void run() {
+    Object[] arguments = this.arguments;
+    this.arguments = null;
+    if (isCancelled()) {
+      // Cancelled while waiting for a thread or a permit.
+      onExecutionFinished();
+      return;
+    }
+    if (primitive) {
+      runPrimitive(arguments);
+      return;
+    }
     Object output;
     try {
-      if (producer.get().equals(SET_PRODUCER)) {
-        Present<String>[] presents = new Present[arguments.length];
-        for (int i = 0; i < arguments.length; ++i) {
-          presents[i] = (Present) arguments[i];
-        }
-        output = producer.get().invoke(null /* receiver */, new Object[]{presents});
-      } else {
-        output = producer.get().invoke(null /* receiver */, arguments);
-      }
+      output = invoke(arguments);
     } catch (Throwable t) {
-      acceptError(new RuntimeException("Unable to execute producer", t));
+      setException(new RuntimeException("Unable to execute producer", t));
+      onExecutionFinished();
       return;
     }
 
-    // Propagate the output back to the node.
+    // Cancelling the node also cancels a returned future.
     if (output instanceof ListenableFuture) {
       ListenableFuture<?> outFuture = (ListenableFuture<?>) output;
-      Futures.addCallback(outFuture, new NodeFutureCallback(this), MoreExecutors.directExecutor());
+      setFuture((ListenableFuture<T>) outFuture);
+      outFuture.addListener(this::onExecutionFinished, MoreExecutors.directExecutor());
     } else {
-      acceptValue(output);
+      set((T) output);
+      onExecutionFinished();
     }
   }
 
-  void acceptValue(Object object) {
-    Preconditions.checkState(!value.isDone());
-    value.set((T) object);
-  }
+  /** Like {@link #run()}, but for producers returning a primitive, whose output is not boxed. */
+  @SuppressWarnings("unchecked")
+  private void runPrimitive(Object[] arguments) {
+    Present<T> output;
+    try {
+      if (instrumented) {
+        onStarted();
+      }
+      try {
+        output = (Present<T>) plan.producer().invokePrimitive(arguments);
+      } finally {
+        if (instrumented) {
+          onProducerReturned();
+        }
+      }
+    } catch (Throwable t) {
+      setException(new RuntimeException("Unable to execute producer", t));
+      onExecutionFinished();
+      return;
+    }
 
-  private void acceptError(Throwable error) {
-    Preconditions.checkState(!value.isDone());
-    value.setException(error);
+    // Published along with the completion of the future, which only holds a placeholder.
+    unboxedOutput = output;
+    set(null);
+    onExecutionFinished();
   }
 
   /**
-   * A {@link FutureCallback} which informs the supplied node of the future's outcome.
+   * Invokes the producer with the supplied arguments and completes the target with its output. Used
+   * for executions which are bounded by a timeout, hedged or shared with other graphs.
    */
-  private static class NodeFutureCallback implements FutureCallback<Object> {
-    private final Node<?> node;
+  @SuppressWarnings("unchecked")
+  private void execute(Object[] arguments, SettableFuture<Object> target) {
+    if (target.isCancelled()) {
+      // Cancelled while waiting for a thread or a permit.
+      onExecutionFinished();
+      return;
+    }
+    SettableFuture<Object> attempt = plan.producer().boundedByTimeout(target, arguments);
+    Object output;
+    try {
+      output = invoke(arguments);
+    } catch (Throwable t) {
+      attempt.setException(new RuntimeException("Unable to execute producer", t));
+      onExecutionFinished();
+      return;
+    }
+
+    // Propagate the output back to the node. Cancelling the node also cancels a returned future.
+    if (output instanceof ListenableFuture) {
+      ListenableFuture<?> outFuture = (ListenableFuture<?>) output;
+      attempt.setFuture(
+          plan.producer().hedged((ListenableFuture<Object>) outFuture, arguments));
+      outFuture.addListener(this::onExecutionFinished, MoreExecutors.directExecutor());
+    } else {
+      attempt.set(output);
+      onExecutionFinished();
+    }
+  }
+
+  /** Invokes the producer, recording the lifecycle of this node if instrumented. */
+  private Object invoke(Object[] arguments) throws Throwable {
+    if (instrumented) {
+      onStarted();
+    }
+    try {
+      return plan.producer().invoke(arguments);
+    } finally {
+      if (instrumented) {
+        onProducerReturned();
+      }
+    }
+  }
+
+  private void onScheduled() {
+    long now = System.nanoTime();
+    scheduledNanos = now;
+    startedNanos = now;
+    returnedNanos = now;
+    scheduled = true;
+    for (GraphListener listener : listeners) {
+      listener.onScheduled(graph, plan.producer().binding(), now);
+    }
+  }
 
-    private <T> NodeFutureCallback(Node<T> node) {
-      this.node = node;
+  private void onStarted() {
+    long now = System.nanoTime();
+    startedNanos = now;
+    returnedNanos = now;
+    for (GraphListener listener : listeners) {
+      listener.onStarted(graph, plan.producer().binding(), now);
     }
+  }
 
-    @Override
-    public void onSuccess(Object result) {
-      node.acceptValue(result);
+  private void onProducerReturned() {
+    long now = System.nanoTime();
+    returnedNanos = now;
+    for (GraphListener listener : listeners) {
+      listener.onProducerReturned(graph, plan.producer().binding(), now);
     }
+  }
 
-    @Override
-    public void onFailure(Throwable t) {
-      node.acceptError(t);
+  private void onCompleted() {
+    if (!scheduled) {
+      // Inputs, set assemblies and nodes cancelled before they were ready to run.
+      return;
+    }
+    NodeTiming timing =
+        new NodeTiming(scheduledNanos, startedNanos, returnedNanos, System.nanoTime());
+    this.timing = timing;
+    if (prioritized) {
+      plan.producer().recordLatency(timing.runNanos() + timing.futureNanos());
+    }
+    ProducerBinding binding = plan.producer().binding();
+    Throwable error;
+    try {
+      if (unboxedOutput != null && !isCancelled()) {
+        // Primitive outputs are never failures, and checking would box them.
+        for (GraphListener listener : listeners) {
+          listener.onSucceeded(graph, binding, timing);
+        }
+        return;
+      }
+      Futures.getDone(this);
+      for (GraphListener listener : listeners) {
+        listener.onSucceeded(graph, binding, timing);
+      }
+      return;
+    } catch (ExecutionException e) {
+      error = e.getCause();
+    } catch (CancellationException e) {
+      error = e;
+    }
+    for (GraphListener listener : listeners) {
+      listener.onFailed(graph, binding, timing, error);
     }
   }
 
-  @Retention(RetentionPolicy.RUNTIME)
-  private @interface SetProducer {}
+  /** Returns the timing of this node if it is instrumented, was scheduled and has completed. */
+  Optional<NodeTiming> timing() {
+    return Optional.ofNullable(timing);
+  }
+
+  /** Called once the execution of the producer of this node, including its future, is done. */
+  private void onExecutionFinished() {
+    plan.producer().onExecutionFinished();
+  }
 
-  private static final Method SET_PRODUCER = setProducer();
+  /**
+   * Checks a completed element of this set assembly node. If the element has failed, the whole set
+   * fails right away without waiting for the remaining elements.
+   */
+  void acceptElement(ListenableFuture<?> element) {
+    try {
+      checkElement(element);
+    } catch (ExecutionException | RuntimeException e) {
+      // Only the first failure is reported, later ones are dropped.
+      setException(new RuntimeException("Unable to execute producer", e));
+    }
+  }
 
-  private static Method setProducer() {
-    for (Method method : Node.class.getDeclaredMethods()) {
-      if (method.isAnnotationPresent(SetProducer.class)) {
-        return method;
+  /**
+   * Completes this set assembly node once all of its elements, taken from the supplied nodes of the
+   * graph, have been accepted. The set iterates in the order of the producers of the elements in
+   * the plan rather than in the order the elements completed, so it is the same for every run.
+   */
+  @SuppressWarnings("unchecked")
+  void completeSet(Node<?>[] nodes) {
+    if (isDone()) {
+      return;
+    }
+    int[] dependencies = plan.dependencies();
+    ImmutableSet.Builder<Object> result = ImmutableSet.builderWithExpectedSize(dependencies.length);
+    try {
+      for (int dependency : dependencies) {
+        result.add(checkElement(nodes[dependency]));
       }
+    } catch (ExecutionException | RuntimeException e) {
+      setException(new RuntimeException("Unable to execute producer", e));
+      return;
     }
-    throw new IllegalStateException("Could not find set producer method");
+    set((T) result.build());
   }
 
-  @SetProducer
-  public static <T> ImmutableSet<T> produceSet(Present<T>... values) throws ExecutionException {
-    ImmutableSet.Builder<T> resultBuilder = ImmutableSet.builder();
-    for (Present<T> value : values) {
-      resultBuilder.add(value.get());
+  /** Returns the value of the supplied element, which is done, if it has succeeded. */
+  private static Object checkElement(ListenableFuture<?> element) throws ExecutionException {
+    Object result = Futures.getDone(element);
+    if (result == null) {
+      throw new ExecutionException(new NullPointerException("Set elements must not be null"));
     }
-    return resultBuilder.build();
+    return result;
+  }
+
+  /** Completes this results node, unless it has been cancelled in the meantime. */
+  @SuppressWarnings("unchecked")
+  void completeResults(ProducerResults results) {
+    set((T) results);
+  }
+
+  @SuppressWarnings("unchecked")
+  void acceptValue(Object object) {
+    Preconditions.checkState(!isDone());
+    set((T) object);
+  }
+
+  /** Completes this node with a value computed elsewhere, e.g., by an earlier run. */
+  @SuppressWarnings("unchecked")
+  void acceptFuture(ListenableFuture<?> future) {
+    Preconditions.checkState(!isDone());
+    setFuture((ListenableFuture<T>) future);
   }
 }
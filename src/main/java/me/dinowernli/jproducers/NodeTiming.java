@@ -0,0 +1,64 @@
+package me.dinowernli.jproducers;
+
+/**
+ * The timestamps of the lifecycle events of a single node which has completed, as reported to a
+ * {@link GraphListener}. All timestamps are taken from {@link System#nanoTime()}. For nodes whose
+ * producer never ran, e.g., because its value was cached or the node was cancelled while queued,
+ * the start and return timestamps equal the scheduling timestamp.
+ */
+public class NodeTiming {
+  private final long scheduledNanos;
+  private final long startedNanos;
+  private final long returnedNanos;
+  private final long completedNanos;
+
+  NodeTiming(long scheduledNanos, long startedNanos, long returnedNanos, long completedNanos) {
+    this.scheduledNanos = scheduledNanos;
+    this.startedNanos = startedNanos;
+    this.returnedNanos = returnedNanos;
+    this.completedNanos = completedNanos;
+  }
+
+  public long scheduledNanos() {
+    return scheduledNanos;
+  }
+
+  public long startedNanos() {
+    return startedNanos;
+  }
+
+  public long returnedNanos() {
+    return returnedNanos;
+  }
+
+  public long completedNanos() {
+    return completedNanos;
+  }
+
+  /** Returns how long the node waited for a thread or a permit after being scheduled. */
+  public long queueNanos() {
+    return startedNanos - scheduledNanos;
+  }
+
+  /** Returns how long the producer itself ran. */
+  public long runNanos() {
+    return returnedNanos - startedNanos;
+  }
+
+  /** Returns how long it took the future returned by the producer to complete, if any. */
+  public long futureNanos() {
+    return completedNanos - returnedNanos;
+  }
+
+  /** Returns the time from scheduling the node to its value being available. */
+  public long totalNanos() {
+    return completedNanos - scheduledNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "NodeTiming{queueNanos=%d, runNanos=%d, futureNanos=%d}",
+        queueNanos(), runNanos(), futureNanos());
+  }
+}
@@ -0,0 +1,34 @@
+package me.dinowernli.jproducers;
+
+/** A snapshot of the statistics of the graph plans cached by a {@link ProducerContext}. */
+public class PlanCacheStats {
+  private final long hitCount;
+  private final long missCount;
+  private final int size;
+
+  PlanCacheStats(long hitCount, long missCount, int size) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.size = size;
+  }
+
+  /** Returns the number of graphs which were created from an already cached plan. */
+  public long hitCount() {
+    return hitCount;
+  }
+
+  /** Returns the number of graphs for which a new plan had to be computed. */
+  public long missCount() {
+    return missCount;
+  }
+
+  /** Returns the number of plans currently held in the cache. */
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("PlanCacheStats{hits=%d, misses=%d, size=%d}", hitCount, missCount, size);
+  }
+}
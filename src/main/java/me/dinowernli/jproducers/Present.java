@@ -1,31 +1,73 @@
 package me.dinowernli.jproducers;
 
-import java.util.Optional;
+import com.google.common.base.Preconditions;
+
 import java.util.concurrent.ExecutionException;
 
-/** Holds the result of a terminated future, i.e., either a value or an error. */
+/**
+ * Holds the result of a terminated future, i.e., either a value or an error. Values of keys of type
+ * {@code Integer}, {@code Long} and {@code Double} are passed as {@link PresentInt},
+ * {@link PresentLong} and {@link PresentDouble} respectively, so producers can declare either.
+ */
 public class Present<T> {
-  private final Optional<T> value;
-  private final Optional<Throwable> error;
+  /** The value, or null if this present holds an error or a primitive. */
+  private final T value;
+
+  /** The error, or null if this present holds a value. */
+  private final Throwable error;
 
   public static <T> Present<T> successful(T value) {
-    return new Present<>(Optional.of(value), Optional.empty());
+    return new Present<>(Preconditions.checkNotNull(value), null);
   }
 
   public static <T> Present<T> failed(Throwable t) {
-    return new Present<>(Optional.empty(), Optional.of(t));
+    return new Present<>(null, Preconditions.checkNotNull(t));
+  }
+
+  /**
+   * Returns a present holding the supplied value of a key with the given raw type, specialized for
+   * the primitive types.
+   */
+  static Present<?> successful(Class<?> type, Object value) {
+    if (type == Integer.class) {
+      return PresentInt.successful((Integer) value);
+    } else if (type == Long.class) {
+      return PresentLong.successful((Long) value);
+    } else if (type == Double.class) {
+      return PresentDouble.successful((Double) value);
+    }
+    return successful(value);
   }
 
-  private Present(Optional<T> value, Optional<Throwable> error) {
+  /**
+   * Returns a present holding the supplied error for a key with the given raw type, specialized for
+   * the primitive types.
+   */
+  static Present<?> failed(Class<?> type, Throwable t) {
+    if (type == Integer.class) {
+      return PresentInt.failed(t);
+    } else if (type == Long.class) {
+      return PresentLong.failed(t);
+    } else if (type == Double.class) {
+      return PresentDouble.failed(t);
+    }
+    return failed(t);
+  }
+
+  Present(T value, Throwable error) {
     this.value = value;
     this.error = error;
   }
 
   public T get() throws ExecutionException {
-    if (value.isPresent()) {
-      return value.get();
-    } else {
-      throw new ExecutionException(error.get());
+    checkSucceeded();
+    return value;
+  }
+
+  /** Throws an exception wrapping the error if this present holds one. */
+  void checkSucceeded() throws ExecutionException {
+    if (error != null) {
+      throw new ExecutionException(error);
     }
   }
 }
@@ -0,0 +1,39 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A {@link Present} of a double, which producers can declare instead of {@code Present<Double>} to
+ * read the value without unboxing it. The outputs of producers returning double are not boxed on
+ * their way to such consumers.
+ */
+public final class PresentDouble extends Present<Double> {
+  private final double value;
+
+  public static PresentDouble successful(double value) {
+    return new PresentDouble(value, null);
+  }
+
+  @SuppressWarnings("unchecked") // Hides the generic Present.failed with a narrower return type.
+  public static PresentDouble failed(Throwable t) {
+    return new PresentDouble(0, Preconditions.checkNotNull(t));
+  }
+
+  private PresentDouble(double value, Throwable error) {
+    super(null, error);
+    this.value = value;
+  }
+
+  public double getAsDouble() throws ExecutionException {
+    checkSucceeded();
+    return value;
+  }
+
+  /** Returns the value boxed, prefer {@link #getAsDouble()}. */
+  @Override
+  public Double get() throws ExecutionException {
+    return getAsDouble();
+  }
+}
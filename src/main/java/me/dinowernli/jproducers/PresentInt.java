@@ -0,0 +1,39 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A {@link Present} of an int, which producers can declare instead of {@code Present<Integer>} to
+ * read the value without unboxing it. The outputs of producers returning int are not boxed on
+ * their way to such consumers.
+ */
+public final class PresentInt extends Present<Integer> {
+  private final int value;
+
+  public static PresentInt successful(int value) {
+    return new PresentInt(value, null);
+  }
+
+  @SuppressWarnings("unchecked") // Hides the generic Present.failed with a narrower return type.
+  public static PresentInt failed(Throwable t) {
+    return new PresentInt(0, Preconditions.checkNotNull(t));
+  }
+
+  private PresentInt(int value, Throwable error) {
+    super(null, error);
+    this.value = value;
+  }
+
+  public int getAsInt() throws ExecutionException {
+    checkSucceeded();
+    return value;
+  }
+
+  /** Returns the value boxed, prefer {@link #getAsInt()}. */
+  @Override
+  public Integer get() throws ExecutionException {
+    return getAsInt();
+  }
+}
@@ -0,0 +1,39 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A {@link Present} of a long, which producers can declare instead of {@code Present<Long>} to
+ * read the value without unboxing it. The outputs of producers returning long are not boxed on
+ * their way to such consumers.
+ */
+public final class PresentLong extends Present<Long> {
+  private final long value;
+
+  public static PresentLong successful(long value) {
+    return new PresentLong(value, null);
+  }
+
+  @SuppressWarnings("unchecked") // Hides the generic Present.failed with a narrower return type.
+  public static PresentLong failed(Throwable t) {
+    return new PresentLong(0, Preconditions.checkNotNull(t));
+  }
+
+  private PresentLong(long value, Throwable error) {
+    super(null, error);
+    this.value = value;
+  }
+
+  public long getAsLong() throws ExecutionException {
+    checkSucceeded();
+    return value;
+  }
+
+  /** Returns the value boxed, prefer {@link #getAsLong()}. */
+  @Override
+  public Long get() throws ExecutionException {
+    return getAsLong();
+  }
+}
@@ -0,0 +1,71 @@
+package me.dinowernli.jproducers;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a delegate executor in order of priority rather than in the order they were
+ * submitted. Every submitted task hands the delegate a task of its own, but that task runs
+ * whichever queued task has the highest priority at the time it gets a thread. Tasks of equal
+ * priority run in submission order.
+ */
+class PriorityExecutor {
+  private final Executor delegate;
+  private final PriorityBlockingQueue<Task> tasks;
+  private final AtomicLong sequence;
+
+  PriorityExecutor(Executor delegate) {
+    this.delegate = delegate;
+    this.tasks = new PriorityBlockingQueue<>();
+    this.sequence = new AtomicLong();
+  }
+
+  /** Returns an executor which submits its tasks to this executor with the supplied priority. */
+  Executor withPriority(long priority) {
+    return task -> execute(task, priority);
+  }
+
+  /**
+   * Queues the supplied task, which runs before any queued task with a lower priority. If the
+   * delegate rejects the task, it is not queued either.
+   */
+  void execute(Runnable task, long priority) {
+    Task queued = new Task(task, priority, sequence.getAndIncrement());
+    tasks.add(queued);
+    try {
+      delegate.execute(this::runNext);
+    } catch (RejectedExecutionException e) {
+      if (tasks.remove(queued)) {
+        throw e;
+      }
+      // The task was already taken on behalf of another queued task, which is now left without a
+      // call to run it. That one runs here instead, since the delegate may keep rejecting.
+      runNext();
+    }
+  }
+
+  private void runNext() {
+    // There is exactly one call per queued task, so the queue is never empty here.
+    tasks.poll().runnable.run();
+  }
+
+  private static class Task implements Comparable<Task> {
+    private final Runnable runnable;
+    private final long priority;
+    private final long sequence;
+
+    private Task(Runnable runnable, long priority, long sequence) {
+      this.runnable = runnable;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      int byPriority = Long.compare(other.priority, priority);
+      return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A lazy handle on a dependency of a producer, for dependencies which are only needed on some code
+ * paths. Unlike a {@link Present}, the dependency is not computed before the producer runs, but
+ * only once the producer first calls {@link #get()}. If it never does, the dependency (and all of
+ * its own dependencies which are not needed otherwise) never runs.
+ */
+public interface Producer<T> {
+  /**
+   * Returns a future for the value of the dependency, starting its computation on the first call.
+   * Cancelling the returned future does not cancel the computation.
+   *
+   * <p>Producers must never block on the returned future, but compose it into the future they
+   * return instead, for instance using {@code Futures.transform}. The dependency usually runs on
+   * the same executor as the producer waiting for it, so blocking can deadlock once all threads of
+   * a bounded executor are blocked this way (which takes a single producer on a single thread).
+   */
+  ListenableFuture<T> get();
+}
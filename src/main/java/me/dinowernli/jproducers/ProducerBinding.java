@@ -0,0 +1,304 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Key;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Describes a single producer: the key it produces, the keys of its parameters and the invoker used
+ * to run it. Bindings are either resolved reflectively when creating a {@link ProducerContext} or
+ * emitted ahead of time by the annotation processor as part of a {@link ProducerFactory}.
+ */
+public class ProducerBinding {
+  private final String name;
+  private final Key<?> key;
+  private final boolean intoSet;
+  private final ImmutableList<Key<?>> dependencies;
+  private final ImmutableSet<Integer> lazyDependencies;
+  private final Invoker invoker;
+  private final boolean inline;
+  private final int concurrencyLimit;
+  private final Optional<CachePolicy> cachePolicy;
+  private final int maxBatchSize;
+  private final Duration batchWindow;
+  private final Optional<Duration> timeout;
+  private final Optional<Invoker> fallback;
+  private final double hedgePercentile;
+  private final double maxHedgeLoad;
+
+  private ProducerBinding(
+      String name,
+      Key<?> key,
+      boolean intoSet,
+      ImmutableList<Key<?>> dependencies,
+      ImmutableSet<Integer> lazyDependencies,
+      Invoker invoker,
+      boolean inline,
+      int concurrencyLimit,
+      Optional<CachePolicy> cachePolicy,
+      int maxBatchSize,
+      Duration batchWindow,
+      Optional<Duration> timeout,
+      Optional<Invoker> fallback,
+      double hedgePercentile,
+      double maxHedgeLoad) {
+    this.name = name;
+    this.key = key;
+    this.intoSet = intoSet;
+    this.dependencies = dependencies;
+    this.lazyDependencies = lazyDependencies;
+    this.invoker = invoker;
+    this.inline = inline;
+    this.concurrencyLimit = concurrencyLimit;
+    this.cachePolicy = cachePolicy;
+    this.maxBatchSize = maxBatchSize;
+    this.batchWindow = batchWindow;
+    this.timeout = timeout;
+    this.fallback = fallback;
+    this.hedgePercentile = hedgePercentile;
+    this.maxHedgeLoad = maxHedgeLoad;
+  }
+
+  /** Returns a builder for a binding of a producer annotated with {@code @Produces}. */
+  public static Builder produces(String name, Key<?> key) {
+    return new Builder(name, key, false /* intoSet */);
+  }
+
+  /** Returns a builder for a binding of a producer annotated with {@code @ProducesIntoSet}. */
+  public static Builder producesIntoSet(String name, Key<?> elementKey) {
+    return new Builder(name, elementKey, true /* intoSet */);
+  }
+
+  /** Returns a human-readable name for the producer, used in diagnostics. */
+  public String name() {
+    return name;
+  }
+
+  /**
+   * Returns the key produced by this producer. For producers which produce into a set, this is the
+   * key of an individual element.
+   */
+  public Key<?> key() {
+    return key;
+  }
+
+  /** Returns whether this producer contributes an element to a set rather than a value. */
+  public boolean intoSet() {
+    return intoSet;
+  }
+
+  /** Returns the keys of the values to pass to the producer, in parameter order. */
+  public ImmutableList<Key<?>> dependencies() {
+    return dependencies;
+  }
+
+  /**
+   * Returns the indices of the dependencies which are passed as a lazy {@link Producer} rather than
+   * as a {@link Present}.
+   */
+  public ImmutableSet<Integer> lazyDependencies() {
+    return lazyDependencies;
+  }
+
+  Invoker invoker() {
+    return invoker;
+  }
+
+  /** Returns whether the producer is marked to always run inline, see {@code @Inline}. */
+  public boolean inline() {
+    return inline;
+  }
+
+  /**
+   * Returns the maximum number of concurrent executions of the producer, or zero if unlimited. See
+   * {@code @ConcurrencyLimit}.
+   */
+  public int concurrencyLimit() {
+    return concurrencyLimit;
+  }
+
+  /** Returns how the outputs of the producer are cached, if it is cacheable. */
+  public Optional<CachePolicy> cachePolicy() {
+    return cachePolicy;
+  }
+
+  /** Returns whether the producer handles batches of executions, see {@code @Batched}. */
+  public boolean batched() {
+    return maxBatchSize > 0;
+  }
+
+  /** Returns the maximum number of executions per batch, or zero if the producer is not batched. */
+  public int maxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /** Returns for how long executions are collected into a batch before invoking the producer. */
+  public Duration batchWindow() {
+    return batchWindow;
+  }
+
+  /** Returns the maximum duration of an execution of the producer, if bounded. */
+  public Optional<Duration> timeout() {
+    return timeout;
+  }
+
+  /** Returns the invoker computing a value in place of a timed out execution, if any. */
+  Optional<Invoker> fallback() {
+    return fallback;
+  }
+
+  /** Returns whether slow executions of the producer are hedged, see {@code @Hedged}. */
+  public boolean hedged() {
+    return hedgePercentile > 0;
+  }
+
+  /**
+   * Returns the percentile of the observed latencies after which an execution is hedged, or zero
+   * if the producer is not hedged.
+   */
+  public double hedgePercentile() {
+    return hedgePercentile;
+  }
+
+  /** Returns the maximum number of hedges as a fraction of the executions of the producer. */
+  public double maxHedgeLoad() {
+    return maxHedgeLoad;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  public static class Builder {
+    private final String name;
+    private final Key<?> key;
+    private final boolean intoSet;
+    private final List<Key<?>> dependencies;
+    private final ImmutableSet.Builder<Integer> lazyDependencies;
+    private Invoker invoker;
+    private boolean inline;
+    private int concurrencyLimit;
+    private Optional<CachePolicy> cachePolicy;
+    private int maxBatchSize;
+    private Duration batchWindow;
+    private Optional<Duration> timeout;
+    private Optional<Invoker> fallback;
+    private double hedgePercentile;
+    private double maxHedgeLoad;
+
+    private Builder(String name, Key<?> key, boolean intoSet) {
+      this.name = name;
+      this.key = key;
+      this.intoSet = intoSet;
+      this.dependencies = new ArrayList<>();
+      this.lazyDependencies = ImmutableSet.builder();
+      this.cachePolicy = Optional.empty();
+      this.batchWindow = Duration.ZERO;
+      this.timeout = Optional.empty();
+      this.fallback = Optional.empty();
+    }
+
+    /** Adds the key of the next parameter of the producer. */
+    public Builder addDependency(Key<?> dependency) {
+      dependencies.add(dependency);
+      return this;
+    }
+
+    /**
+     * Adds the key of the next parameter of the producer, which is passed as a {@link Producer}
+     * and only computed if the producer asks for it.
+     */
+    public Builder addLazyDependency(Key<?> dependency) {
+      lazyDependencies.add(dependencies.size());
+      dependencies.add(dependency);
+      return this;
+    }
+
+    /** Sets the invoker which runs the producer, called with one argument per dependency. */
+    public Builder invoker(Invoker invoker) {
+      this.invoker = invoker;
+      return this;
+    }
+
+    /** Marks the producer to always run inline, see {@code @Inline}. */
+    public Builder inline() {
+      this.inline = true;
+      return this;
+    }
+
+    /** Limits the number of concurrent executions of the producer, see {@code ConcurrencyLimit}. */
+    public Builder concurrencyLimit(int concurrencyLimit) {
+      Preconditions.checkArgument(concurrencyLimit > 0, "Concurrency limit must be positive");
+      this.concurrencyLimit = concurrencyLimit;
+      return this;
+    }
+
+    /** Caches the outputs of the producer across graphs, see {@code @Cacheable}. */
+    public Builder cacheable(CachePolicy cachePolicy) {
+      this.cachePolicy = Optional.of(cachePolicy);
+      return this;
+    }
+
+    /**
+     * Makes the producer handle batches of up to {@code maxSize} executions, collected for at most
+     * {@code window}, see {@code @Batched}.
+     */
+    public Builder batched(int maxSize, Duration window) {
+      Preconditions.checkArgument(maxSize > 0, "Maximum batch size must be positive");
+      Preconditions.checkArgument(!window.isNegative(), "Batch window must not be negative");
+      this.maxBatchSize = maxSize;
+      this.batchWindow = window;
+      return this;
+    }
+
+    /** Bounds the duration of an execution of the producer, see {@code @Timeout}. */
+    public Builder timeout(Duration timeout) {
+      Preconditions.checkArgument(
+          !timeout.isNegative() && !timeout.isZero(), "Timeout must be positive");
+      this.timeout = Optional.of(timeout);
+      return this;
+    }
+
+    /**
+     * Sets the invoker which computes a value in place of an execution which has timed out. It is
+     * called with the same arguments as the invoker of the producer.
+     */
+    public Builder fallback(Invoker fallback) {
+      this.fallback = Optional.of(fallback);
+      return this;
+    }
+
+    /**
+     * Hedges executions of the producer which take longer than the supplied percentile (between 0
+     * and 100, exclusive) of the observed latencies, with at most {@code maxExtraLoad} hedges per
+     * execution, see {@code @Hedged}.
+     */
+    public Builder hedged(double percentile, double maxExtraLoad) {
+      Preconditions.checkArgument(
+          percentile > 0 && percentile < 100, "Percentile must be between 0 and 100");
+      Preconditions.checkArgument(
+          maxExtraLoad > 0 && maxExtraLoad <= 1, "Extra load must be between 0 and 1");
+      this.hedgePercentile = percentile;
+      this.maxHedgeLoad = maxExtraLoad;
+      return this;
+    }
+
+    public ProducerBinding build() {
+      Preconditions.checkState(
+          !fallback.isPresent() || timeout.isPresent(), "Fallback without timeout for: " + name);
+      Preconditions.checkState(invoker != null, "No invoker set for producer: " + name);
+      Preconditions.checkState(
+          hedgePercentile == 0 || maxBatchSize == 0, "Cannot hedge batched producer: " + name);
+      return new ProducerBinding(name, key, intoSet, ImmutableList.copyOf(dependencies),
+          lazyDependencies.build(), invoker, inline, concurrencyLimit, cachePolicy, maxBatchSize,
+          batchWindow, timeout, fallback, hedgePercentile, maxHedgeLoad);
+    }
+  }
+}
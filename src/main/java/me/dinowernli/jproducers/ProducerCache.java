@@ -0,0 +1,121 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * Caches the outputs of a single producer across all the graphs of a context, keyed by the values
+ * of its dependencies. Executions which are still in flight are cached as well, so that concurrent
+ * graphs share a single execution.
+ */
+class ProducerCache {
+  private final Cache<List<Object>, ListenableFuture<?>> cache;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+  private final AtomicLong evictions;
+
+  ProducerCache(CachePolicy policy) {
+    this.hits = new AtomicLong();
+    this.misses = new AtomicLong();
+    this.evictions = new AtomicLong();
+
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+    if (policy.expireAfterWrite().isPresent()) {
+      builder.expireAfterWrite(policy.expireAfterWrite().get().toNanos(), TimeUnit.NANOSECONDS);
+    }
+    if (policy.maximumSize() > 0) {
+      builder.maximumSize(policy.maximumSize());
+    }
+    if (policy.weigher().isPresent()) {
+      ToIntFunction<Object> weigher = policy.weigher().get();
+      builder.maximumWeight(policy.maximumWeight())
+          .weigher((List<Object> key, ListenableFuture<?> value) -> weigh(value, weigher));
+    }
+    this.cache = builder
+        .removalListener(notification -> {
+          if (notification.wasEvicted()) {
+            evictions.incrementAndGet();
+          }
+        })
+        .build();
+  }
+
+  /**
+   * Returns the cached output for the supplied arguments if there is one. Otherwise, caches the
+   * supplied future as the output for the arguments and returns empty, in which case the caller is
+   * responsible for completing the future by executing the producer. Returns empty without caching
+   * anything if any of the arguments has failed.
+   */
+  Optional<ListenableFuture<?>> lookup(Object[] arguments, ListenableFuture<?> execution) {
+    Optional<List<Object>> key = keyFor(arguments);
+    if (!key.isPresent()) {
+      return Optional.empty();
+    }
+    ListenableFuture<?> existing = cache.asMap().putIfAbsent(key.get(), execution);
+    if (existing != null) {
+      hits.incrementAndGet();
+      return Optional.of(existing);
+    }
+    misses.incrementAndGet();
+    execution.addListener(
+        () -> onExecutionDone(key.get(), execution), MoreExecutors.directExecutor());
+    return Optional.empty();
+  }
+
+  ProducerCacheStats stats() {
+    return new ProducerCacheStats(hits.get(), misses.get(), evictions.get(), cache.size());
+  }
+
+  private void onExecutionDone(List<Object> key, ListenableFuture<?> execution) {
+    try {
+      // Replace the entry with an equivalent one in order to weigh the value now that it exists.
+      cache.asMap().replace(key, execution, Futures.immediateFuture(Futures.getDone(execution)));
+    } catch (ExecutionException | RuntimeException e) {
+      // Failures are not cached, the next execution tries again.
+      cache.asMap().remove(key, execution);
+    }
+  }
+
+  /**
+   * Returns the cache key for the supplied arguments, or empty if any of them has failed or is
+   * lazy.
+   */
+  private static Optional<List<Object>> keyFor(Object[] arguments) {
+    Object[] values = new Object[arguments.length];
+    for (int i = 0; i < arguments.length; ++i) {
+      if (!(arguments[i] instanceof Present)) {
+        // Lazy dependencies cannot be part of a key.
+        return Optional.empty();
+      }
+      try {
+        values[i] = ((Present<?>) arguments[i]).get();
+      } catch (ExecutionException e) {
+        return Optional.empty();
+      }
+    }
+    return Optional.of(Arrays.asList(values));
+  }
+
+  /** Weighs completed values, executions in flight do not count towards the maximum weight. */
+  private static int weigh(ListenableFuture<?> value, ToIntFunction<Object> weigher) {
+    if (!value.isDone()) {
+      return 0;
+    }
+    try {
+      return weigher.applyAsInt(Futures.getDone(value));
+    } catch (ExecutionException | RuntimeException e) {
+      return 0;
+    }
+  }
+}
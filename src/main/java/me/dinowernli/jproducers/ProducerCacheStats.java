@@ -0,0 +1,45 @@
+package me.dinowernli.jproducers;
+
+/** A snapshot of the state of the cache of a single cacheable producer. */
+public class ProducerCacheStats {
+  private final long hitCount;
+  private final long missCount;
+  private final long evictionCount;
+  private final long size;
+
+  ProducerCacheStats(long hitCount, long missCount, long evictionCount, long size) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.evictionCount = evictionCount;
+    this.size = size;
+  }
+
+  /**
+   * Returns the number of executions which were served from the cache, including the ones which
+   * joined an execution still in flight.
+   */
+  public long hitCount() {
+    return hitCount;
+  }
+
+  /** Returns the number of executions which actually invoked the producer. */
+  public long missCount() {
+    return missCount;
+  }
+
+  /** Returns the number of values removed from the cache because of its size or expiry bounds. */
+  public long evictionCount() {
+    return evictionCount;
+  }
+
+  /** Returns the approximate number of values currently cached. */
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ProducerCacheStats{hits=%d, misses=%d, evictions=%d, size=%d}",
+        hitCount, missCount, evictionCount, size);
+  }
+}
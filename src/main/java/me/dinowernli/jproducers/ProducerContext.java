@@ -1,64 +1,185 @@
 package me.dinowernli.jproducers;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Multimap;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import com.google.inject.BindingAnnotation;
 import com.google.inject.Key;
-import me.dinowernli.jproducers.Annotations.Produces;
-import me.dinowernli.jproducers.Annotations.ProducesIntoSet;
 
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class ProducerContext {
-  private final ExecutorService executor;
+  /** The number of graphs of a bulk run which run concurrently, unless configured otherwise. */
+  private static final int DEFAULT_MAX_IN_FLIGHT = 1024;
 
-  /** Holds all the available producer method which directly produced a specific key. */
-  private final ImmutableMap<Key<?>, Method> producers;
+  /** How long the threads of the default pool and timer are kept alive while idle. */
+  private static final long DEFAULT_KEEP_ALIVE_SECONDS = 60;
+
+  /** Holds all the available producers which directly produce a specific key. */
+  private final ImmutableMap<Key<?>, ProducerRuntime> producers;
 
   /** Holds the producers which produce elements into a set for a given key type. */
-  private final ImmutableMultimap<Key<?>, Method> setProducers;
+  private final ImmutableMultimap<Key<?>, ProducerRuntime> setProducers;
+
+  /**
+   * Caches the plans computed for each root key for which a graph has been requested. Plans for
+   * graphs with several roots are keyed by the set of root keys.
+   */
+  private final ConcurrentHashMap<Object, GraphPlan<?>> plans;
+  private final AtomicLong planCacheHits;
+  private final AtomicLong planCacheMisses;
+
+  /** Runs producers which have no executor of their own, and the chunks of bulk runs. */
+  private final Executor executor;
+
+  /** Schedules time-based work such as batch windows and deadlines. */
+  private final ScheduledExecutorService timer;
+
+  /** Notified of the lifecycle events of the nodes of all graphs. */
+  private final ImmutableList<GraphListener> listeners;
+
+  /** Receives the traces of the sampled graph runs, one in every {@link #traceSampleEvery}. */
+  private final Optional<Consumer<GraphTrace>> traceSink;
+  private final int traceSampleEvery;
+  private final AtomicLong numGraphs;
+
+  /** Whether nodes waiting for a thread start in order of their remaining critical path. */
+  private final boolean prioritized;
+
+  public static Builder builder() {
+    return new Builder();
+  }
 
   public static ProducerContext forClasses(Class<?>... classes) {
-    // TODO(dino): Add a factory method which scans for all classes marked @ProducerModule.
-    ExecutorService threadPool = Executors.newCachedThreadPool(
-        new ThreadFactoryBuilder()
-            .setDaemon(true)
-            .build());
-    return new ProducerContext(ImmutableList.copyOf(classes), threadPool);
+    return builder().addClasses(classes).build();
+  }
+
+  /**
+   * Returns a context for all the classes marked {@code @ProducerModule} which are listed in the
+   * module indices generated by the annotation processor. See {@link ModuleDiscovery}.
+   */
+  public static ProducerContext forDiscoveredModules() {
+    ClassLoader classLoader = ProducerContext.class.getClassLoader();
+    return builder().addFactories(ModuleDiscovery.fromIndex(classLoader)).build();
+  }
+
+  /**
+   * Returns a context for the producers supplied by the given factories, as generated at compile
+   * time for classes annotated with {@code @ProducerModule}. Unlike {@link #forClasses}, this does
+   * not require any reflection on the producer modules.
+   */
+  public static ProducerContext forFactories(ProducerFactory... factories) {
+    return builder().addFactories(Arrays.asList(factories)).build();
   }
 
   @VisibleForTesting
   static ProducerContext createForTesting(Class<?>... classes) {
-    return new ProducerContext(
-        ImmutableList.copyOf(classes), MoreExecutors.newDirectExecutorService());
+    return builder()
+        .addClasses(classes)
+        .executor(MoreExecutors.directExecutor())
+        .build();
   }
 
-  private ProducerContext(ImmutableList<Class<?>> classes, ExecutorService executor) {
-    this.executor = executor;
+  private ProducerContext(
+      ImmutableList<ProducerBinding> bindings,
+      Executor executor,
+      ImmutableMap<Key<?>, Executor> producerExecutors,
+      ImmutableMap<Key<?>, Integer> concurrencyLimits,
+      ImmutableMap<Key<?>, CachePolicy> cachePolicies,
+      ImmutableMap<Key<?>, Duration> timeouts,
+      InliningPolicy inliningPolicy,
+      ScheduledExecutorService timer,
+      ImmutableList<GraphListener> listeners,
+      Optional<Consumer<GraphTrace>> traceSink,
+      int traceSampleEvery,
+      boolean prioritized) {
+    // Producers sharing an executor share a queue, so that priorities apply across producers.
+    Map<Executor, PriorityExecutor> priorityExecutors = new IdentityHashMap<>();
+    HashMap<Key<?>, ProducerRuntime> producers = new HashMap<>();
+    HashMultimap<Key<?>, ProducerRuntime> setProducers = HashMultimap.create();
+    for (ProducerBinding binding : bindings) {
+      Executor producerExecutor = producerExecutors.getOrDefault(binding.key(), executor);
+      ProducerRuntime runtime = new ProducerRuntime(
+          binding,
+          producerExecutor,
+          inliningPolicy,
+          concurrencyLimits.getOrDefault(binding.key(), binding.concurrencyLimit()),
+          cachePolicies.containsKey(binding.key())
+              ? Optional.of(cachePolicies.get(binding.key()))
+              : binding.cachePolicy(),
+          timeouts.containsKey(binding.key())
+              ? Optional.of(timeouts.get(binding.key()))
+              : binding.timeout(),
+          timer,
+          prioritized
+              ? Optional.of(
+                  priorityExecutors.computeIfAbsent(producerExecutor, PriorityExecutor::new))
+              : Optional.empty());
+      if (binding.intoSet()) {
+        setProducers.put(binding.key(), runtime);
+        continue;
+      }
+      if (producers.containsKey(binding.key())) {
+        ProducerBinding existing = producers.get(binding.key()).binding();
+        throw new IllegalArgumentException(String.format(
+            "Already have producer [%s] for key [%s]. Cannot add new producer [%s]",
+            existing.name(), binding.key(), binding.name()));
+      }
+      producers.put(binding.key(), runtime);
+    }
 
-    HashMap<Key<?>, Method> producers = new HashMap<>();
-    HashMultimap<Key<?>, Method> setProducers = HashMultimap.create();
-    computeProducerMap(classes, producers, setProducers);
+    Iterable<Key<?>> configuredKeys = Iterables.concat(
+        producerExecutors.keySet(),
+        concurrencyLimits.keySet(),
+        cachePolicies.keySet(),
+        timeouts.keySet());
+    for (Key<?> key : configuredKeys) {
+      if (!producers.containsKey(key) && !setProducers.containsKey(key)) {
+        throw new IllegalArgumentException("Cannot configure unknown producer: " + key);
+      }
+    }
 
     this.producers = ImmutableMap.copyOf(producers);
     this.setProducers = ImmutableMultimap.copyOf(setProducers);
+
+    this.plans = new ConcurrentHashMap<>();
+    this.planCacheHits = new AtomicLong();
+    this.planCacheMisses = new AtomicLong();
+    this.executor = executor;
+    this.timer = timer;
+    this.listeners = listeners;
+    this.traceSink = traceSink;
+    this.traceSampleEvery = traceSampleEvery;
+    this.numGraphs = new AtomicLong();
+    this.prioritized = prioritized;
   }
 
   /**
@@ -73,10 +194,66 @@ public class ProducerContext {
    * Returns a new {@link Graph} instance which can be used to produce a value for the supplied key.
    */
   public <T> Graph<T> newGraph(Key<T> key) {
-    HashMap<Key<?>, Node<?>> nodes = new HashMap<>();
-    HashMap<Key<?>, Node<?>> explicitInputs = new HashMap<>();
-    Node<T> root = addNodes(key, nodes, explicitInputs);
-    return new Graph<>(executor, root, ImmutableMap.copyOf(explicitInputs));
+    return new Graph<>(
+        planFor(key), timer, listeners, sampleTrace(), Optional.empty(), prioritized);
+  }
+
+  /**
+   * Returns a new {@link Graph} instance which produces values for all the supplied keys at once.
+   * Nodes needed for several of the keys are shared, and each explicit input only has to be added
+   * once. The result of the graph holds the output for every key, each of which may have failed
+   * independently of the others.
+   */
+  public Graph<ProducerResults> newGraph(Set<Key<?>> keys) {
+    Preconditions.checkArgument(!keys.isEmpty(), "Must request at least one key");
+    GraphPlan<ProducerResults> plan = planFor(ImmutableSet.copyOf(keys));
+    return new Graph<>(plan, timer, listeners, sampleTrace(), Optional.empty(), prioritized);
+  }
+
+  /**
+   * Runs a graph for the supplied key for each of the given sets of explicit inputs, and returns a
+   * stream of the results in input order. Inputs are only consumed as results are taken from the
+   * stream: at most {@code maxInFlight} graphs run at any time, and at most as many completed
+   * results wait to be taken. The plan is shared by all graphs, which are constructed and started
+   * in chunks on the executor of this context. Cancelling the stream cancels the running graphs.
+   */
+  public <T> ProducerStream<Present<T>> runAll(
+      Key<T> key, Iterator<? extends Map<Key<?>, ?>> inputs, int maxInFlight) {
+    Preconditions.checkArgument(maxInFlight > 0, "Must allow at least one graph in flight");
+    GraphPlan<T> plan = planFor(key);
+    return new BulkRun<>(
+        () -> new Graph<>(plan, timer, listeners, sampleTrace(), Optional.empty(), prioritized),
+        inputs,
+        maxInFlight,
+        executor).start();
+  }
+
+  /**
+   * Like {@link #runAll(Key, Iterator, int)}, but returns all results at once, in input order, once
+   * all graphs have completed.
+   */
+  public <T> ListenableFuture<ImmutableList<Present<T>>> runAll(
+      Key<T> key, Iterable<? extends Map<Key<?>, ?>> inputs) {
+    ImmutableList.Builder<Present<T>> results = ImmutableList.builder();
+    ListenableFuture<Void> done =
+        runAll(key, inputs.iterator(), DEFAULT_MAX_IN_FLIGHT).forEach(results::add);
+    return Futures.transform(done, ignored -> results.build(), MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Returns a new {@link IncrementalGraph} for the supplied key, which can be run repeatedly and
+   * only recomputes the nodes affected by changed inputs.
+   */
+  public <T> IncrementalGraph<T> newIncrementalGraph(Key<T> key) {
+    return new IncrementalGraph<>(planFor(key), timer, listeners, this::sampleTrace, prioritized);
+  }
+
+  /** Returns the trace sink if the next graph is to be traced. */
+  private Optional<Consumer<GraphTrace>> sampleTrace() {
+    if (!traceSink.isPresent() || numGraphs.getAndIncrement() % traceSampleEvery != 0) {
+      return Optional.empty();
+    }
+    return traceSink;
   }
 
   /** Returns the set of keys for which graphs can be created. */
@@ -84,24 +261,104 @@ public class ProducerContext {
     return producers.keySet();
   }
 
+  /** Returns statistics about the plans cached by this context. */
+  public PlanCacheStats planCacheStats() {
+    return new PlanCacheStats(planCacheHits.get(), planCacheMisses.get(), plans.size());
+  }
+
   /**
-   * Creates a node that satisfies the supplied key and returns it. Recursively creates all
-   * dependency nodes of the created node.
+   * Returns the state of the concurrency limits of all producers which have one, keyed by the name
+   * of the producer.
    */
-  private <T> Node<T> addNodes(
-      Key<T> key,
-      HashMap<Key<?>, Node<?>> nodes,
-      HashMap<Key<?>, Node<?>> explicitInputs) {
-    if (nodes.containsKey(key)) {
-      return (Node<T>) nodes.get(key);
+  public ImmutableMap<String, BulkheadStats> bulkheadStats() {
+    ImmutableMap.Builder<String, BulkheadStats> result = ImmutableMap.builder();
+    for (ProducerRuntime producer : Iterables.concat(producers.values(), setProducers.values())) {
+      Optional<BulkheadStats> stats = producer.bulkheadStats();
+      if (stats.isPresent()) {
+        result.put(producer.binding().name(), stats.get());
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns the state of the caches of all cacheable producers, keyed by the name of the producer.
+   */
+  public ImmutableMap<String, ProducerCacheStats> cacheStats() {
+    ImmutableMap.Builder<String, ProducerCacheStats> result = ImmutableMap.builder();
+    for (ProducerRuntime producer : Iterables.concat(producers.values(), setProducers.values())) {
+      Optional<ProducerCacheStats> stats = producer.cacheStats();
+      if (stats.isPresent()) {
+        result.put(producer.binding().name(), stats.get());
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns the state of the hedging of all hedged producers, keyed by the name of the producer.
+   */
+  public ImmutableMap<String, HedgeStats> hedgeStats() {
+    ImmutableMap.Builder<String, HedgeStats> result = ImmutableMap.builder();
+    for (ProducerRuntime producer : Iterables.concat(producers.values(), setProducers.values())) {
+      Optional<HedgeStats> stats = producer.hedgeStats();
+      if (stats.isPresent()) {
+        result.put(producer.binding().name(), stats.get());
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns the (possibly cached) plan for graphs producing the supplied roots, which are either a
+   * single key or a set of keys.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> GraphPlan<T> planFor(Object roots) {
+    GraphPlan<?> plan = plans.get(roots);
+    if (plan != null) {
+      planCacheHits.incrementAndGet();
+      return (GraphPlan<T>) plan;
+    }
+    // Callers blocked while another thread plans the same roots get the cached plan, i.e., a hit.
+    boolean[] planned = new boolean[1];
+    plan = plans.computeIfAbsent(roots, r -> {
+      planned[0] = true;
+      GraphPlan.Builder builder = new GraphPlan.Builder();
+      if (r instanceof Key) {
+        return builder.build(addNodes((Key<?>) r, builder));
+      }
+      ImmutableList<Key<?>> rootKeys = ((ImmutableSet<Key<?>>) r).asList();
+      int[] rootNodes = new int[rootKeys.size()];
+      for (int i = 0; i < rootKeys.size(); ++i) {
+        rootNodes[i] = addNodes(rootKeys.get(i), builder);
+      }
+      return builder.build(builder.addResults(rootKeys, rootNodes));
+    });
+    if (planned[0]) {
+      planCacheMisses.incrementAndGet();
+    } else {
+      planCacheHits.incrementAndGet();
+    }
+    return (GraphPlan<T>) plan;
+  }
+
+  /**
+   * Adds a node that satisfies the supplied key to the plan and returns its index. Recursively adds
+   * all dependency nodes of the added node.
+   */
+  private int addNodes(Key<?> key, GraphPlan.Builder plan) {
+    Optional<Integer> existing = plan.indexOf(key);
+    if (existing.isPresent()) {
+      return existing.get();
     }
 
     // Try to find a producer which produces this key straight-up.
-    Method producer = producers.get(key);
+    ProducerRuntime producer = producers.get(key);
     if (producer != null) {
-      Node<?> node = addProducerNode(producer, nodes, explicitInputs);
-      nodes.put(key, node);
-      return (Node<T>) node;
+      int node = addProducerNode(producer, plan);
+      plan.associate(key, node);
+      return node;
     }
 
     // Try to resolve a bunch of producers which produce elements into this set.
@@ -118,128 +375,283 @@ public class ProducerContext {
       }
 
       // Find all the producers.
-      Collection<Method> elementProducers = setProducers.get(elementKey);
+      Collection<ProducerRuntime> elementProducers = setProducers.get(elementKey);
       if (!elementProducers.isEmpty()) {
         // Add a compute node for each element.
-        ImmutableList.Builder<Node<?>> elementNodes = ImmutableList.builder();
-        for (Method elementProducer : elementProducers) {
-          // TODO(dino): Can't add the node to the nodes of the graph because there is no key to
-          // identify them by... Investigate replacing the map with a list.
-          Node<?> elementNode = addProducerNode(elementProducer, nodes, explicitInputs);
-          elementNodes.add(elementNode);
+        int[] elementNodes = new int[elementProducers.size()];
+        int i = 0;
+        for (ProducerRuntime elementProducer : elementProducers) {
+          elementNodes[i++] = addProducerNode(elementProducer, plan);
         }
 
         // Add a special compute node which assembles the elements.
-        Node<?> assemblyNode = Node.createSetAssemblyNode(elementNodes.build());
-        nodes.put(key, assemblyNode);
-        return (Node<T>) assemblyNode;
+        return plan.addSetAssembly(key, elementNodes);
       }
     }
 
     // At this point, our only option is to expect a value for this key as input to the graph.
-    Node<T> constantNode = Node.createConstantNode();
-    nodes.put(key, constantNode);
-    explicitInputs.put(key, constantNode);
-    return constantNode;
-  }
-
-  private Node<?> addProducerNode(
-      Method producer,
-      HashMap<Key<?>, Node<?>> nodes,
-      HashMap<Key<?>, Node<?>> explicitInputs) {
-    ImmutableList.Builder<Node<?>> directDependencies = ImmutableList.builder();
-    for (int i = 0; i < producer.getGenericParameterTypes().length; ++i) {
-      ParameterizedType genericType = (ParameterizedType) producer.getGenericParameterTypes()[i];
-      ImmutableList<Annotation> annotations =
-          ImmutableList.copyOf(producer.getParameterAnnotations()[i]);
-      Key<?> dependencyKey = producerKeyForParameterType(genericType, annotations);
-      Node<?> dependencyNode = addNodes(dependencyKey, nodes, explicitInputs);
-      directDependencies.add(dependencyNode);
-    }
-    return Node.createComputedNode(producer, directDependencies.build());
-  }
-
-  private static void computeProducerMap(
-      ImmutableList<Class<?>> classes,
-      Map<Key<?>, Method> producers,
-      Multimap<Key<?>, Method> setProducers) {
-    for (Class<?> clazz : classes) {
-      for (Method method : clazz.getDeclaredMethods()) {
-        if (!Modifier.isStatic(method.getModifiers())) {
-          throw new IllegalArgumentException("Cannot have non-static producer: " + method);
-        }
+    return plan.addInput(key);
+  }
 
-        // Check for regular producer.
-        if (method.isAnnotationPresent(Produces.class)) {
-          Key<?> key = producerKeyForReturnType(method);
-          if (producers.containsKey(key)) {
-            Method existing = producers.get(key);
-            throw new IllegalArgumentException(String.format(
-                "Already have producer [%s] for key [%s]. Cannot add new producer [%s]",
-                existing.getName(), key, method.getName()));
-          }
-          producers.put(key, method);
-          continue;
-        }
+  /**
+   * Adds a node for the supplied producer to the plan, unless there already is one, and returns its
+   * index. Nodes are identified by their producer rather than by key, so that the producers of set
+   * elements run at most once per graph, no matter how many sets they contribute to.
+   */
+  private int addProducerNode(ProducerRuntime producer, GraphPlan.Builder plan) {
+    Optional<Integer> existing = plan.indexOf(producer);
+    if (existing.isPresent()) {
+      return existing.get();
+    }
+    ImmutableList<Key<?>> dependencyKeys = producer.binding().dependencies();
+    int[] directDependencies = new int[dependencyKeys.size()];
+    for (int i = 0; i < dependencyKeys.size(); ++i) {
+      directDependencies[i] = addNodes(dependencyKeys.get(i), plan);
+    }
+    ImmutableSet<Integer> lazyDependencies = producer.binding().lazyDependencies();
+    boolean[] lazy = new boolean[lazyDependencies.isEmpty() ? 0 : dependencyKeys.size()];
+    for (int dependency : lazyDependencies) {
+      lazy[dependency] = true;
+    }
+    return plan.addProducer(producer, directDependencies, lazy);
+  }
 
-        // Check for set producer.
-        if (method.isAnnotationPresent(ProducesIntoSet.class)) {
-          Key<?> key = producerKeyForReturnType(method);
-          setProducers.put(key, method);
-          continue;
-        }
-      }
+  /**
+   * Returns an executor which starts a new virtual thread for each task. Virtual threads are only
+   * available on Java 21 and later, so they are looked up reflectively.
+   */
+  private static Executor newVirtualThreadExecutor() {
+    try {
+      return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
     }
   }
 
-  /** Returns the {@link Key} representing the return type of the supplied method. */
-  private static Key<?> producerKeyForReturnType(Method method) {
-    ImmutableSet<Class<? extends Annotation>> annotations =
-        Arrays.stream(method.getDeclaredAnnotations())
-            .filter(ProducerContext::isBindingAnnotation)
-            .map(Annotation::annotationType)
-            .collect(ImmutableSet.toImmutableSet());
+  /**
+   * Returns a scheduler with a single daemon thread, which is only started once needed and exits
+   * once idle. Cancelled tasks are removed right away, so that pending timeouts which are no longer
+   * needed do not keep the thread alive.
+   */
+  private static ScheduledExecutorService newDefaultTimer() {
+    ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(
+        1 /* corePoolSize */,
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("jproducers-timer-%d")
+            .build());
+    result.setRemoveOnCancelPolicy(true);
+    result.setKeepAliveTime(DEFAULT_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+    result.allowCoreThreadTimeOut(true);
+    return result;
+  }
 
-    Type producedType = Types.extractProducedType(method);
-    if (annotations.isEmpty()) {
-      return Key.get(producedType);
-    } else if (annotations.size() == 1) {
-      return Key.get(producedType, annotations.iterator().next());
-    } else {
-      throw new IllegalArgumentException(
-          "Can only have one non-Produces annotation, but got multiple for method: " + method);
-    }
+  /**
+   * Returns a pool of daemon threads with one thread per available processor. The context cannot
+   * shut the pool down, so idle threads exit instead of being held by the context forever.
+   */
+  private static Executor newDefaultThreadPool() {
+    int threads = Runtime.getRuntime().availableProcessors();
+    ThreadPoolExecutor result = new ThreadPoolExecutor(
+        threads,
+        threads,
+        DEFAULT_KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("jproducers-%d")
+            .build());
+    result.allowCoreThreadTimeOut(true);
+    return result;
   }
 
-  private static Key<?> producerKeyForParameterType(
-      ParameterizedType parametrizedType, ImmutableList<Annotation> annotations) {
-    ImmutableSet<Class<? extends Annotation>> annotationSet = annotations.stream()
-        .filter(ProducerContext::isBindingAnnotation)
-        .map(Annotation::annotationType)
-        .collect(ImmutableSet.toImmutableSet());
+  public static class Builder {
+    private final ImmutableList.Builder<ProducerFactory> factories;
+    private final HashMap<Key<?>, Executor> producerExecutors;
+    private final HashMap<Key<?>, Integer> concurrencyLimits;
+    private final HashMap<Key<?>, CachePolicy> cachePolicies;
+    private final HashMap<Key<?>, Duration> timeouts;
+    private final ImmutableList.Builder<GraphListener> listeners;
+    private Optional<Executor> executor;
+    private boolean useVirtualThreads;
+    private InliningPolicy inliningPolicy;
+    private Optional<ScheduledExecutorService> timer;
+    private Optional<Consumer<GraphTrace>> traceSink;
+    private int traceSampleEvery;
+    private boolean prioritized;
 
-    // By taking type argument[0] below, we encode that all producer arguments must be presents.
-    // TODO(dino): Support parameters which are not presents.
-    if (!parametrizedType.getRawType().equals(Present.class)) {
-      throw new IllegalArgumentException(
-          "Expected " + parametrizedType.getTypeName() + " to be a Present");
+    private Builder() {
+      this.factories = ImmutableList.builder();
+      this.producerExecutors = new HashMap<>();
+      this.concurrencyLimits = new HashMap<>();
+      this.cachePolicies = new HashMap<>();
+      this.timeouts = new HashMap<>();
+      this.executor = Optional.empty();
+      this.useVirtualThreads = false;
+      this.inliningPolicy = InliningPolicy.annotatedOnly();
+      this.timer = Optional.empty();
+      this.listeners = ImmutableList.builder();
+      this.traceSink = Optional.empty();
+      this.traceSampleEvery = 1;
+      this.prioritized = false;
     }
-    Type presentType = parametrizedType.getActualTypeArguments()[0];
 
-    if (annotationSet.isEmpty()) {
-      return Key.get(presentType);
-    } else if (annotationSet.size() == 1) {
-      return Key.get(presentType, annotationSet.iterator().next());
-    } else {
-      throw new IllegalArgumentException(
-          "Can only have one annotation, but got multiple for type: " + parametrizedType);
+    /** Adds the producers of the supplied classes, discovered reflectively. */
+    public Builder addClasses(Class<?>... classes) {
+      for (Class<?> clazz : classes) {
+        factories.add(new ReflectiveProducerFactory(clazz));
+      }
+      return this;
     }
-  }
 
-  /**
-   * Returns whether the supplied annotation is itself annotations with {@link BindingAnnotation}.
-   */
-  private static boolean isBindingAnnotation(Annotation annotation) {
-    return annotation.annotationType().isAnnotationPresent(BindingAnnotation.class);
+    /** Adds the producers supplied by the given factories. */
+    public Builder addFactories(Iterable<? extends ProducerFactory> factories) {
+      this.factories.addAll(factories);
+      return this;
+    }
+
+    /**
+     * Sets the executor used to run producers. Defaults to a pool of daemon threads with one thread
+     * per available processor, whose threads exit after being idle for a minute.
+     */
+    public Builder executor(Executor executor) {
+      Preconditions.checkState(!useVirtualThreads, "Already configured to use virtual threads");
+      this.executor = Optional.of(executor);
+      return this;
+    }
+
+    /**
+     * Runs every producer on a new virtual thread, which makes producers which block cheap.
+     * Requires Java 21 or later.
+     */
+    public Builder useVirtualThreads() {
+      Preconditions.checkState(!executor.isPresent(), "Already configured to use an executor");
+      this.useVirtualThreads = true;
+      return this;
+    }
+
+    /**
+     * Runs the producers of the supplied key on the given executor rather than on the executor of
+     * the context. For a key of a set element, this applies to all the producers of elements. Each
+     * key can only be given one executor.
+     */
+    public Builder executorFor(Key<?> key, Executor executor) {
+      Preconditions.checkArgument(
+          !producerExecutors.containsKey(key), "Already have an executor for key: " + key);
+      producerExecutors.put(key, executor);
+      return this;
+    }
+
+    /**
+     * Limits the number of concurrent executions of the producers of the supplied key across all
+     * graphs, taking precedence over {@code @ConcurrencyLimit}. For a key of a set element, each
+     * producer of an element is limited separately. Each key can only be given one limit.
+     */
+    public Builder concurrencyLimit(Key<?> key, int limit) {
+      Preconditions.checkArgument(limit > 0, "Concurrency limit must be positive");
+      Preconditions.checkArgument(
+          !concurrencyLimits.containsKey(key), "Already have a concurrency limit for key: " + key);
+      concurrencyLimits.put(key, limit);
+      return this;
+    }
+
+    /**
+     * Caches the outputs of the producers of the supplied key across graphs according to the given
+     * policy, taking precedence over {@code @Cacheable}. Only use this for deterministic producers.
+     * Each key can only be given one policy.
+     */
+    public Builder cachePolicy(Key<?> key, CachePolicy cachePolicy) {
+      Preconditions.checkArgument(
+          !cachePolicies.containsKey(key), "Already have a cache policy for key: " + key);
+      cachePolicies.put(key, cachePolicy);
+      return this;
+    }
+
+    /**
+     * Bounds the duration of the executions of the producers of the supplied key, taking precedence
+     * over the duration of {@code @Timeout}. A fallback declared with the annotation still applies.
+     * Each key can only be given one timeout.
+     */
+    public Builder timeout(Key<?> key, Duration timeout) {
+      Preconditions.checkArgument(
+          !timeout.isNegative() && !timeout.isZero(), "Timeout must be positive");
+      Preconditions.checkArgument(
+          !timeouts.containsKey(key), "Already have a timeout for key: " + key);
+      timeouts.put(key, timeout);
+      return this;
+    }
+
+    /** Sets the policy deciding which producers run inline rather than on their executor. */
+    public Builder inliningPolicy(InliningPolicy inliningPolicy) {
+      this.inliningPolicy = inliningPolicy;
+      return this;
+    }
+
+    /**
+     * Sets the scheduler used for time-based behavior such as batch windows and deadlines.
+     * Scheduled tasks are short and hand any actual work off to the executors of the producers.
+     * Defaults to a single daemon thread, which exits after being idle for a minute.
+     */
+    public Builder timer(ScheduledExecutorService timer) {
+      this.timer = Optional.of(timer);
+      return this;
+    }
+
+    /**
+     * Adds a listener notified of the lifecycle of every producer node of every graph, e.g., a
+     * {@link LatencyRecorder}. Without listeners, no timestamps are taken at all.
+     */
+    public Builder addListener(GraphListener listener) {
+      listeners.add(listener);
+      return this;
+    }
+
+    /**
+     * Traces one in every {@code sampleEvery} graph runs and passes the traces to the supplied sink
+     * once the respective graph has completed, on the thread completing it. Runs which are not
+     * sampled take no timestamps for tracing at all.
+     */
+    public Builder trace(int sampleEvery, Consumer<GraphTrace> sink) {
+      Preconditions.checkArgument(sampleEvery > 0, "Sampling rate must be positive");
+      this.traceSampleEvery = sampleEvery;
+      this.traceSink = Optional.of(sink);
+      return this;
+    }
+
+    /**
+     * Starts the nodes which are waiting for a thread in order of their estimated remaining
+     * critical path, i.e., the longest chain of producers between the node and the root of its
+     * graph, rather than in the order they became ready. The chains are weighted by moving
+     * averages of the latencies of the producers, which are measured for every node. This helps
+     * the slowest path of a graph make progress when the executor is contended.
+     */
+    public Builder prioritizeCriticalPath() {
+      this.prioritized = true;
+      return this;
+    }
+
+    public ProducerContext build() {
+      ImmutableList.Builder<ProducerBinding> bindings = ImmutableList.builder();
+      for (ProducerFactory factory : factories.build()) {
+        bindings.addAll(factory.bindings());
+      }
+      Executor contextExecutor = useVirtualThreads
+          ? newVirtualThreadExecutor()
+          : executor.orElseGet(ProducerContext::newDefaultThreadPool);
+      return new ProducerContext(
+          bindings.build(),
+          contextExecutor,
+          ImmutableMap.copyOf(producerExecutors),
+          ImmutableMap.copyOf(concurrencyLimits),
+          ImmutableMap.copyOf(cachePolicies),
+          ImmutableMap.copyOf(timeouts),
+          inliningPolicy,
+          timer.orElseGet(ProducerContext::newDefaultTimer),
+          listeners.build(),
+          traceSink,
+          traceSampleEvery,
+          prioritized);
+    }
   }
-}
\ No newline at end of file
+}
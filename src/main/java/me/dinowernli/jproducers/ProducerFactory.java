@@ -0,0 +1,13 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Supplies the producers of a single {@code @ProducerModule} class without the need for reflection.
+ * Implementations are generated at compile time by the jproducers annotation processor and are
+ * named after their module, e.g., {@code FooModule_ProducerFactory} for {@code FooModule}.
+ */
+public interface ProducerFactory {
+  /** Returns the bindings of all the producers declared in the module. */
+  ImmutableList<ProducerBinding> bindings();
+}
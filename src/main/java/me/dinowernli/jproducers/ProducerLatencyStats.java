@@ -0,0 +1,65 @@
+package me.dinowernli.jproducers;
+
+/** A snapshot of the latencies and failures of a single producer, as seen by a recorder. */
+public class ProducerLatencyStats {
+  private final long failureCount;
+  private final LatencyHistogram queueLatency;
+  private final LatencyHistogram runLatency;
+  private final LatencyHistogram futureLatency;
+  private final LatencyHistogram totalLatency;
+
+  ProducerLatencyStats(
+      long failureCount,
+      LatencyHistogram queueLatency,
+      LatencyHistogram runLatency,
+      LatencyHistogram futureLatency,
+      LatencyHistogram totalLatency) {
+    this.failureCount = failureCount;
+    this.queueLatency = queueLatency;
+    this.runLatency = runLatency;
+    this.futureLatency = futureLatency;
+    this.totalLatency = totalLatency;
+  }
+
+  /** Returns the number of completed nodes of the producer, successful or not. */
+  public long count() {
+    return totalLatency.count();
+  }
+
+  /** Returns the number of nodes of the producer which failed, were cancelled or timed out. */
+  public long failureCount() {
+    return failureCount;
+  }
+
+  /** Returns the fraction of the nodes of the producer which failed. */
+  public double errorRate() {
+    return count() == 0 ? 0 : (double) failureCount / count();
+  }
+
+  /** Returns the time nodes spent waiting for a thread or a permit after being scheduled. */
+  public LatencyHistogram queueLatency() {
+    return queueLatency;
+  }
+
+  /** Returns the time spent running the producer itself. */
+  public LatencyHistogram runLatency() {
+    return runLatency;
+  }
+
+  /** Returns the time spent waiting for the futures returned by the producer. */
+  public LatencyHistogram futureLatency() {
+    return futureLatency;
+  }
+
+  /** Returns the time from scheduling nodes to their values being available. */
+  public LatencyHistogram totalLatency() {
+    return totalLatency;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "ProducerLatencyStats{count=%d, failures=%d, queue=%s, run=%s, future=%s, total=%s}",
+        count(), failureCount, queueLatency, runLatency, futureLatency, totalLatency);
+  }
+}
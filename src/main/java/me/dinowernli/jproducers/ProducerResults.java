@@ -0,0 +1,38 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Key;
+
+/**
+ * The outputs of a graph with several root keys, see
+ * {@link ProducerContext#newGraph(java.util.Set)}. Each output is either a value or an error,
+ * independently of the others.
+ */
+public class ProducerResults {
+  private final ImmutableMap<Key<?>, Present<?>> results;
+
+  ProducerResults(ImmutableMap<Key<?>, Present<?>> results) {
+    this.results = results;
+  }
+
+  /** Returns the keys the graph was created for. */
+  public ImmutableSet<Key<?>> keys() {
+    return results.keySet();
+  }
+
+  /** Returns the output for the supplied key, which must be one of the keys of the graph. */
+  @SuppressWarnings("unchecked")
+  public <T> Present<T> get(Key<T> key) {
+    Present<?> result = results.get(key);
+    if (result == null) {
+      throw new IllegalArgumentException("Not a root key of the graph: " + key);
+    }
+    return (Present<T>) result;
+  }
+
+  /** Returns the output for the supplied type with no annotations. */
+  public <T> Present<T> get(Class<T> clazz) {
+    return get(Key.get(clazz));
+  }
+}
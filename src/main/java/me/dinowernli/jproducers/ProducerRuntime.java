@@ -0,0 +1,333 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the runtime state of a single producer within a {@link ProducerContext}. This state is
+ * shared by all the graphs of the context.
+ */
+class ProducerRuntime {
+  /** The weight of the most recent sample in the moving average, as a power of two. */
+  private static final int AVERAGE_SHIFT = 3;
+
+  private final ProducerBinding binding;
+  private final Executor executor;
+  private final InliningPolicy inliningPolicy;
+
+  /** Present if the number of concurrent executions of the producer is limited. */
+  private final Optional<Bulkhead> bulkhead;
+
+  /** Present if the outputs of the producer are cached across graphs. */
+  private final Optional<ProducerCache> cache;
+
+  /** Present if the producer handles batches of executions. */
+  private final Optional<Batcher> batcher;
+
+  private final Optional<Duration> timeout;
+  private final ScheduledExecutorService timer;
+
+  /** Present if slow executions of the producer are hedged by a second attempt. */
+  private final Optional<Hedger> hedger;
+
+  /** Present if executions are started in order of priority rather than in order of readiness. */
+  private final Optional<PriorityExecutor> priorityExecutor;
+
+  /** The number of measured executions of the producer. */
+  private final AtomicLong executions;
+
+  /**
+   * An exponentially weighted moving average of the execution time of the producer. Concurrent
+   * updates may occasionally lose a sample, which is fine for an estimate.
+   */
+  private volatile long averageNanos;
+
+  /** The number of completed nodes of the producer whose latency has been measured. */
+  private final AtomicLong completions;
+
+  /**
+   * An exponentially weighted moving average of the time from starting an execution of the
+   * producer to its value being available, i.e., including any returned future. Only measured for
+   * contexts which prioritize executions.
+   */
+  private volatile long averageLatencyNanos;
+
+  ProducerRuntime(
+      ProducerBinding binding,
+      Executor executor,
+      InliningPolicy inliningPolicy,
+      int concurrencyLimit,
+      Optional<CachePolicy> cachePolicy,
+      Optional<Duration> timeout,
+      ScheduledExecutorService timer,
+      Optional<PriorityExecutor> priorityExecutor) {
+    this.binding = binding;
+    this.executor = executor;
+    this.inliningPolicy = inliningPolicy;
+    this.bulkhead = concurrencyLimit > 0
+        ? Optional.of(new Bulkhead(concurrencyLimit, executor))
+        : Optional.empty();
+    this.cache = cachePolicy.map(ProducerCache::new);
+    this.batcher = binding.batched()
+        ? Optional.of(new Batcher(binding, executor, timer))
+        : Optional.empty();
+    this.timeout = timeout;
+    this.timer = timer;
+    this.hedger = binding.hedged()
+        ? Optional.of(new Hedger(binding.hedgePercentile(), binding.maxHedgeLoad(), timer))
+        : Optional.empty();
+    this.priorityExecutor = priorityExecutor;
+    this.executions = new AtomicLong();
+    this.completions = new AtomicLong();
+  }
+
+  ProducerBinding binding() {
+    return binding;
+  }
+
+  /** Returns the state of the concurrency limit of the producer, if it has one. */
+  Optional<BulkheadStats> bulkheadStats() {
+    return bulkhead.map(Bulkhead::stats);
+  }
+
+  /** Returns the state of the cache of the producer, if it is cacheable. */
+  Optional<ProducerCacheStats> cacheStats() {
+    return cache.map(ProducerCache::stats);
+  }
+
+  /** Returns the state of the hedging of the producer, if it is hedged. */
+  Optional<HedgeStats> hedgeStats() {
+    return hedger.map(Hedger::stats);
+  }
+
+  /** Returns whether slow executions of the producer are hedged by a second attempt. */
+  boolean hedged() {
+    return hedger.isPresent();
+  }
+
+  /** Returns whether the executions of the producer are bounded by a timeout. */
+  boolean hasTimeout() {
+    return timeout.isPresent();
+  }
+
+  /** Returns whether the outputs of the producer are cached across graphs. */
+  boolean cacheable() {
+    return cache.isPresent();
+  }
+
+  /**
+   * Returns the output of an execution of this producer with the same arguments, which may still be
+   * in flight, if the producer is cacheable and there is one. Otherwise, registers the supplied
+   * future (which the caller must complete) as the output for these arguments.
+   */
+  Optional<ListenableFuture<?>> cachedOutput(Object[] arguments, ListenableFuture<?> execution) {
+    if (!cache.isPresent()) {
+      return Optional.empty();
+    }
+    return cache.get().lookup(arguments, execution);
+  }
+
+  /**
+   * Starts the supplied execution of the producer, either inline or on the executor of the
+   * producer. If the producer has a concurrency limit, the execution may be queued until a permit
+   * becomes available. Every execution must eventually call {@link #onExecutionFinished()}.
+   *
+   * <p>If the context prioritizes executions, those waiting for a thread start in order of the
+   * supplied priority. Executions waiting for a permit still start in order of arrival.
+   */
+  void dispatch(Runnable execution, long priority) {
+    Executor starter = runInline()
+        ? MoreExecutors.directExecutor()
+        : priorityExecutor.isPresent() ? priorityExecutor.get().withPriority(priority) : executor;
+    if (bulkhead.isPresent()) {
+      bulkhead.get().submit(execution, starter);
+    } else {
+      starter.execute(execution);
+    }
+  }
+
+  /**
+   * Returns the future which an execution of the producer with the supplied arguments should
+   * follow, given the future returned by the producer. If the producer is hedged, this may instead
+   * take the value of a second execution, see {@link Hedger}.
+   */
+  ListenableFuture<Object> hedged(ListenableFuture<Object> output, Object[] arguments) {
+    if (!hedger.isPresent()) {
+      return output;
+    }
+    return hedger.get().hedge(output, () -> startHedge(arguments));
+  }
+
+  /**
+   * Starts a second execution of the producer on its executor, ahead of any waiting executions
+   * since it is already late. It still counts towards the concurrency limit of the producer.
+   */
+  private ListenableFuture<Object> startHedge(Object[] arguments) {
+    SettableFuture<Object> attempt = SettableFuture.create();
+    Runnable execution = () -> {
+      if (attempt.isCancelled()) {
+        onExecutionFinished();
+        return;
+      }
+      Object output;
+      try {
+        output = invoke(arguments);
+      } catch (Throwable t) {
+        attempt.setException(new RuntimeException("Unable to execute producer", t));
+        onExecutionFinished();
+        return;
+      }
+      if (output instanceof ListenableFuture) {
+        ListenableFuture<?> outFuture = (ListenableFuture<?>) output;
+        attempt.setFuture(outFuture);
+        outFuture.addListener(this::onExecutionFinished, MoreExecutors.directExecutor());
+      } else {
+        attempt.set(output);
+        onExecutionFinished();
+      }
+    };
+    Executor starter = priorityExecutor.isPresent()
+        ? priorityExecutor.get().withPriority(Long.MAX_VALUE)
+        : executor;
+    if (bulkhead.isPresent()) {
+      bulkhead.get().submit(execution, starter);
+    } else {
+      starter.execute(execution);
+    }
+    return attempt;
+  }
+
+  /** Called once an execution of the producer has completed, including any returned future. */
+  void onExecutionFinished() {
+    if (bulkhead.isPresent()) {
+      bulkhead.get().release();
+    }
+  }
+
+  /**
+   * Returns the estimated time from starting an execution of the producer to its value being
+   * available. Producers which have not completed yet are estimated to take a nanosecond, so that
+   * unmeasured paths are compared by their number of producers.
+   */
+  long latencyEstimateNanos() {
+    return Math.max(1, averageLatencyNanos);
+  }
+
+  /** Records the latency of a completed node of the producer, see {@link #latencyEstimateNanos}. */
+  void recordLatency(long nanos) {
+    long average = averageLatencyNanos;
+    averageLatencyNanos = completions.getAndIncrement() == 0
+        ? nanos
+        : average + ((nanos - average) >> AVERAGE_SHIFT);
+  }
+
+  /** Returns whether the producer should run on the thread which completed its dependencies. */
+  private boolean runInline() {
+    // Adding an execution to a batch is cheap, the batch itself is invoked on the executor.
+    return binding.inline()
+        || batcher.isPresent()
+        || inliningPolicy.shouldInline(executions.get(), averageNanos);
+  }
+
+  /**
+   * Returns the future which an execution of the producer should complete in order to complete the
+   * supplied target. Without a timeout, this is the target itself. Otherwise, the target follows
+   * the returned future only until the timeout expires, at which point the returned future is
+   * cancelled and the target fails or receives the value of the fallback.
+   */
+  SettableFuture<Object> boundedByTimeout(SettableFuture<Object> target, Object[] arguments) {
+    if (!timeout.isPresent()) {
+      return target;
+    }
+    SettableFuture<Object> attempt = SettableFuture.create();
+    ListenableFuture<Object> bounded =
+        Futures.withTimeout(attempt, timeout.get().toNanos(), TimeUnit.NANOSECONDS, timer);
+    if (binding.fallback().isPresent()) {
+      Invoker fallback = binding.fallback().get();
+      bounded = Futures.catchingAsync(bounded, TimeoutException.class, e -> {
+        try {
+          return Futures.immediateFuture(fallback.invoke(arguments));
+        } catch (Throwable t) {
+          return Futures.immediateFailedFuture(t);
+        }
+      }, MoreExecutors.directExecutor());
+    }
+    target.setFuture(bounded);
+    return attempt;
+  }
+
+  /** Returns whether the producer returns an int, a long or a double rather than an object. */
+  boolean returnsPrimitive() {
+    Invoker invoker = binding.invoker();
+    return invoker instanceof Invoker.OfInt
+        || invoker instanceof Invoker.OfLong
+        || invoker instanceof Invoker.OfDouble;
+  }
+
+  /**
+   * Invokes a producer which returns a primitive like {@link #invoke}, and returns its output as
+   * the matching specialized present rather than boxing it.
+   */
+  Present<?> invokePrimitive(Object[] arguments) throws Throwable {
+    if (!inliningPolicy.isAdaptive()) {
+      return primitivePresent(binding.invoker(), arguments);
+    }
+    long start = System.nanoTime();
+    try {
+      return primitivePresent(binding.invoker(), arguments);
+    } finally {
+      recordExecution(System.nanoTime() - start);
+    }
+  }
+
+  private static Present<?> primitivePresent(Invoker invoker, Object[] arguments)
+      throws Throwable {
+    if (invoker instanceof Invoker.OfInt) {
+      return PresentInt.successful(((Invoker.OfInt) invoker).invokeInt(arguments));
+    } else if (invoker instanceof Invoker.OfLong) {
+      return PresentLong.successful(((Invoker.OfLong) invoker).invokeLong(arguments));
+    }
+    return PresentDouble.successful(((Invoker.OfDouble) invoker).invokeDouble(arguments));
+  }
+
+  /**
+   * Invokes the producer, measuring its execution time if required by the inlining policy. For
+   * batched producers, this adds the execution to the current batch and returns a future.
+   */
+  Object invoke(Object[] arguments) throws Throwable {
+    if (batcher.isPresent()) {
+      return batcher.get().add(arguments);
+    }
+    if (!inliningPolicy.isAdaptive()) {
+      return binding.invoker().invoke(arguments);
+    }
+    long start = System.nanoTime();
+    try {
+      return binding.invoker().invoke(arguments);
+    } finally {
+      recordExecution(System.nanoTime() - start);
+    }
+  }
+
+  private void recordExecution(long nanos) {
+    long average = averageNanos;
+    averageNanos = executions.getAndIncrement() == 0
+        ? nanos
+        : average + ((nanos - average) >> AVERAGE_SHIFT);
+  }
+
+  @Override
+  public String toString() {
+    return binding.name();
+  }
+}
@@ -0,0 +1,277 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A stream of chunks passed from a producer to a single consumer while the producer is still
+ * running, e.g., the pages of a large result set. A producer returning a stream completes as soon
+ * as it has returned the stream, so that its consumer (which takes a {@code Present} of the stream)
+ * can process the chunks as they arrive rather than once all of them have been produced.
+ *
+ * <p>The stream buffers at most {@code capacity} chunks. Once the buffer is full, the future
+ * returned by {@link #emit} only completes when the consumer has taken a chunk, and the producer
+ * must wait for it before emitting the next chunk. Neither side ever blocks a thread.
+ */
+public class ProducerStream<T> {
+  private final int capacity;
+  private final ArrayDeque<T> buffer;
+
+  /** Completes once the buffer has room again, if the producer is currently waiting for that. */
+  private SettableFuture<Void> writable;
+
+  /** The future returned to the consumer for the next chunk, if the buffer was empty. */
+  private SettableFuture<Optional<T>> reader;
+
+  private boolean completed;
+  private Throwable failure;
+  private boolean cancelled;
+
+  private ProducerStream(int capacity) {
+    this.capacity = capacity;
+    this.buffer = new ArrayDeque<>();
+  }
+
+  /** Returns a new stream which buffers up to {@code capacity} chunks. */
+  public static <T> ProducerStream<T> create(int capacity) {
+    Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+    return new ProducerStream<>(capacity);
+  }
+
+  /**
+   * Adds a chunk to the stream. Returns a future which completes once the stream can take the next
+   * chunk. The future is cancelled if the consumer has cancelled the stream, in which case the
+   * producer should stop.
+   */
+  public ListenableFuture<Void> emit(T chunk) {
+    Preconditions.checkNotNull(chunk);
+    SettableFuture<Optional<T>> waitingReader;
+    synchronized (this) {
+      Preconditions.checkState(!completed, "Cannot emit to a completed stream");
+      Preconditions.checkState(
+          writable == null || writable.isDone(), "Must wait for the previous emit to complete");
+      if (cancelled) {
+        return Futures.immediateCancelledFuture();
+      }
+      if (reader == null) {
+        buffer.add(chunk);
+        if (buffer.size() < capacity) {
+          return Futures.immediateFuture(null);
+        }
+        writable = SettableFuture.create();
+        return writable;
+      }
+      waitingReader = reader;
+      reader = null;
+    }
+    waitingReader.set(Optional.of(chunk));
+    return Futures.immediateFuture(null);
+  }
+
+  /** Marks the end of the stream once all emitted chunks have been consumed. */
+  public void complete() {
+    SettableFuture<Optional<T>> waitingReader;
+    synchronized (this) {
+      Preconditions.checkState(!completed, "Stream already completed");
+      completed = true;
+      waitingReader = reader;
+      reader = null;
+    }
+    if (waitingReader != null) {
+      waitingReader.set(Optional.empty());
+    }
+  }
+
+  /** Ends the stream with the supplied error, after all emitted chunks have been consumed. */
+  public void fail(Throwable error) {
+    SettableFuture<Optional<T>> waitingReader;
+    synchronized (this) {
+      Preconditions.checkState(!completed, "Stream already completed");
+      completed = true;
+      failure = error;
+      waitingReader = reader;
+      reader = null;
+    }
+    if (waitingReader != null) {
+      waitingReader.setException(error);
+    }
+  }
+
+  /**
+   * Returns a future for the next chunk, or for empty if the stream has ended. Fails if the
+   * producer has failed the stream. Only one call may be outstanding at any time.
+   */
+  public ListenableFuture<Optional<T>> next() {
+    T chunk;
+    SettableFuture<Void> waitingWriter = null;
+    synchronized (this) {
+      Preconditions.checkState(reader == null, "Must wait for the previous chunk");
+      if (cancelled) {
+        return Futures.immediateCancelledFuture();
+      }
+      chunk = buffer.poll();
+      if (chunk == null) {
+        if (!completed) {
+          reader = SettableFuture.create();
+          return reader;
+        }
+        return failure == null
+            ? Futures.immediateFuture(Optional.empty())
+            : Futures.immediateFailedFuture(failure);
+      }
+      if (writable != null && !writable.isDone()) {
+        waitingWriter = writable;
+      }
+    }
+    if (waitingWriter != null) {
+      waitingWriter.set(null);
+    }
+    return Futures.immediateFuture(Optional.of(chunk));
+  }
+
+  /**
+   * Stops consuming the stream. Buffered chunks are dropped, and the producer learns about the
+   * cancellation through the future returned by {@link #emit}.
+   */
+  public void cancel() {
+    SettableFuture<Void> waitingWriter;
+    SettableFuture<Optional<T>> waitingReader;
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      buffer.clear();
+      waitingWriter = writable;
+      waitingReader = reader;
+      reader = null;
+    }
+    if (waitingWriter != null) {
+      waitingWriter.cancel(false /* mayInterruptIfRunning */);
+    }
+    if (waitingReader != null) {
+      waitingReader.cancel(false /* mayInterruptIfRunning */);
+    }
+  }
+
+  /**
+   * Consumes the stream, calling the supplied function for each chunk and waiting for the future it
+   * returns before taking the next chunk. Returns a future which completes once the stream has
+   * ended, or fails with the first failure of either the stream or the function.
+   */
+  public ListenableFuture<Void> forEachAsync(
+      Function<? super T, ? extends ListenableFuture<?>> function) {
+    SettableFuture<Void> done = SettableFuture.create();
+    consume(next(), function, done);
+    return done;
+  }
+
+  /** Like {@link #forEachAsync}, but for a function which handles each chunk synchronously. */
+  public ListenableFuture<Void> forEach(Consumer<? super T> consumer) {
+    return forEachAsync(chunk -> {
+      consumer.accept(chunk);
+      return Futures.immediateFuture(null);
+    });
+  }
+
+  /**
+   * Returns a stream with the result of applying the supplied function to each chunk of this
+   * stream, buffering up to {@code capacity} results. Chunks are only taken from this stream once
+   * the returned stream has room for their results.
+   */
+  public <R> ProducerStream<R> map(Function<? super T, ? extends R> function, int capacity) {
+    ProducerStream<R> result = create(capacity);
+    ListenableFuture<Void> done = forEachAsync(chunk -> result.emit(function.apply(chunk)));
+    done.addListener(() -> {
+      try {
+        Futures.getDone(done);
+        result.complete();
+      } catch (ExecutionException e) {
+        result.fail(e.getCause());
+      } catch (CancellationException e) {
+        result.fail(e);
+      }
+    }, MoreExecutors.directExecutor());
+    return result;
+  }
+
+  /**
+   * Handles chunks for as long as they are available right away, then continues once the next
+   * chunk arrives. This avoids growing the stack when many chunks are buffered.
+   */
+  private void consume(
+      ListenableFuture<Optional<T>> next,
+      Function<? super T, ? extends ListenableFuture<?>> function,
+      SettableFuture<Void> done) {
+    while (next.isDone()) {
+      Optional<T> chunk;
+      try {
+        chunk = Futures.getDone(next);
+      } catch (ExecutionException e) {
+        done.setException(e.getCause());
+        return;
+      } catch (CancellationException e) {
+        done.setException(e);
+        return;
+      }
+      if (!chunk.isPresent()) {
+        done.set(null);
+        return;
+      }
+
+      ListenableFuture<?> handled;
+      try {
+        handled = function.apply(chunk.get());
+      } catch (RuntimeException e) {
+        cancel();
+        done.setException(e);
+        return;
+      }
+      if (!handled.isDone()) {
+        handled.addListener(
+            () -> afterChunk(handled, function, done), MoreExecutors.directExecutor());
+        return;
+      }
+      if (!succeeded(handled, done)) {
+        return;
+      }
+      next = next();
+    }
+    ListenableFuture<Optional<T>> pending = next;
+    pending.addListener(() -> consume(pending, function, done), MoreExecutors.directExecutor());
+  }
+
+  private void afterChunk(
+      ListenableFuture<?> handled,
+      Function<? super T, ? extends ListenableFuture<?>> function,
+      SettableFuture<Void> done) {
+    if (succeeded(handled, done)) {
+      consume(next(), function, done);
+    }
+  }
+
+  /** Returns whether handling a chunk succeeded, and otherwise fails the consumption. */
+  private boolean succeeded(ListenableFuture<?> handled, SettableFuture<Void> done) {
+    try {
+      Futures.getDone(handled);
+      return true;
+    } catch (ExecutionException e) {
+      cancel();
+      done.setException(e.getCause());
+    } catch (CancellationException e) {
+      cancel();
+      done.setException(e);
+    }
+    return false;
+  }
+}
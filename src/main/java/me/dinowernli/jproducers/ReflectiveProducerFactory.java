@@ -0,0 +1,222 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.BindingAnnotation;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import me.dinowernli.jproducers.Annotations.Batched;
+import me.dinowernli.jproducers.Annotations.Cacheable;
+import me.dinowernli.jproducers.Annotations.ConcurrencyLimit;
+import me.dinowernli.jproducers.Annotations.Hedged;
+import me.dinowernli.jproducers.Annotations.Inline;
+import me.dinowernli.jproducers.Annotations.Produces;
+import me.dinowernli.jproducers.Annotations.ProducesIntoSet;
+import me.dinowernli.jproducers.Annotations.Timeout;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ProducerFactory} which discovers the producers of a class reflectively. Used for classes
+ * which are passed to {@link ProducerContext#forClasses} and for modules without a generated
+ * factory.
+ */
+class ReflectiveProducerFactory implements ProducerFactory {
+  private final Class<?> clazz;
+
+  ReflectiveProducerFactory(Class<?> clazz) {
+    this.clazz = clazz;
+  }
+
+  @Override
+  public ImmutableList<ProducerBinding> bindings() {
+    ImmutableList.Builder<ProducerBinding> bindings = ImmutableList.builder();
+    for (Method method : clazz.getDeclaredMethods()) {
+      if (!Modifier.isStatic(method.getModifiers())) {
+        throw new IllegalArgumentException("Cannot have non-static producer: " + method);
+      }
+
+      // Check for regular producer.
+      if (method.isAnnotationPresent(Produces.class)) {
+        bindings.add(bindingForMethod(method, false /* intoSet */));
+        continue;
+      }
+
+      // Check for set producer.
+      if (method.isAnnotationPresent(ProducesIntoSet.class)) {
+        bindings.add(bindingForMethod(method, true /* intoSet */));
+        continue;
+      }
+    }
+    return bindings.build();
+  }
+
+  /**
+   * Resolves the keys of the supplied producer method and binds it to an invoker. This is the only
+   * place where reflection is used on producer methods.
+   */
+  private static ProducerBinding bindingForMethod(Method method, boolean intoSet) {
+    String name = method.getDeclaringClass().getSimpleName() + "." + method.getName();
+    boolean batched = method.isAnnotationPresent(Batched.class);
+    Key<?> key = producerKeyForReturnType(method, batched);
+    ProducerBinding.Builder binding = intoSet
+        ? ProducerBinding.producesIntoSet(name, key)
+        : ProducerBinding.produces(name, key);
+
+    Type[] parameterTypes = method.getGenericParameterTypes();
+    Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+    for (int i = 0; i < parameterTypes.length; ++i) {
+      Type parameterType = batched
+          ? batchParameterElementType(parameterTypes[i])
+          : parameterTypes[i];
+      ImmutableList<Annotation> annotations = ImmutableList.copyOf(parameterAnnotations[i]);
+      Key<?> dependency = producerKeyForParameterType(parameterType, annotations);
+      if (Types.isLazy(parameterType)) {
+        binding.addLazyDependency(dependency);
+      } else {
+        binding.addDependency(dependency);
+      }
+    }
+    if (method.isAnnotationPresent(Inline.class)) {
+      binding.inline();
+    }
+    if (method.isAnnotationPresent(ConcurrencyLimit.class)) {
+      binding.concurrencyLimit(method.getAnnotation(ConcurrencyLimit.class).value());
+    }
+    if (method.isAnnotationPresent(Cacheable.class)) {
+      binding.cacheable(cachePolicy(method.getAnnotation(Cacheable.class)));
+    }
+    if (batched) {
+      Batched annotation = method.getAnnotation(Batched.class);
+      Type batchType = Types.extractProducedType(method);
+      if (Map.class.isAssignableFrom(TypeLiteral.get(batchType).getRawType())
+          && parameterTypes.length != 1) {
+        throw new IllegalArgumentException(
+            "Batched producers returning a map must have exactly one parameter: " + method);
+      }
+      binding.batched(annotation.maxSize(), Duration.ofMillis(annotation.windowMillis()));
+    }
+    if (method.isAnnotationPresent(Timeout.class)) {
+      Timeout timeout = method.getAnnotation(Timeout.class);
+      binding.timeout(Duration.ofMillis(timeout.millis()));
+      if (!timeout.fallback().isEmpty()) {
+        binding.fallback(Invoker.forMethod(fallbackMethod(method, key, timeout.fallback())));
+      }
+    }
+    if (method.isAnnotationPresent(Hedged.class)) {
+      if (method.getReturnType() != ListenableFuture.class) {
+        throw new IllegalArgumentException(
+            "Hedged producers must return a ListenableFuture: " + method);
+      }
+      Hedged hedged = method.getAnnotation(Hedged.class);
+      binding.hedged(hedged.percentile(), hedged.maxExtraLoad());
+    }
+    return binding.invoker(Invoker.forMethod(method)).build();
+  }
+
+  /**
+   * Returns the fallback method with the supplied name for a producer of the given key. The
+   * fallback must take the same presents as an individual execution of the producer and must
+   * synchronously return the produced type.
+   */
+  private static Method fallbackMethod(Method producer, Key<?> key, String name) {
+    for (Method candidate : producer.getDeclaringClass().getDeclaredMethods()) {
+      if (!candidate.getName().equals(name)) {
+        continue;
+      }
+      if (!Modifier.isStatic(candidate.getModifiers())) {
+        throw new IllegalArgumentException("Cannot have non-static fallback: " + candidate);
+      }
+      if (candidate.getParameterCount() != producer.getParameterCount()) {
+        throw new IllegalArgumentException(
+            "Expected fallback to take the same parameters as its producer: " + candidate);
+      }
+      if (!Key.get(candidate.getGenericReturnType()).getTypeLiteral()
+          .equals(key.getTypeLiteral())) {
+        throw new IllegalArgumentException(String.format(
+            "Expected fallback %s to return %s", candidate, key.getTypeLiteral()));
+      }
+      return candidate;
+    }
+    throw new IllegalArgumentException(
+        String.format("Unable to find fallback [%s] for producer: %s", name, producer));
+  }
+
+  private static CachePolicy cachePolicy(Cacheable cacheable) {
+    CachePolicy.Builder result = CachePolicy.builder();
+    if (cacheable.expireAfterWriteMillis() > 0) {
+      result.expireAfterWrite(Duration.ofMillis(cacheable.expireAfterWriteMillis()));
+    }
+    if (cacheable.maximumSize() > 0) {
+      result.maximumSize(cacheable.maximumSize());
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns the type of the elements of a parameter of a batched producer, which must be a list.
+   */
+  private static Type batchParameterElementType(Type parameterType) {
+    if (!(parameterType instanceof ParameterizedType)
+        || !((ParameterizedType) parameterType).getRawType().equals(List.class)) {
+      throw new IllegalArgumentException(
+          "Expected " + parameterType.getTypeName() + " to be a List of presents");
+    }
+    return Types.elementType(parameterType);
+  }
+
+  /** Returns the {@link Key} representing the return type of the supplied method. */
+  private static Key<?> producerKeyForReturnType(Method method, boolean batched) {
+    ImmutableSet<Class<? extends Annotation>> annotations =
+        Arrays.stream(method.getDeclaredAnnotations())
+            .filter(ReflectiveProducerFactory::isBindingAnnotation)
+            .map(Annotation::annotationType)
+            .collect(ImmutableSet.toImmutableSet());
+
+    Type producedType = batched
+        ? Types.extractBatchElementType(Types.extractProducedType(method))
+        : Types.extractProducedType(method);
+    if (annotations.isEmpty()) {
+      return Key.get(producedType);
+    } else if (annotations.size() == 1) {
+      return Key.get(producedType, annotations.iterator().next());
+    } else {
+      throw new IllegalArgumentException(
+          "Can only have one non-Produces annotation, but got multiple for method: " + method);
+    }
+  }
+
+  private static Key<?> producerKeyForParameterType(
+      Type parameterType, ImmutableList<Annotation> annotations) {
+    ImmutableSet<Class<? extends Annotation>> annotationSet = annotations.stream()
+        .filter(ReflectiveProducerFactory::isBindingAnnotation)
+        .map(Annotation::annotationType)
+        .collect(ImmutableSet.toImmutableSet());
+
+    Type presentType = Types.presentValueType(parameterType);
+    if (annotationSet.isEmpty()) {
+      return Key.get(presentType);
+    } else if (annotationSet.size() == 1) {
+      return Key.get(presentType, annotationSet.iterator().next());
+    } else {
+      throw new IllegalArgumentException(
+          "Can only have one annotation, but got multiple for type: " + parameterType);
+    }
+  }
+
+  /**
+   * Returns whether the supplied annotation is itself annotations with {@link BindingAnnotation}.
+   */
+  private static boolean isBindingAnnotation(Annotation annotation) {
+    return annotation.annotationType().isAnnotationPresent(BindingAnnotation.class);
+  }
+}
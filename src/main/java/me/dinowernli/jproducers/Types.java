@@ -1,5 +1,6 @@
 package me.dinowernli.jproducers;
 
+import com.google.common.primitives.Primitives;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Key;
 import com.google.inject.TypeLiteral;
@@ -7,6 +8,8 @@ import com.google.inject.TypeLiteral;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Map;
 
 class Types {
   /**
@@ -19,19 +22,73 @@ class Types {
   }
 
   /**
-   * Extracts the actual type produced by the given producer.
+   * Extracts the actual type produced by the given producer. Primitive types are boxed, so that,
+   * e.g., producers returning int and Integer produce the same key.
    */
   static Type extractProducedType(Method producer) {
     Type returnType = producer.getGenericReturnType();
     if (returnType instanceof ParameterizedType) {
       // This branch hits if the declared type was actually generic. Dissect it further.
       return extractProducedType((ParameterizedType) producer.getGenericReturnType());
-    } else {
+    } else if (returnType instanceof Class) {
       // In the non-generic case the produced type is the actual declared type.
+      return Primitives.wrap((Class<?>) returnType);
+    } else {
       return returnType;
     }
   }
 
+  /**
+   * Returns the type of the values passed for a producer parameter of the supplied type, which
+   * must be a Present, a Producer or one of the presents specialized for primitives. For instance,
+   * for Present<String> this returns String, and for PresentInt this returns Integer.
+   */
+  static Type presentValueType(Type parameterType) {
+    if (parameterType == PresentInt.class) {
+      return Integer.class;
+    } else if (parameterType == PresentLong.class) {
+      return Long.class;
+    } else if (parameterType == PresentDouble.class) {
+      return Double.class;
+    }
+    if (parameterType instanceof ParameterizedType) {
+      ParameterizedType parameterizedType = (ParameterizedType) parameterType;
+      if (parameterizedType.getRawType().equals(Present.class)
+          || parameterizedType.getRawType().equals(Producer.class)) {
+        // All producer arguments must be presents or lazy producers of a single type.
+        return parameterizedType.getActualTypeArguments()[0];
+      }
+    }
+    throw new IllegalArgumentException(
+        "Expected " + parameterType.getTypeName() + " to be a Present or a Producer");
+  }
+
+  /** Returns whether the supplied producer parameter type is a lazy {@link Producer}. */
+  static boolean isLazy(Type parameterType) {
+    return parameterType instanceof ParameterizedType
+        && ((ParameterizedType) parameterType).getRawType().equals(Producer.class);
+  }
+
+  /**
+   * Extracts the type of the individual values produced by a batched producer, given the type
+   * returned for an entire batch. For instance, for both List<Double> and Map<String, Double>, this
+   * returns Double.
+   */
+  static Type extractBatchElementType(Type batchType) {
+    if (batchType instanceof ParameterizedType) {
+      ParameterizedType parameterizedType = (ParameterizedType) batchType;
+      Class<?> rawType = (Class<?>) parameterizedType.getRawType();
+      if (List.class.isAssignableFrom(rawType)) {
+        return parameterizedType.getActualTypeArguments()[0];
+      }
+      if (Map.class.isAssignableFrom(rawType)) {
+        return parameterizedType.getActualTypeArguments()[1];
+      }
+    }
+    throw new IllegalArgumentException(
+        "Batched producers must produce a List or a Map, but got: " + batchType.getTypeName());
+  }
+
   /**
    * Extracts the actual type being produced for a given declared type. For instance, for the type
    * ListenableFuture<Double>, this returns Double. For the declared type Foo, however, this returns
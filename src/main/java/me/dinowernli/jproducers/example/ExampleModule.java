@@ -9,6 +9,7 @@ import com.google.inject.BindingAnnotation;
 import me.dinowernli.jproducers.Annotations.ProducerModule;
 import me.dinowernli.jproducers.Annotations.Produces;
 import me.dinowernli.jproducers.Present;
+import me.dinowernli.jproducers.PresentInt;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -69,10 +70,10 @@ public class ExampleModule {
   public static String someString(
       Present<ImmutableList<String>> strings,
       @Bar Present<String> bar,
-      Present<Integer> number,
+      PresentInt number,
       Present<Long> asyncNumber,
       @Baz Present<Double> explicitNumber) throws ExecutionException {
     return String.format("The numbers were: [%d, %f], bar: %s. Async number: %d. Strings: %s",
-        number.get(), explicitNumber.get(), bar.get(), asyncNumber.get(), strings.get());
+        number.getAsInt(), explicitNumber.get(), bar.get(), asyncNumber.get(), strings.get());
   }
 }
@@ -16,7 +16,8 @@ public class Main {
   public static void main(String[] args) throws Throwable {
     setupLogging();
 
-    ProducerContext context = ProducerContext.forClasses(ExampleModule.class);
+    // The factory is generated at compile time, so creating the context requires no reflection.
+    ProducerContext context = ProducerContext.forFactories(new ExampleModule_ProducerFactory());
     logger.info("Created context, available keys:\n\t" + formatKeys(context.availableKeys()));
 
     Graph<String> graph = context.newGraph(Key.get(String.class));
@@ -0,0 +1,27 @@
+package me.dinowernli.jproducers.naming;
+
+/**
+ * The names shared by the annotation processor, which generates a factory for every module and
+ * writes the module index, and the runtime library, which discovers modules and their factories.
+ * This has no dependencies, so that the processor does not need to depend on the runtime library.
+ */
+public final class GeneratedNames {
+  /** The resource listing the binary names of the modules of a library, one per line. */
+  public static final String MODULE_INDEX = "META-INF/jproducers/modules";
+
+  /** Appended to the name of a module to form the name of its generated factory. */
+  public static final String FACTORY_SUFFIX = "_ProducerFactory";
+
+  private GeneratedNames() {}
+
+  /**
+   * Returns the binary name of the factory generated for a module. For instance, the factory for
+   * "foo.Outer$Module" is "foo.Outer_Module_ProducerFactory".
+   */
+  public static String factoryName(String moduleBinaryName) {
+    int packageEnd = moduleBinaryName.lastIndexOf('.');
+    return moduleBinaryName.substring(0, packageEnd + 1)
+        + moduleBinaryName.substring(packageEnd + 1).replace('$', '_')
+        + FACTORY_SUFFIX;
+  }
+}
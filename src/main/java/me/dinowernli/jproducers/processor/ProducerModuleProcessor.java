@@ -0,0 +1,568 @@
+package me.dinowernli.jproducers.processor;
+
+import me.dinowernli.jproducers.naming.GeneratedNames;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Generates a {@code ProducerFactory} for each class annotated with {@code @ProducerModule}. The
+ * generated factories call the producer methods directly, which allows creating a
+ * {@code ProducerContext} without any reflection. Errors which would otherwise only surface when
+ * creating a context or a graph (such as non-static producers, parameters which are not presents or
+ * two producers for the same key within a module) are reported as compilation errors. Modules are
+ * checked independently, since modules binding the same key may well be used in different contexts.
+ * Collisions between the modules of a context are reported when the context is created.
+ *
+ * <p>This processor deliberately refers to the jproducers types by name only, so that it does not
+ * need to depend on the runtime library.
+ */
+public class ProducerModuleProcessor extends AbstractProcessor {
+  static final String PRODUCER_MODULE = "me.dinowernli.jproducers.Annotations.ProducerModule";
+  static final String PRODUCES = "me.dinowernli.jproducers.Annotations.Produces";
+  static final String PRODUCES_INTO_SET = "me.dinowernli.jproducers.Annotations.ProducesIntoSet";
+  static final String INLINE = "me.dinowernli.jproducers.Annotations.Inline";
+  static final String CONCURRENCY_LIMIT = "me.dinowernli.jproducers.Annotations.ConcurrencyLimit";
+  static final String CACHEABLE = "me.dinowernli.jproducers.Annotations.Cacheable";
+  static final String BATCHED = "me.dinowernli.jproducers.Annotations.Batched";
+  static final String TIMEOUT = "me.dinowernli.jproducers.Annotations.Timeout";
+  static final String HEDGED = "me.dinowernli.jproducers.Annotations.Hedged";
+
+  private static final String PRESENT = "me.dinowernli.jproducers.Present";
+  private static final String PRODUCER = "me.dinowernli.jproducers.Producer";
+  private static final String INVOKER = "me.dinowernli.jproducers.Invoker";
+  private static final String LIST = "java.util.List";
+  private static final String MAP = "java.util.Map";
+  private static final String LISTENABLE_FUTURE =
+      "com.google.common.util.concurrent.ListenableFuture";
+  private static final String BINDING_ANNOTATION = "com.google.inject.BindingAnnotation";
+
+  /** The binary names of all the modules seen so far, sorted for a deterministic index. */
+  private final Set<String> modules = new TreeSet<>();
+
+  private Elements elements;
+  private Types types;
+  private Messager messager;
+
+  @Override
+  public Set<String> getSupportedAnnotationTypes() {
+    Set<String> result = new HashSet<>();
+    result.add(PRODUCER_MODULE);
+    return result;
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+    elements = processingEnv.getElementUtils();
+    types = processingEnv.getTypeUtils();
+    messager = processingEnv.getMessager();
+
+    TypeElement producerModule = elements.getTypeElement(PRODUCER_MODULE);
+    if (producerModule == null) {
+      return false;
+    }
+    for (Element element : round.getElementsAnnotatedWith(producerModule)) {
+      if (element.getKind() != ElementKind.CLASS) {
+        error(element, "Only classes can be annotated with @ProducerModule");
+        continue;
+      }
+      processModule((TypeElement) element);
+    }
+
+    // The index can only be written once, so wait until all modules have been seen.
+    if (round.processingOver() && !modules.isEmpty()) {
+      writeIndex();
+    }
+    return false;
+  }
+
+  private void processModule(TypeElement module) {
+    List<String> bindings = new ArrayList<>();
+
+    // Maps the keys produced by the module to the producer producing them.
+    Map<String, ExecutableElement> producedKeys = new HashMap<>();
+    boolean valid = true;
+    for (Element enclosed : module.getEnclosedElements()) {
+      if (enclosed.getKind() != ElementKind.METHOD) {
+        continue;
+      }
+      ExecutableElement method = (ExecutableElement) enclosed;
+      boolean produces = hasAnnotation(method, PRODUCES);
+      boolean producesIntoSet = hasAnnotation(method, PRODUCES_INTO_SET);
+
+      // Mirrors the checks performed when creating a context reflectively.
+      if (!method.getModifiers().contains(Modifier.STATIC)) {
+        error(method, "Cannot have non-static producer: " + method.getSimpleName());
+        valid = false;
+        continue;
+      }
+      if (!produces && !producesIntoSet) {
+        continue;
+      }
+      if (method.getModifiers().contains(Modifier.PRIVATE)) {
+        error(method, "Producers must not be private: " + method.getSimpleName());
+        valid = false;
+        continue;
+      }
+
+      try {
+        bindings.add(binding(module, method, producesIntoSet, producedKeys));
+      } catch (InvalidProducerException e) {
+        error(e.element, e.getMessage());
+        valid = false;
+      }
+    }
+
+    if (valid) {
+      writeFactory(module, bindings);
+      modules.add(elements.getBinaryName(module).toString());
+    }
+  }
+
+  /**
+   * Returns the source of an expression evaluating to the binding of the supplied producer, and
+   * records its key in the given keys produced by its module.
+   */
+  private String binding(
+      TypeElement module,
+      ExecutableElement method,
+      boolean intoSet,
+      Map<String, ExecutableElement> producedKeys)
+      throws InvalidProducerException {
+    String name = module.getSimpleName() + "." + method.getSimpleName();
+    Optional<String> qualifier = qualifier(method);
+    boolean batched = hasAnnotation(method, BATCHED);
+    TypeMirror producedType = producedType(method.getReturnType());
+    if (batched) {
+      producedType = batchElementType(method, producedType);
+    }
+    String key = key(method, producedType, qualifier);
+
+    // Set elements may be produced by many producers, all other keys must be unique.
+    if (!intoSet) {
+      String canonicalKey = canonicalType(producedType) + qualifier.map(q -> " @" + q).orElse("");
+      ExecutableElement existing = producedKeys.putIfAbsent(canonicalKey, method);
+      if (existing != null && !existing.equals(method)) {
+        throw new InvalidProducerException(method, String.format(
+            "Already have producer [%s] for key [%s] in module [%s]. Cannot add new producer [%s]",
+            existing.getSimpleName(), canonicalKey, module.getQualifiedName(),
+            method.getSimpleName()));
+      }
+    }
+
+    StringBuilder result = new StringBuilder();
+    result.append(String.format("        me.dinowernli.jproducers.ProducerBinding.%s(\"%s\", %s)\n",
+        intoSet ? "producesIntoSet" : "produces", name, key));
+
+    List<String> arguments = new ArrayList<>();
+    List<? extends VariableElement> parameters = method.getParameters();
+    for (int i = 0; i < parameters.size(); ++i) {
+      VariableElement parameter = parameters.get(i);
+      TypeMirror parameterType = parameter.asType();
+      TypeMirror elementType = parameterType;
+      if (batched) {
+        if (!isDeclared(parameterType, LIST)) {
+          throw new InvalidProducerException(
+              parameter, "Expected " + parameterType + " to be a List of presents");
+        }
+        elementType = ((DeclaredType) parameterType).getTypeArguments().get(0);
+      }
+      boolean lazy = isDeclared(elementType, PRODUCER);
+      if (!isPresent(elementType) && !lazy) {
+        throw new InvalidProducerException(
+            parameter, "Expected " + elementType + " to be a Present or a Producer");
+      }
+      TypeMirror presentType = presentValueType(elementType);
+      String dependencyKey = key(parameter, presentType, qualifier(parameter));
+      result.append(String.format("            .%s(%s)\n",
+          lazy ? "addLazyDependency" : "addDependency", dependencyKey));
+      arguments.add(String.format("(%s) arguments[%d]", parameterType, i));
+    }
+
+    if (hasAnnotation(method, INLINE)) {
+      result.append("            .inline()\n");
+    }
+    Optional<Object> concurrencyLimit = annotationValue(method, CONCURRENCY_LIMIT, "value");
+    if (concurrencyLimit.isPresent()) {
+      result.append(String.format("            .concurrencyLimit(%s)\n", concurrencyLimit.get()));
+    }
+    if (hasAnnotation(method, CACHEABLE)) {
+      result.append(cachePolicy(method));
+    }
+    if (batched) {
+      if (isSubtype(producedType(method.getReturnType()), MAP) && parameters.size() != 1) {
+        throw new InvalidProducerException(
+            method, "Batched producers returning a map must have exactly one parameter");
+      }
+      result.append(String.format(
+          "            .batched(%s, java.time.Duration.ofMillis(%dL))\n",
+          annotationValue(method, BATCHED, "maxSize").get(),
+          (Long) annotationValue(method, BATCHED, "windowMillis").get()));
+    }
+    if (hasAnnotation(method, TIMEOUT)) {
+      result.append(String.format("            .timeout(java.time.Duration.ofMillis(%dL))\n",
+          (Long) annotationValue(method, TIMEOUT, "millis").get()));
+      String fallback = (String) annotationValue(method, TIMEOUT, "fallback").get();
+      if (!fallback.isEmpty()) {
+        ExecutableElement fallbackMethod = fallbackMethod(module, method, producedType, fallback);
+        List<String> fallbackArguments = new ArrayList<>();
+        for (int i = 0; i < fallbackMethod.getParameters().size(); ++i) {
+          fallbackArguments.add(String.format(
+              "(%s) arguments[%d]", fallbackMethod.getParameters().get(i).asType(), i));
+        }
+        result.append(String.format("            .fallback(arguments -> %s.%s(%s))\n",
+            module.getQualifiedName(), fallback, String.join(", ", fallbackArguments)));
+      }
+    }
+    if (hasAnnotation(method, HEDGED)) {
+      if (!isDeclared(method.getReturnType(), LISTENABLE_FUTURE)) {
+        throw new InvalidProducerException(
+            method, "Hedged producers must return a ListenableFuture");
+      }
+      result.append(String.format("            .hedged(%s, %s)\n",
+          annotationValue(method, HEDGED, "percentile").get(),
+          annotationValue(method, HEDGED, "maxExtraLoad").get()));
+    }
+    result.append(String.format("            .invoker(%sarguments -> %s.%s(%s))\n",
+        primitiveInvokerCast(method.getReturnType()), module.getQualifiedName(),
+        method.getSimpleName(), String.join(", ", arguments)));
+    result.append("            .build()");
+    return result.toString();
+  }
+
+  /**
+   * Returns the fallback method with the supplied name for a producer, which must be static, take
+   * the same number of presents (or producers) and synchronously return the produced type.
+   */
+  private ExecutableElement fallbackMethod(
+      TypeElement module, ExecutableElement producer, TypeMirror producedType, String name)
+      throws InvalidProducerException {
+    for (Element enclosed : module.getEnclosedElements()) {
+      if (enclosed.getKind() != ElementKind.METHOD
+          || !enclosed.getSimpleName().contentEquals(name)) {
+        continue;
+      }
+      ExecutableElement fallback = (ExecutableElement) enclosed;
+      if (!fallback.getModifiers().contains(Modifier.STATIC)
+          || fallback.getModifiers().contains(Modifier.PRIVATE)) {
+        throw new InvalidProducerException(fallback, "Fallbacks must be static and not private");
+      }
+      if (fallback.getParameters().size() != producer.getParameters().size()) {
+        throw new InvalidProducerException(
+            fallback, "Expected fallback to take the same parameters as its producer");
+      }
+      for (VariableElement parameter : fallback.getParameters()) {
+        if (!isPresent(parameter.asType()) && !isDeclared(parameter.asType(), PRODUCER)) {
+          throw new InvalidProducerException(
+              parameter, "Expected " + parameter.asType() + " to be a Present or a Producer");
+        }
+      }
+      if (!canonicalType(fallback.getReturnType()).equals(canonicalType(producedType))) {
+        throw new InvalidProducerException(
+            fallback, "Expected fallback to return " + producedType);
+      }
+      return fallback;
+    }
+    throw new InvalidProducerException(
+        producer, String.format("Unable to find fallback [%s]", name));
+  }
+
+  /** Returns the source of the call making a binding cacheable, as per its annotation. */
+  private String cachePolicy(ExecutableElement method) {
+    long expireAfterWriteMillis =
+        (Long) annotationValue(method, CACHEABLE, "expireAfterWriteMillis").get();
+    long maximumSize = (Long) annotationValue(method, CACHEABLE, "maximumSize").get();
+    StringBuilder result = new StringBuilder();
+    result.append("            .cacheable(me.dinowernli.jproducers.CachePolicy.builder()");
+    if (expireAfterWriteMillis > 0) {
+      result.append(String.format(
+          "\n                .expireAfterWrite(java.time.Duration.ofMillis(%dL))",
+          expireAfterWriteMillis));
+    }
+    if (maximumSize > 0) {
+      result.append(String.format("\n                .maximumSize(%dL)", maximumSize));
+    }
+    result.append("\n                .build())\n");
+    return result.toString();
+  }
+
+  /** Returns the binding annotation present on the supplied element, if any. */
+  private Optional<String> qualifier(Element element) throws InvalidProducerException {
+    List<String> qualifiers = new ArrayList<>();
+    for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+      Element annotationType = annotation.getAnnotationType().asElement();
+      if (hasAnnotation(annotationType, BINDING_ANNOTATION)) {
+        qualifiers.add(((TypeElement) annotationType).getQualifiedName().toString());
+      }
+    }
+    if (qualifiers.size() > 1) {
+      throw new InvalidProducerException(
+          element, "Can only have one binding annotation, but got multiple: " + qualifiers);
+    }
+    return qualifiers.isEmpty() ? Optional.empty() : Optional.of(qualifiers.get(0));
+  }
+
+  /** Returns the source of an expression evaluating to the key for the supplied type. */
+  private String key(Element element, TypeMirror type, Optional<String> qualifier)
+      throws InvalidProducerException {
+    String typeExpression;
+    if (type.getKind().isPrimitive()) {
+      typeExpression = type + ".class";
+    } else if (type.getKind() == TypeKind.DECLARED || type.getKind() == TypeKind.ARRAY) {
+      boolean generic = type.getKind() == TypeKind.DECLARED
+          && !((DeclaredType) type).getTypeArguments().isEmpty();
+      typeExpression = generic
+          ? String.format("new com.google.inject.TypeLiteral<%s>() {}", type)
+          : types.erasure(type) + ".class";
+    } else {
+      throw new InvalidProducerException(
+          element, "Cannot produce or consume values of type: " + type);
+    }
+
+    return qualifier.isPresent()
+        ? String.format("com.google.inject.Key.get(%s, %s.class)", typeExpression, qualifier.get())
+        : String.format("com.google.inject.Key.get(%s)", typeExpression);
+  }
+
+  /** Returns the name of the supplied type, boxed the same way as for keys at runtime. */
+  private String canonicalType(TypeMirror type) {
+    if (type.getKind().isPrimitive()) {
+      return types.boxedClass((PrimitiveType) type).getQualifiedName().toString();
+    }
+    return type.toString();
+  }
+
+  /** Mirrors {@code Types.extractProducedType}, i.e., strips a {@code ListenableFuture}. */
+  private TypeMirror producedType(TypeMirror returnType) {
+    if (returnType.getKind() == TypeKind.DECLARED) {
+      DeclaredType declared = (DeclaredType) returnType;
+      if (isType(declared, LISTENABLE_FUTURE) && declared.getTypeArguments().size() == 1) {
+        return declared.getTypeArguments().get(0);
+      }
+    }
+    return returnType;
+  }
+
+  /** Mirrors {@code Types.extractBatchElementType}, i.e., strips a {@code List} or {@code Map}. */
+  private TypeMirror batchElementType(ExecutableElement method, TypeMirror batchType)
+      throws InvalidProducerException {
+    if (isSubtype(batchType, LIST)) {
+      return ((DeclaredType) batchType).getTypeArguments().get(0);
+    }
+    if (isSubtype(batchType, MAP)) {
+      return ((DeclaredType) batchType).getTypeArguments().get(1);
+    }
+    throw new InvalidProducerException(
+        method, "Batched producers must produce a List or a Map, but got: " + batchType);
+  }
+
+  /** Returns whether the supplied type is a present, including those specialized for primitives. */
+  private boolean isPresent(TypeMirror type) {
+    if (type.getKind() != TypeKind.DECLARED) {
+      return false;
+    }
+    DeclaredType declared = (DeclaredType) type;
+    String name = ((TypeElement) declared.asElement()).getQualifiedName().toString();
+    return primitivePresentValueType(name).isPresent()
+        || (name.equals(PRESENT) && declared.getTypeArguments().size() == 1);
+  }
+
+  /**
+   * Mirrors {@code Types.presentValueType}, i.e., returns the type of the values passed for a
+   * parameter which is a present or a producer.
+   */
+  private TypeMirror presentValueType(TypeMirror parameterType) {
+    DeclaredType declared = (DeclaredType) parameterType;
+    String name = ((TypeElement) declared.asElement()).getQualifiedName().toString();
+    Optional<String> primitiveValueType = primitivePresentValueType(name);
+    if (primitiveValueType.isPresent()) {
+      return elements.getTypeElement(primitiveValueType.get()).asType();
+    }
+    return declared.getTypeArguments().get(0);
+  }
+
+  /** Returns the boxed type of the values of a present specialized for primitives, if it is one. */
+  private static Optional<String> primitivePresentValueType(String qualifiedName) {
+    switch (qualifiedName) {
+      case "me.dinowernli.jproducers.PresentInt":
+        return Optional.of("java.lang.Integer");
+      case "me.dinowernli.jproducers.PresentLong":
+        return Optional.of("java.lang.Long");
+      case "me.dinowernli.jproducers.PresentDouble":
+        return Optional.of("java.lang.Double");
+      default:
+        return Optional.empty();
+    }
+  }
+
+  /**
+   * Returns the cast which makes the invoker of a producer with the supplied return type one of
+   * the invokers specialized for primitives, if any, so that its output is not boxed.
+   */
+  private static String primitiveInvokerCast(TypeMirror returnType) {
+    switch (returnType.getKind()) {
+      case INT:
+        return "(" + INVOKER + ".OfInt) ";
+      case LONG:
+        return "(" + INVOKER + ".OfLong) ";
+      case DOUBLE:
+        return "(" + INVOKER + ".OfDouble) ";
+      default:
+        return "";
+    }
+  }
+
+  /** Returns whether the supplied type is a parameterized subtype of the given generic type. */
+  private boolean isSubtype(TypeMirror type, String qualifiedName) {
+    return type.getKind() == TypeKind.DECLARED
+        && !((DeclaredType) type).getTypeArguments().isEmpty()
+        && types.isAssignable(
+            types.erasure(type), types.erasure(elements.getTypeElement(qualifiedName).asType()));
+  }
+
+  /** Returns whether the supplied type is the given generic type, with its type arguments. */
+  private static boolean isDeclared(TypeMirror type, String qualifiedName) {
+    return type.getKind() == TypeKind.DECLARED
+        && isType((DeclaredType) type, qualifiedName)
+        && !((DeclaredType) type).getTypeArguments().isEmpty();
+  }
+
+  private static boolean isType(DeclaredType type, String qualifiedName) {
+    return ((TypeElement) type.asElement()).getQualifiedName().contentEquals(qualifiedName);
+  }
+
+  private static boolean hasAnnotation(Element element, String qualifiedName) {
+    return annotation(element, qualifiedName).isPresent();
+  }
+
+  private static Optional<AnnotationMirror> annotation(Element element, String qualifiedName) {
+    for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+      if (isType(annotation.getAnnotationType(), qualifiedName)) {
+        return Optional.of(annotation);
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Returns the value of the supplied attribute of an annotation on the element, if both are
+   * present. Attributes which are not set explicitly yield their default value.
+   */
+  private Optional<Object> annotationValue(
+      Element element, String annotationName, String attribute) {
+    Optional<AnnotationMirror> annotation = annotation(element, annotationName);
+    if (!annotation.isPresent()) {
+      return Optional.empty();
+    }
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+        elements.getElementValuesWithDefaults(annotation.get()).entrySet()) {
+      if (entry.getKey().getSimpleName().contentEquals(attribute)) {
+        return Optional.of(entry.getValue().getValue());
+      }
+    }
+    return Optional.empty();
+  }
+
+  private void writeFactory(TypeElement module, List<String> bindings) {
+    PackageElement pkg = elements.getPackageOf(module);
+    String packageName = pkg.getQualifiedName().toString();
+    String qualifiedName =
+        GeneratedNames.factoryName(elements.getBinaryName(module).toString());
+    String factoryName = qualifiedName.substring(qualifiedName.lastIndexOf('.') + 1);
+
+    try {
+      JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, module);
+      try (PrintWriter out = new PrintWriter(file.openWriter())) {
+        if (!pkg.isUnnamed()) {
+          out.println("package " + packageName + ";");
+          out.println();
+        }
+        out.println("/** Generated by " + ProducerModuleProcessor.class.getName() + ". */");
+        out.println("public final class " + factoryName
+            + " implements me.dinowernli.jproducers.ProducerFactory {");
+        out.println("  @Override");
+        out.println("  @SuppressWarnings(\"unchecked\")");
+        out.println("  public com.google.common.collect.ImmutableList<"
+            + "me.dinowernli.jproducers.ProducerBinding> bindings() {");
+        out.println("    return com.google.common.collect.ImmutableList."
+            + "<me.dinowernli.jproducers.ProducerBinding>builder()");
+        for (String binding : bindings) {
+          out.println("        .add(");
+          out.println(binding + ")");
+        }
+        out.println("        .build();");
+        out.println("  }");
+        out.println("}");
+      }
+    } catch (IOException e) {
+      error(module, "Unable to write producer factory: " + e.getMessage());
+    }
+  }
+
+  private void writeIndex() {
+    try {
+      FileObject file = processingEnv.getFiler()
+          .createResource(StandardLocation.CLASS_OUTPUT, "", GeneratedNames.MODULE_INDEX);
+      try (PrintWriter out = new PrintWriter(file.openWriter())) {
+        for (String module : modules) {
+          out.println(module);
+        }
+      }
+    } catch (IOException e) {
+      messager.printMessage(
+          Diagnostic.Kind.ERROR, "Unable to write producer module index: " + e.getMessage());
+    }
+  }
+
+  private void error(Element element, String message) {
+    messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+
+  /** Indicates that a producer is invalid, reported as an error on the offending element. */
+  private static class InvalidProducerException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final transient Element element;
+
+    private InvalidProducerException(Element element, String message) {
+      super(message);
+      this.element = element;
+    }
+  }
+}
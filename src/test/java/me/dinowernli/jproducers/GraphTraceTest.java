@@ -0,0 +1,59 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import me.dinowernli.junit.TestClass;
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@TestClass
+public class GraphTraceTest {
+  private static final GraphTrace TRACE = new GraphTrace(
+      ImmutableList.of(
+          new GraphTrace.Span(
+              "Module.first",
+              new NodeTiming(1_000, 1_500, 2_500, 1_251_000),
+              false /* failed */,
+              ImmutableSet.of()),
+          new GraphTrace.Span(
+              "Module.\"second\"",
+              new NodeTiming(1_251_500, 1_252_000, 1_253_250, 1_254_000),
+              true /* failed */,
+              ImmutableSet.of(0))),
+      ImmutableSet.of(1) /* rootSpans */,
+      1_254_500 /* completedNanos */);
+
+  @Test
+  public void testChromeTraceJsonIsIndependentOfLocale() {
+    Locale defaultLocale = Locale.getDefault();
+    Locale.setDefault(Locale.GERMANY);
+    try {
+      assertThat(TRACE.toChromeTraceJson()).isEqualTo("{\"traceEvents\":["
+          + "{\"name\":\"Module.first\",\"cat\":\"producer\",\"ph\":\"X\",\"pid\":1,\"tid\":0,"
+          + "\"ts\":0.000,\"dur\":1250.000,\"args\":{\"queueMicros\":0.500,\"runMicros\":1.000,"
+          + "\"futureMicros\":1248.500,\"failed\":false,\"critical\":true}},"
+          + "{\"name\":\"Module.\\\"second\\\"\",\"cat\":\"producer\",\"ph\":\"X\",\"pid\":1,"
+          + "\"tid\":1,\"ts\":1250.500,\"dur\":2.500,\"args\":{\"queueMicros\":0.500,"
+          + "\"runMicros\":1.250,\"futureMicros\":0.750,\"failed\":true,\"critical\":true}}],"
+          + "\"displayTimeUnit\":\"ms\"}");
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+
+  @Test
+  public void testDotIsIndependentOfLocale() {
+    Locale defaultLocale = Locale.getDefault();
+    Locale.setDefault(Locale.GERMANY);
+    try {
+      String dot = TRACE.toDot();
+      assertThat(dot).contains("n0 [label=\"Module.first\\n1.250ms\", color=red];");
+      assertThat(dot).contains("n0 -> n1 [color=red];");
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+}
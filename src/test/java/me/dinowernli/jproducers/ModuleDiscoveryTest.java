@@ -0,0 +1,48 @@
+package me.dinowernli.jproducers;
+
+import me.dinowernli.jproducers.Annotations.ProducerModule;
+import me.dinowernli.jproducers.Annotations.Produces;
+import me.dinowernli.jproducers.naming.GeneratedNames;
+import me.dinowernli.junit.TestClass;
+import org.junit.Test;
+
+import java.io.File;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@TestClass
+public class ModuleDiscoveryTest {
+  @ProducerModule
+  static class DiscoverableModule {
+    @Produces
+    static String produceGreeting() {
+      return "discovered";
+    }
+  }
+
+  @Test
+  public void testFactoryName() {
+    assertThat(GeneratedNames.factoryName("foo.bar.Module"))
+        .isEqualTo("foo.bar.Module_ProducerFactory");
+    assertThat(GeneratedNames.factoryName("foo.Outer$Module"))
+        .isEqualTo("foo.Outer_Module_ProducerFactory");
+    assertThat(GeneratedNames.factoryName("Module")).isEqualTo("Module_ProducerFactory");
+  }
+
+  @Test
+  public void testScansClasspathEntry() throws Throwable {
+    String entry = new File(ModuleDiscoveryTest.class.getProtectionDomain().getCodeSource()
+        .getLocation().toURI()).getPath();
+
+    // Other test classes are not annotated, so they must not have been picked up.
+    assertThat(ModuleDiscovery.scanClasspath(entry))
+        .containsExactly(DiscoverableModule.class.getName());
+  }
+
+  @Test
+  public void testFallsBackToReflection() throws Throwable {
+    ProducerContext context = ProducerContext.forFactories(
+        ModuleDiscovery.factoryFor(DiscoverableModule.class, getClass().getClassLoader()));
+    assertThat(context.newGraph(String.class).run().get()).isEqualTo("discovered");
+  }
+}
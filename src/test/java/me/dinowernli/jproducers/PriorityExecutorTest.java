@@ -0,0 +1,47 @@
+package me.dinowernli.jproducers;
+
+import me.dinowernli.junit.TestClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@TestClass
+public class PriorityExecutorTest {
+  @Test
+  public void testRunsInOrderOfPriority() {
+    List<Runnable> pending = new ArrayList<>();
+    PriorityExecutor executor = new PriorityExecutor(pending::add);
+    List<String> ran = new ArrayList<>();
+    executor.execute(() -> ran.add("low"), 1);
+    executor.execute(() -> ran.add("high"), 2);
+    executor.execute(() -> ran.add("also low"), 1);
+    pending.forEach(Runnable::run);
+    assertThat(ran).containsExactly("high", "low", "also low").inOrder();
+  }
+
+  @Test
+  public void testRejectedTaskIsNotQueued() {
+    boolean[] reject = {true};
+    PriorityExecutor executor = new PriorityExecutor(task -> {
+      if (reject[0]) {
+        throw new RejectedExecutionException("this is an expected exception");
+      }
+      task.run();
+    });
+    List<String> ran = new ArrayList<>();
+    try {
+      executor.execute(() -> ran.add("rejected"), 1);
+      throw new AssertionError("Expected the task to be rejected");
+    } catch (RejectedExecutionException expected) {
+    }
+
+    // Later tasks run themselves rather than the rejected one.
+    reject[0] = false;
+    executor.execute(() -> ran.add("accepted"), 1);
+    assertThat(ran).containsExactly("accepted");
+  }
+}
@@ -1,21 +1,48 @@
 package me.dinowernli.jproducers;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.inject.BindingAnnotation;
 import com.google.inject.Key;
 import com.google.inject.TypeLiteral;
+import me.dinowernli.jproducers.Annotations.Batched;
+import me.dinowernli.jproducers.Annotations.Cacheable;
+import me.dinowernli.jproducers.Annotations.ConcurrencyLimit;
+import me.dinowernli.jproducers.Annotations.Hedged;
+import me.dinowernli.jproducers.Annotations.Inline;
 import me.dinowernli.jproducers.Annotations.Produces;
 import me.dinowernli.jproducers.Annotations.ProducesIntoSet;
+import me.dinowernli.jproducers.Annotations.Timeout;
 import me.dinowernli.jproducers.ProducerContextTest.FutureFakeProducerModule.Bar;
+import me.dinowernli.jproducers.ProducerContextTest.FutureFakeProducerModule.Foo;
 import me.dinowernli.junit.TestClass;
 import org.junit.Test;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -129,4 +156,1246 @@ public class ProducerContextTest {
     assertThat(result.isDone()).isTrue();
     assertThat(result.get()).containsExactly("foo", "bar");
   }
-}
\ No newline at end of file
+
+  static class InputProducerModule {
+    @Produces
+    static String produceGreeting(Present<Integer> count) throws ExecutionException {
+      return "hello " + count.get();
+    }
+  }
+
+  @Test
+  public void testPlanIsReusedAcrossGraphs() throws Throwable {
+    ProducerContext context = ProducerContext.createForTesting(InputProducerModule.class);
+    Graph<String> first = context.newGraph(String.class);
+    Graph<String> second = context.newGraph(String.class);
+    assertThat(context.planCacheStats().missCount()).isEqualTo(1);
+    assertThat(context.planCacheStats().hitCount()).isEqualTo(1);
+    assertThat(context.planCacheStats().size()).isEqualTo(1);
+
+    // Graphs instantiated from the same plan must not share any execution state.
+    assertThat(first.addInput(Key.get(Integer.class), 1).run().get()).isEqualTo("hello 1");
+    assertThat(second.addInput(Key.get(Integer.class), 2).run().get()).isEqualTo("hello 2");
+  }
+
+  @Test
+  public void testPlanCacheCountsConcurrentRequests() throws Throwable {
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int round = 0; round < 20; ++round) {
+        ProducerContext context = ProducerContext.createForTesting(DiamondProducerModule.class);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> requests = new ArrayList<>();
+        for (int i = 0; i < threads; ++i) {
+          requests.add(executor.submit(() -> {
+            Uninterruptibles.awaitUninterruptibly(start);
+            return context.newGraph(String.class);
+          }));
+        }
+        start.countDown();
+        for (Future<?> request : requests) {
+          request.get();
+        }
+
+        // Requests waiting for another thread to plan the same key are hits as well.
+        assertThat(context.planCacheStats().missCount()).isEqualTo(1);
+        assertThat(context.planCacheStats().hitCount()).isEqualTo(threads - 1);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  static class DiamondProducerModule {
+    static final AtomicInteger baseInvocations = new AtomicInteger();
+    static final AtomicInteger rootInvocations = new AtomicInteger();
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @BindingAnnotation
+    @interface Left {}
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @BindingAnnotation
+    @interface Right {}
+
+    @Produces
+    static ListenableFuture<Integer> produceBase() {
+      baseInvocations.incrementAndGet();
+      return Futures.immediateFuture(2);
+    }
+
+    @Produces
+    @Left
+    static int produceLeft(Present<Integer> base) throws ExecutionException {
+      return base.get() + 1;
+    }
+
+    @Produces
+    @Right
+    static int produceRight(Present<Integer> base) throws ExecutionException {
+      return base.get() * 10;
+    }
+
+    @Produces
+    static String produceRoot(
+        @Left Present<Integer> left,
+        @Right Present<Integer> right,
+        Present<Integer> base) throws ExecutionException {
+      rootInvocations.incrementAndGet();
+      return left.get() + "," + right.get() + "," + base.get();
+    }
+  }
+
+  @Test
+  public void testDiamondRunsEachProducerOnce() throws Throwable {
+    DiamondProducerModule.baseInvocations.set(0);
+    DiamondProducerModule.rootInvocations.set(0);
+    ProducerContext context = ProducerContext.forClasses(DiamondProducerModule.class);
+    for (int i = 0; i < 100; ++i) {
+      assertThat(context.newGraph(String.class).run().get()).isEqualTo("3,20,2");
+    }
+    assertThat(DiamondProducerModule.baseInvocations.get()).isEqualTo(100);
+    assertThat(DiamondProducerModule.rootInvocations.get()).isEqualTo(100);
+  }
+
+  @Test
+  public void testFactoryExecution() throws Throwable {
+    // Mimics a factory generated for a module with producers "@Foo String" and "long".
+    ProducerFactory factory = () -> ImmutableList.of(
+        ProducerBinding.produces("foo", Key.get(String.class, Foo.class))
+            .invoker(arguments -> "hello!")
+            .build(),
+        ProducerBinding.produces("length", Key.get(long.class))
+            .addDependency(Key.get(String.class, Foo.class))
+            .invoker(arguments -> (long) ((Present<String>) arguments[0]).get().length())
+            .build());
+    ProducerContext context = ProducerContext.forFactories(factory);
+    assertThat(context.newGraph(Long.class).run().get()).isEqualTo(6);
+  }
+
+  static class InlineProducerModule {
+    static SettableFuture<String> source;
+
+    /** Inline so that the future is guaranteed to be returned before the test completes it. */
+    @Produces
+    @Inline
+    static ListenableFuture<String> produceSource() {
+      return source;
+    }
+
+    @Produces
+    @Inline
+    static Thread produceThread(Present<String> source) {
+      return Thread.currentThread();
+    }
+
+    @Produces
+    static Long produceThreadId(Present<String> source) {
+      return Thread.currentThread().getId();
+    }
+  }
+
+  @Test
+  public void testInlineProducerRunsOnCompletingThread() throws Throwable {
+    InlineProducerModule.source = SettableFuture.create();
+    ProducerContext context = ProducerContext.forClasses(InlineProducerModule.class);
+    ListenableFuture<Thread> result = context.newGraph(Thread.class).run();
+    InlineProducerModule.source.set("go");
+    assertThat(result.get()).isSameAs(Thread.currentThread());
+  }
+
+  @Test
+  public void testAdaptiveInlining() throws Throwable {
+    ProducerContext context = ProducerContext.builder()
+        .addClasses(InlineProducerModule.class)
+        .inliningPolicy(InliningPolicy.adaptive(Duration.ofSeconds(10)))
+        .build();
+
+    // Before enough executions have been measured, the producer runs on the executor.
+    for (int i = 0; i < InliningPolicy.ADAPTIVE_WARMUP_EXECUTIONS; ++i) {
+      InlineProducerModule.source = SettableFuture.create();
+      ListenableFuture<Long> result = context.newGraph(Long.class).run();
+      InlineProducerModule.source.set("go");
+      assertThat(result.get()).isNotEqualTo(Thread.currentThread().getId());
+    }
+
+    InlineProducerModule.source = SettableFuture.create();
+    ListenableFuture<Long> result = context.newGraph(Long.class).run();
+    InlineProducerModule.source.set("go");
+    assertThat(result.get()).isEqualTo(Thread.currentThread().getId());
+  }
+
+  @Test
+  public void testProducerSpecificExecutor() throws Throwable {
+    AtomicInteger contextExecutions = new AtomicInteger();
+    AtomicInteger producerExecutions = new AtomicInteger();
+    ProducerContext context = ProducerContext.builder()
+        .addClasses(FutureFakeProducerModule.class)
+        .executor(runnable -> {
+          contextExecutions.incrementAndGet();
+          runnable.run();
+        })
+        .executorFor(Key.get(String.class, Foo.class), runnable -> {
+          producerExecutions.incrementAndGet();
+          runnable.run();
+        })
+        .build();
+    ListenableFuture<Long> result = context.newGraph(Key.get(Long.class, Bar.class)).run();
+    assertThat(result.get()).isEqualTo(6);
+    assertThat(contextExecutions.get()).isEqualTo(1);
+    assertThat(producerExecutions.get()).isEqualTo(1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigureUnknownKey() {
+    ProducerContext.builder()
+        .addClasses(FakeProducerModule.class)
+        .executorFor(Key.get(Long.class), MoreExecutors.directExecutor())
+        .build();
+  }
+
+  static class LimitedProducerModule {
+    static final List<SettableFuture<String>> pending = new ArrayList<>();
+
+    @Produces
+    @ConcurrencyLimit(1)
+    static synchronized ListenableFuture<String> produceResponse(Present<Integer> request) {
+      SettableFuture<String> response = SettableFuture.create();
+      pending.add(response);
+      return response;
+    }
+  }
+
+  @Test
+  public void testConcurrencyLimit() throws Throwable {
+    LimitedProducerModule.pending.clear();
+    ProducerContext context = ProducerContext.createForTesting(LimitedProducerModule.class);
+    List<ListenableFuture<String>> results = new ArrayList<>();
+    for (int i = 0; i < 3; ++i) {
+      Graph<String> graph = context.newGraph(String.class);
+      graph.addInput(Key.get(Integer.class), i);
+      results.add(graph.run());
+    }
+
+    // Only the first execution has started, the others wait without occupying a thread.
+    assertThat(LimitedProducerModule.pending).hasSize(1);
+    BulkheadStats stats = context.bulkheadStats().get("LimitedProducerModule.produceResponse");
+    assertThat(stats.limit()).isEqualTo(1);
+    assertThat(stats.inFlight()).isEqualTo(1);
+    assertThat(stats.queueDepth()).isEqualTo(2);
+
+    LimitedProducerModule.pending.get(0).set("first");
+    assertThat(results.get(0).get()).isEqualTo("first");
+    assertThat(results.get(1).isDone()).isFalse();
+    assertThat(LimitedProducerModule.pending).hasSize(2);
+
+    LimitedProducerModule.pending.get(1).set("second");
+    LimitedProducerModule.pending.get(2).set("third");
+    assertThat(results.get(2).get()).isEqualTo("third");
+
+    stats = context.bulkheadStats().get("LimitedProducerModule.produceResponse");
+    assertThat(stats.inFlight()).isEqualTo(0);
+    assertThat(stats.queueDepth()).isEqualTo(0);
+    assertThat(stats.queuedExecutions()).isEqualTo(2);
+  }
+
+  @Test
+  public void testConcurrencyLimitFromBuilder() throws Throwable {
+    ProducerContext context = ProducerContext.builder()
+        .addClasses(FakeProducerModule.class)
+        .executor(MoreExecutors.directExecutor())
+        .concurrencyLimit(Key.get(String.class), 4)
+        .build();
+    assertThat(context.newGraph(String.class).run().get()).isEqualTo("hello world");
+    assertThat(context.bulkheadStats().get("FakeProducerModule.foo").limit()).isEqualTo(4);
+  }
+
+  static class CacheableProducerModule {
+    static final List<SettableFuture<String>> pending = new ArrayList<>();
+
+    @Produces
+    @Cacheable(maximumSize = 1)
+    static synchronized ListenableFuture<String> produceConfig(Present<Integer> version) {
+      SettableFuture<String> config = SettableFuture.create();
+      pending.add(config);
+      return config;
+    }
+  }
+
+  @Test
+  public void testCacheable() throws Throwable {
+    CacheableProducerModule.pending.clear();
+    ProducerContext context = ProducerContext.createForTesting(CacheableProducerModule.class);
+    ListenableFuture<String> first = runWithInput(context, 1);
+    ListenableFuture<String> second = runWithInput(context, 1);
+
+    // Both graphs share the execution in flight.
+    assertThat(CacheableProducerModule.pending).hasSize(1);
+    CacheableProducerModule.pending.get(0).set("config-1");
+    assertThat(first.get()).isEqualTo("config-1");
+    assertThat(second.get()).isEqualTo("config-1");
+    assertThat(runWithInput(context, 1).get()).isEqualTo("config-1");
+
+    // Different arguments evict the only cached value.
+    ListenableFuture<String> other = runWithInput(context, 2);
+    assertThat(CacheableProducerModule.pending).hasSize(2);
+    CacheableProducerModule.pending.get(1).set("config-2");
+    assertThat(other.get()).isEqualTo("config-2");
+
+    ProducerCacheStats stats =
+        context.cacheStats().get("CacheableProducerModule.produceConfig");
+    assertThat(stats.hitCount()).isEqualTo(2);
+    assertThat(stats.missCount()).isEqualTo(2);
+    assertThat(stats.evictionCount()).isEqualTo(1);
+    assertThat(stats.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void testCacheableDoesNotCacheFailures() throws Throwable {
+    CacheableProducerModule.pending.clear();
+    ProducerContext context = ProducerContext.createForTesting(CacheableProducerModule.class);
+    ListenableFuture<String> failed = runWithInput(context, 1);
+    CacheableProducerModule.pending.get(0).setException(new IllegalStateException("expected"));
+    assertThat(failed.isDone()).isTrue();
+
+    ListenableFuture<String> retried = runWithInput(context, 1);
+    assertThat(CacheableProducerModule.pending).hasSize(2);
+    CacheableProducerModule.pending.get(1).set("config");
+    assertThat(retried.get()).isEqualTo("config");
+  }
+
+  private static ListenableFuture<String> runWithInput(ProducerContext context, int input) {
+    Graph<String> graph = context.newGraph(String.class);
+    graph.addInput(Key.get(Integer.class), input);
+    return graph.run();
+  }
+
+  static class BatchedProducerModule {
+    static final List<List<Integer>> batches = new ArrayList<>();
+
+    @Produces
+    @Batched(maxSize = 3, windowMillis = 60_000)
+    static synchronized List<String> produceNames(List<Present<Integer>> ids)
+        throws ExecutionException {
+      List<Integer> batch = new ArrayList<>();
+      List<String> result = new ArrayList<>();
+      for (Present<Integer> id : ids) {
+        batch.add(id.get());
+        result.add("name-" + id.get());
+      }
+      batches.add(batch);
+      return result;
+    }
+  }
+
+  @Test
+  public void testBatchedInvokedWhenFull() throws Throwable {
+    BatchedProducerModule.batches.clear();
+    ProducerContext context = ProducerContext.createForTesting(BatchedProducerModule.class);
+    ListenableFuture<String> first = runWithInput(context, 1);
+    ListenableFuture<String> second = runWithInput(context, 2);
+    assertThat(BatchedProducerModule.batches).isEmpty();
+
+    ListenableFuture<String> third = runWithInput(context, 3);
+    assertThat(BatchedProducerModule.batches).containsExactly(ImmutableList.of(1, 2, 3));
+    assertThat(first.get()).isEqualTo("name-1");
+    assertThat(second.get()).isEqualTo("name-2");
+    assertThat(third.get()).isEqualTo("name-3");
+  }
+
+  static class BatchedMapProducerModule {
+    static final AtomicInteger invocations = new AtomicInteger();
+
+    @Produces
+    @Batched(windowMillis = 20)
+    static ListenableFuture<Map<Integer, String>> produceNames(List<Present<Integer>> ids)
+        throws ExecutionException {
+      invocations.incrementAndGet();
+      ImmutableMap.Builder<Integer, String> result = ImmutableMap.builder();
+      for (Present<Integer> id : ids) {
+        if (id.get() != 2) {
+          result.put(id.get(), "name-" + id.get());
+        }
+      }
+      return Futures.immediateFuture(result.build());
+    }
+  }
+
+  @Test
+  public void testBatchedInvokedAfterWindow() throws Throwable {
+    BatchedMapProducerModule.invocations.set(0);
+    ProducerContext context = ProducerContext.createForTesting(BatchedMapProducerModule.class);
+    ListenableFuture<String> first = runWithInput(context, 1);
+    ListenableFuture<String> second = runWithInput(context, 2);
+    assertThat(first.get()).isEqualTo("name-1");
+    assertThat(BatchedMapProducerModule.invocations.get()).isEqualTo(1);
+    try {
+      second.get();
+      throw new AssertionError("Expected missing value to fail");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(NoSuchElementException.class);
+    }
+  }
+
+  @Test
+  public void testLargeSetRunsEachContributorOnce() throws Throwable {
+    AtomicInteger executions = new AtomicInteger();
+    ImmutableList.Builder<ProducerBinding> bindings = ImmutableList.builder();
+    for (int i = 0; i < 200; ++i) {
+      int element = i;
+      bindings.add(ProducerBinding.producesIntoSet("element" + i, Key.get(Integer.class))
+          .invoker(arguments -> {
+            executions.incrementAndGet();
+            return element;
+          })
+          .build());
+    }
+    ImmutableList<ProducerBinding> elements = bindings.build();
+    ProducerFactory consumers = () -> ImmutableList.of(
+        ProducerBinding.produces("sum", Key.get(Long.class))
+            .addDependency(Key.get(new TypeLiteral<ImmutableSet<Integer>>() {}))
+            .addDependency(Key.get(String.class))
+            .invoker(arguments -> {
+              long sum = 0;
+              for (int element : ((Present<ImmutableSet<Integer>>) arguments[0]).get()) {
+                sum += element;
+              }
+              return sum;
+            })
+            .build(),
+        ProducerBinding.produces("size", Key.get(String.class))
+            .addDependency(Key.get(new TypeLiteral<ImmutableSet<Integer>>() {}))
+            .invoker(arguments ->
+                "size " + ((Present<ImmutableSet<Integer>>) arguments[0]).get().size())
+            .build());
+    ProducerContext context = ProducerContext.builder()
+        .addFactories(ImmutableList.of(() -> elements, consumers))
+        .executor(MoreExecutors.directExecutor())
+        .build();
+    assertThat(context.newGraph(Long.class).run().get()).isEqualTo(199 * 200 / 2);
+    assertThat(executions.get()).isEqualTo(200);
+  }
+
+  static class OrderedSetProducerModule {
+    static SettableFuture<String> first;
+    static SettableFuture<String> second;
+
+    @ProducesIntoSet
+    static ListenableFuture<String> produceFirst() {
+      return first;
+    }
+
+    @ProducesIntoSet
+    static ListenableFuture<String> produceSecond() {
+      return second;
+    }
+  }
+
+  @Test
+  public void testSetOrderIndependentOfCompletionOrder() throws Throwable {
+    ProducerContext context = ProducerContext.createForTesting(OrderedSetProducerModule.class);
+    Key<ImmutableSet<String>> key = Key.get(new TypeLiteral<ImmutableSet<String>>() {});
+
+    OrderedSetProducerModule.first = SettableFuture.create();
+    OrderedSetProducerModule.second = SettableFuture.create();
+    ListenableFuture<ImmutableSet<String>> firstDoneFirst = context.newGraph(key).run();
+    OrderedSetProducerModule.first.set("first");
+    OrderedSetProducerModule.second.set("second");
+
+    OrderedSetProducerModule.first = SettableFuture.create();
+    OrderedSetProducerModule.second = SettableFuture.create();
+    ListenableFuture<ImmutableSet<String>> secondDoneFirst = context.newGraph(key).run();
+    OrderedSetProducerModule.second.set("second");
+    OrderedSetProducerModule.first.set("first");
+
+    assertThat(ImmutableList.copyOf(secondDoneFirst.get()))
+        .isEqualTo(ImmutableList.copyOf(firstDoneFirst.get()));
+  }
+
+  static class FailingSetProducerModule {
+    static SettableFuture<String> slowElement;
+
+    @ProducesIntoSet
+    static ListenableFuture<String> produceSlowElement() {
+      return slowElement;
+    }
+
+    @ProducesIntoSet
+    static String produceFailingElement() {
+      throw new IllegalStateException("this is an expected exception");
+    }
+  }
+
+  @Test
+  public void testSetFailsWithoutWaitingForAllElements() throws Throwable {
+    FailingSetProducerModule.slowElement = SettableFuture.create();
+    ProducerContext context = ProducerContext.createForTesting(FailingSetProducerModule.class);
+    ListenableFuture<ImmutableSet<String>> result =
+        context.newGraph(Key.get(new TypeLiteral<ImmutableSet<String>>() {})).run();
+    assertThat(result.isDone()).isTrue();
+
+    // Completing the remaining element later is harmless.
+    FailingSetProducerModule.slowElement.set("slow");
+    try {
+      result.get();
+      throw new AssertionError("Expected the set to fail");
+    } catch (ExecutionException expected) {
+    }
+  }
+
+  static class CancellableProducerModule {
+    static SettableFuture<String> backendCall;
+    static final AtomicInteger consumerExecutions = new AtomicInteger();
+
+    @Produces
+    static ListenableFuture<String> produceBackendResponse() {
+      return backendCall;
+    }
+
+    @Produces
+    static Long produceLength(Present<String> response) throws ExecutionException {
+      consumerExecutions.incrementAndGet();
+      return (long) response.get().length();
+    }
+  }
+
+  @Test
+  public void testCancellationPropagates() throws Throwable {
+    CancellableProducerModule.backendCall = SettableFuture.create();
+    CancellableProducerModule.consumerExecutions.set(0);
+    ProducerContext context = ProducerContext.createForTesting(CancellableProducerModule.class);
+    ListenableFuture<Long> result = context.newGraph(Long.class).run();
+    assertThat(result.isDone()).isFalse();
+
+    result.cancel(false /* mayInterruptIfRunning */);
+    assertThat(CancellableProducerModule.backendCall.isCancelled()).isTrue();
+    assertThat(CancellableProducerModule.consumerExecutions.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testDeadline() throws Throwable {
+    CancellableProducerModule.backendCall = SettableFuture.create();
+    CountDownLatch backendCallDone = new CountDownLatch(1);
+    CancellableProducerModule.backendCall.addListener(
+        backendCallDone::countDown, MoreExecutors.directExecutor());
+    ProducerContext context = ProducerContext.createForTesting(CancellableProducerModule.class);
+    ListenableFuture<Long> result = context.newGraph(Long.class).run(Duration.ofMillis(10));
+    try {
+      result.get();
+      throw new AssertionError("Expected the deadline to expire");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+    }
+
+    // The graph is cancelled right after the result has failed.
+    assertThat(backendCallDone.await(1, TimeUnit.SECONDS)).isTrue();
+    assertThat(CancellableProducerModule.backendCall.isCancelled()).isTrue();
+  }
+
+  static class TimeoutProducerModule {
+    static SettableFuture<String> slowCall;
+
+    @Produces
+    @Timeout(millis = 10, fallback = "fallbackGreeting")
+    static ListenableFuture<String> produceGreeting(Present<Integer> id) {
+      return slowCall;
+    }
+
+    static String fallbackGreeting(Present<Integer> id) throws ExecutionException {
+      return "fallback " + id.get();
+    }
+
+    @Produces
+    @Timeout(millis = 10)
+    static ListenableFuture<Long> produceCount() {
+      return SettableFuture.create();
+    }
+  }
+
+  @Test
+  public void testTimeoutFallback() throws Throwable {
+    TimeoutProducerModule.slowCall = SettableFuture.create();
+    CountDownLatch slowCallDone = new CountDownLatch(1);
+    TimeoutProducerModule.slowCall.addListener(
+        slowCallDone::countDown, MoreExecutors.directExecutor());
+    ProducerContext context = ProducerContext.createForTesting(TimeoutProducerModule.class);
+    assertThat(runWithInput(context, 3).get()).isEqualTo("fallback 3");
+
+    // The abandoned call is cancelled.
+    assertThat(slowCallDone.await(1, TimeUnit.SECONDS)).isTrue();
+    assertThat(TimeoutProducerModule.slowCall.isCancelled()).isTrue();
+  }
+
+  @Test
+  public void testTimeoutWithoutFallback() throws Throwable {
+    ProducerContext context = ProducerContext.createForTesting(TimeoutProducerModule.class);
+    try {
+      context.newGraph(Long.class).run().get();
+      throw new AssertionError("Expected the producer to time out");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+    }
+  }
+
+  @Test
+  public void testTimeoutFromBuilder() throws Throwable {
+    TimeoutProducerModule.slowCall = SettableFuture.create();
+    ProducerContext context = ProducerContext.builder()
+        .addClasses(TimeoutProducerModule.class)
+        .executor(MoreExecutors.directExecutor())
+        .timeout(Key.get(String.class), Duration.ofSeconds(10))
+        .build();
+    ListenableFuture<String> result = runWithInput(context, 3);
+    TimeoutProducerModule.slowCall.set("hello");
+    assertThat(result.get()).isEqualTo("hello");
+  }
+
+  static class LazyProducerModule {
+    static final AtomicInteger expensiveExecutions = new AtomicInteger();
+
+    @Produces
+    static Double produceExpensive() {
+      expensiveExecutions.incrementAndGet();
+      return 2.5;
+    }
+
+    @Produces
+    static ListenableFuture<String> produceResult(
+        Present<Boolean> useExpensive, Producer<Double> expensive) throws ExecutionException {
+      if (!useExpensive.get()) {
+        return Futures.immediateFuture("cheap");
+      }
+      return Futures.transform(
+          expensive.get(), value -> "expensive " + value, MoreExecutors.directExecutor());
+    }
+  }
+
+  @Test
+  public void testLazyDependencyNotTaken() throws Throwable {
+    LazyProducerModule.expensiveExecutions.set(0);
+    ProducerContext context = ProducerContext.createForTesting(LazyProducerModule.class);
+    Graph<String> graph = context.newGraph(String.class);
+    graph.addInput(Key.get(Boolean.class), false);
+    assertThat(graph.run().get()).isEqualTo("cheap");
+    assertThat(LazyProducerModule.expensiveExecutions.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testLazyDependencyTaken() throws Throwable {
+    LazyProducerModule.expensiveExecutions.set(0);
+    ProducerContext context = ProducerContext.createForTesting(LazyProducerModule.class);
+    Graph<String> graph = context.newGraph(String.class);
+    graph.addInput(Key.get(Boolean.class), true);
+    assertThat(graph.run().get()).isEqualTo("expensive 2.5");
+    assertThat(LazyProducerModule.expensiveExecutions.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testLazyDependencyComposedOnSingleThread() throws Throwable {
+    // A producer blocking on its lazy dependency would never let the dependency run here.
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      ProducerContext context = ProducerContext.builder()
+          .addClasses(LazyProducerModule.class)
+          .executor(executor)
+          .build();
+      Graph<String> graph = context.newGraph(String.class);
+      graph.addInput(Key.get(Boolean.class), true);
+      assertThat(graph.run().get(10, TimeUnit.SECONDS)).isEqualTo("expensive 2.5");
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  static class StreamingProducerModule {
+    static final AtomicInteger emittedPages = new AtomicInteger();
+
+    @Produces
+    static ProducerStream<Integer> producePages(Present<Integer> numPages)
+        throws ExecutionException {
+      ProducerStream<Integer> pages = ProducerStream.create(2 /* capacity */);
+      emitPages(pages, 1, numPages.get());
+      return pages;
+    }
+
+    @Produces
+    static ProducerStream<String> produceLines(Present<ProducerStream<Integer>> pages)
+        throws ExecutionException {
+      return pages.get().map(page -> "page" + page, 2 /* capacity */);
+    }
+
+    @Produces
+    static ListenableFuture<String> produceSummary(Present<ProducerStream<String>> lines)
+        throws ExecutionException {
+      List<String> result = new ArrayList<>();
+      return Futures.transform(
+          lines.get().forEach(result::add),
+          done -> String.join(",", result),
+          MoreExecutors.directExecutor());
+    }
+
+    private static void emitPages(ProducerStream<Integer> pages, int next, int last) {
+      if (next > last) {
+        pages.complete();
+        return;
+      }
+      emittedPages.incrementAndGet();
+      ListenableFuture<Void> writable = pages.emit(next);
+      writable.addListener(() -> {
+        if (!writable.isCancelled()) {
+          emitPages(pages, next + 1, last);
+        }
+      }, MoreExecutors.directExecutor());
+    }
+  }
+
+  @Test
+  public void testStreamPipeline() throws Throwable {
+    StreamingProducerModule.emittedPages.set(0);
+    ProducerContext context = ProducerContext.createForTesting(StreamingProducerModule.class);
+    assertThat(runWithInput(context, 3).get()).isEqualTo("page1,page2,page3");
+    assertThat(StreamingProducerModule.emittedPages.get()).isEqualTo(3);
+  }
+
+  static class SharedStreamProducerModule {
+    @Produces
+    static ProducerStream<Integer> producePages() {
+      return ProducerStream.create(1 /* capacity */);
+    }
+
+    @Produces
+    static Long produceCount(Present<ProducerStream<Integer>> pages) {
+      return 0L;
+    }
+
+    @Produces
+    static String produceSummary(
+        Present<ProducerStream<Integer>> pages, Present<Long> count) {
+      return "summary";
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testStreamWithMultipleConsumers() {
+    ProducerContext context = ProducerContext.createForTesting(SharedStreamProducerModule.class);
+    context.newGraph(String.class);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsSecondConcurrencyLimit() {
+    ProducerContext.builder()
+        .concurrencyLimit(Key.get(String.class), 1)
+        .concurrencyLimit(Key.get(String.class), 2);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsSecondCachePolicy() {
+    CachePolicy policy = CachePolicy.builder().maximumSize(10).build();
+    ProducerContext.builder()
+        .cachePolicy(Key.get(String.class), policy)
+        .cachePolicy(Key.get(String.class), policy);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsSecondTimeout() {
+    ProducerContext.builder()
+        .timeout(Key.get(String.class), Duration.ofSeconds(1))
+        .timeout(Key.get(String.class), Duration.ofSeconds(2));
+  }
+
+  @Test
+  public void testLatencyRecorder() throws Throwable {
+    LatencyRecorder recorder = new LatencyRecorder();
+    ProducerContext context = ProducerContext.builder()
+        .addClasses(GenericProducerModule.class, FailingProducerModule.class)
+        .executor(MoreExecutors.directExecutor())
+        .addListener(recorder)
+        .build();
+    context.newGraph(Key.get(new TypeLiteral<ImmutableSet<String>>() {})).run().get();
+    context.newGraph(Key.get(new TypeLiteral<ImmutableSet<String>>() {})).run().get();
+    context.newGraph(Integer.class).run();
+
+    Map<String, ProducerLatencyStats> stats = recorder.stats();
+    assertThat(stats.keySet()).containsExactly(
+        "GenericProducerModule.produceList",
+        "GenericProducerModule.produceSet",
+        "FailingProducerModule.produceInt");
+    assertThat(stats.get("GenericProducerModule.produceSet").count()).isEqualTo(2);
+    assertThat(stats.get("GenericProducerModule.produceSet").errorRate()).isEqualTo(0.0);
+    assertThat(stats.get("FailingProducerModule.produceInt").failureCount()).isEqualTo(1);
+    assertThat(stats.get("FailingProducerModule.produceInt").errorRate()).isEqualTo(1.0);
+  }
+
+  @Test
+  public void testGraphListenerEvents() throws Throwable {
+    List<String> events = new ArrayList<>();
+    GraphListener listener = new GraphListener() {
+      @Override
+      public void onScheduled(Graph<?> graph, ProducerBinding producer, long nanos) {
+        events.add("scheduled");
+      }
+
+      @Override
+      public void onStarted(Graph<?> graph, ProducerBinding producer, long nanos) {
+        events.add("started");
+      }
+
+      @Override
+      public void onProducerReturned(Graph<?> graph, ProducerBinding producer, long nanos) {
+        events.add("returned");
+      }
+
+      @Override
+      public void onSucceeded(Graph<?> graph, ProducerBinding producer, NodeTiming timing) {
+        events.add("succeeded");
+      }
+    };
+    ProducerContext context = ProducerContext.builder()
+        .addClasses(SlowProducerModule.class)
+        .executor(MoreExecutors.directExecutor())
+        .addListener(listener)
+        .build();
+    SlowProducerModule.pending = SettableFuture.create();
+    ListenableFuture<String> result = context.newGraph(String.class).run();
+    assertThat(events).containsExactly("scheduled", "started", "returned").inOrder();
+
+    SlowProducerModule.pending.set("done");
+    assertThat(result.get()).isEqualTo("done");
+    assertThat(events).containsExactly("scheduled", "started", "returned", "succeeded").inOrder();
+  }
+
+  static class SlowProducerModule {
+    static SettableFuture<String> pending;
+
+    @Produces
+    static ListenableFuture<String> produceString() {
+      return pending;
+    }
+  }
+
+  @Test
+  public void testTraceSampling() throws Throwable {
+    List<GraphTrace> traces = new ArrayList<>();
+    ProducerContext context = ProducerContext.builder()
+        .addClasses(GenericProducerModule.class)
+        .executor(MoreExecutors.directExecutor())
+        .trace(2 /* sampleEvery */, traces::add)
+        .build();
+    for (int i = 0; i < 3; ++i) {
+      context.newGraph(Key.get(new TypeLiteral<ImmutableSet<String>>() {})).run().get();
+    }
+    assertThat(traces).hasSize(2);
+
+    GraphTrace trace = traces.get(0);
+    List<String> criticalPath = new ArrayList<>();
+    for (GraphTrace.Span span : trace.criticalPath()) {
+      criticalPath.add(span.name());
+    }
+    assertThat(criticalPath).containsExactly(
+        "GenericProducerModule.produceList", "GenericProducerModule.produceSet").inOrder();
+    assertThat(trace.spans().get(1).dependencies()).containsExactly(0);
+    assertThat(trace.toDot()).contains("n0 -> n1 [color=red];");
+    assertThat(trace.toChromeTraceJson()).contains("\"name\":\"GenericProducerModule.produceSet\"");
+  }
+
+  static class IncrementalProducerModule {
+    static final AtomicInteger parityExecutions = new AtomicInteger();
+    static final AtomicInteger constantExecutions = new AtomicInteger();
+    static final AtomicInteger resultExecutions = new AtomicInteger();
+
+    @Produces
+    static Boolean produceParity(Present<Integer> input) throws ExecutionException {
+      parityExecutions.incrementAndGet();
+      return input.get() % 2 == 0;
+    }
+
+    @Produces
+    static Long produceConstant() {
+      constantExecutions.incrementAndGet();
+      return 42L;
+    }
+
+    @Produces
+    static String produceResult(Present<Boolean> even, Present<Long> constant)
+        throws ExecutionException {
+      resultExecutions.incrementAndGet();
+      return (even.get() ? "even " : "odd ") + constant.get();
+    }
+  }
+
+  @Test
+  public void testIncrementalGraph() throws Throwable {
+    IncrementalProducerModule.parityExecutions.set(0);
+    IncrementalProducerModule.constantExecutions.set(0);
+    IncrementalProducerModule.resultExecutions.set(0);
+    ProducerContext context = ProducerContext.createForTesting(IncrementalProducerModule.class);
+    IncrementalGraph<String> graph = context.newIncrementalGraph(Key.get(String.class));
+
+    graph.setInput(Key.get(Integer.class), 1);
+    assertThat(graph.run().get()).isEqualTo("odd 42");
+    assertThat(graph.run().get()).isEqualTo("odd 42");
+    assertThat(IncrementalProducerModule.resultExecutions.get()).isEqualTo(1);
+
+    graph.setInput(Key.get(Integer.class), 2);
+    assertThat(graph.run().get()).isEqualTo("even 42");
+    assertThat(IncrementalProducerModule.parityExecutions.get()).isEqualTo(2);
+    assertThat(IncrementalProducerModule.constantExecutions.get()).isEqualTo(1);
+    assertThat(IncrementalProducerModule.resultExecutions.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testIncrementalGraphEarlyCutoff() throws Throwable {
+    IncrementalProducerModule.parityExecutions.set(0);
+    IncrementalProducerModule.resultExecutions.set(0);
+    ProducerContext context = ProducerContext.createForTesting(IncrementalProducerModule.class);
+    IncrementalGraph<String> graph =
+        context.newIncrementalGraph(Key.get(String.class)).enableEarlyCutoff();
+
+    graph.setInput(Key.get(Integer.class), 1);
+    assertThat(graph.run().get()).isEqualTo("odd 42");
+
+    // The parity is recomputed, but does not change, so the result is not recomputed.
+    graph.setInput(Key.get(Integer.class), 3);
+    assertThat(graph.run().get()).isEqualTo("odd 42");
+    assertThat(IncrementalProducerModule.parityExecutions.get()).isEqualTo(2);
+    assertThat(IncrementalProducerModule.resultExecutions.get()).isEqualTo(1);
+
+    // Setting an equal input has no effect at all.
+    graph.setInput(Key.get(Integer.class), 3);
+    assertThat(graph.run().get()).isEqualTo("odd 42");
+    assertThat(IncrementalProducerModule.parityExecutions.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testIncrementalGraphMemoizesBeforeCompleting() throws Throwable {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      ProducerContext context = ProducerContext.builder()
+          .addClasses(IncrementalProducerModule.class)
+          .executor(executor)
+          .addListener(new GraphListener() {
+            @Override
+            public void onSucceeded(Graph<?> graph, ProducerBinding producer, NodeTiming timing) {
+              // Wakes callers of the root well before the listeners of the root run.
+              if (producer.key().equals(Key.get(String.class))) {
+                Uninterruptibles.sleepUninterruptibly(2, TimeUnit.MILLISECONDS);
+              }
+            }
+          })
+          .build();
+      IncrementalGraph<String> graph = context.newIncrementalGraph(Key.get(String.class));
+      graph.setInput(Key.get(Integer.class), 0);
+      for (int i = 0; i < 10; ++i) {
+        assertThat(graph.run().get()).isEqualTo((i % 2 == 0 ? "even " : "odd ") + 42);
+
+        // Leaves the previous run time to finish up before the next run starts.
+        graph.setInput(Key.get(Integer.class), i + 1);
+        Thread.sleep(10);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  static class MultiRootProducerModule {
+    static final AtomicInteger sharedExecutions = new AtomicInteger();
+
+    @Produces
+    static Long produceShared(Present<Integer> input) throws ExecutionException {
+      sharedExecutions.incrementAndGet();
+      return input.get() * 10L;
+    }
+
+    @Produces
+    static String produceString(Present<Long> shared) throws ExecutionException {
+      return "value " + shared.get();
+    }
+
+    @Produces
+    static Double produceDouble(Present<Long> shared) throws ExecutionException {
+      return shared.get() / 4.0;
+    }
+
+    @Produces
+    static Boolean produceFailure(Present<Long> shared) {
+      throw new IllegalStateException("this is an expected exception");
+    }
+  }
+
+  @Test
+  public void testMultiRootGraph() throws Throwable {
+    MultiRootProducerModule.sharedExecutions.set(0);
+    ProducerContext context = ProducerContext.createForTesting(MultiRootProducerModule.class);
+    Graph<ProducerResults> graph = context.newGraph(ImmutableSet.of(
+        Key.get(String.class), Key.get(Double.class), Key.get(Boolean.class)));
+    graph.addInput(Key.get(Integer.class), 2);
+
+    ProducerResults results = graph.run().get();
+    assertThat(results.get(String.class).get()).isEqualTo("value 20");
+    assertThat(results.get(Double.class).get()).isEqualTo(5.0);
+    assertThat(MultiRootProducerModule.sharedExecutions.get()).isEqualTo(1);
+    try {
+      results.get(Boolean.class).get();
+      throw new AssertionError("Expected the failing output to fail");
+    } catch (ExecutionException expected) {
+    }
+  }
+
+  static class BulkProducerModule {
+    @Produces
+    static String produceString(Present<Integer> input) throws ExecutionException {
+      if (input.get() < 0) {
+        throw new IllegalArgumentException("this is an expected exception");
+      }
+      return "value " + input.get();
+    }
+  }
+
+  @Test
+  public void testBulkRun() throws Throwable {
+    ProducerContext context = ProducerContext.createForTesting(BulkProducerModule.class);
+    ImmutableList.Builder<Map<Key<?>, ?>> inputs = ImmutableList.builder();
+    for (int i = 0; i < 100; ++i) {
+      inputs.add(ImmutableMap.of(Key.get(Integer.class), i == 42 ? -1 : i));
+    }
+
+    ImmutableList<Present<String>> results =
+        context.runAll(Key.get(String.class), inputs.build()).get();
+    assertThat(results).hasSize(100);
+    assertThat(results.get(0).get()).isEqualTo("value 0");
+    assertThat(results.get(99).get()).isEqualTo("value 99");
+    try {
+      results.get(42).get();
+      throw new AssertionError("Expected the negative input to fail");
+    } catch (ExecutionException expected) {
+    }
+  }
+
+  @Test
+  public void testBulkRunBoundsInFlight() throws Throwable {
+    ProducerContext context = ProducerContext.createForTesting(BulkProducerModule.class);
+    AtomicInteger consumed = new AtomicInteger();
+    Iterator<Map<Key<?>, ?>> inputs = new Iterator<Map<Key<?>, ?>>() {
+      @Override
+      public boolean hasNext() {
+        return consumed.get() < 10;
+      }
+
+      @Override
+      public Map<Key<?>, ?> next() {
+        return ImmutableMap.of(Key.get(Integer.class), consumed.getAndIncrement());
+      }
+    };
+
+    ProducerStream<Present<String>> results = context.runAll(Key.get(String.class), inputs, 3);
+    // Three graphs in flight, plus up to three results waiting to be taken from the stream.
+    assertThat(consumed.get()).isAtMost(6);
+    for (int i = 0; i < 10; ++i) {
+      assertThat(results.next().get().get().get()).isEqualTo("value " + i);
+    }
+    assertThat(results.next().get().isPresent()).isFalse();
+  }
+
+  @Test
+  public void testBulkRunManyInFlight() throws Throwable {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      ProducerContext context = ProducerContext.builder()
+          .addClasses(BulkProducerModule.class)
+          .executor(executor)
+          .build();
+      List<Map<Key<?>, ?>> inputs = new ArrayList<>();
+      for (int i = 0; i < 20000; ++i) {
+        inputs.add(ImmutableMap.of(Key.get(Integer.class), i));
+      }
+
+      // Emitting the results does not recurse once per result, which would overflow the stack.
+      List<Present<String>> results = new ArrayList<>();
+      context.runAll(Key.get(String.class), inputs.iterator(), inputs.size())
+          .forEach(results::add)
+          .get(10, TimeUnit.SECONDS);
+      assertThat(results).hasSize(inputs.size());
+      for (int i = 0; i < inputs.size(); ++i) {
+        assertThat(results.get(i).get()).isEqualTo("value " + i);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  static class PriorityProducerModule {
+    static final List<String> executions = new ArrayList<>();
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @BindingAnnotation
+    @interface ChainStart {}
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @BindingAnnotation
+    @interface ChainEnd {}
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @BindingAnnotation
+    @interface Shortcut {}
+
+    @Produces
+    @ChainStart
+    static String produceChainStart() {
+      executions.add("chain start");
+      return "start";
+    }
+
+    @Produces
+    @ChainEnd
+    static String produceChainEnd(@ChainStart Present<String> start) throws ExecutionException {
+      executions.add("chain end");
+      return start.get() + " end";
+    }
+
+    @Produces
+    @Shortcut
+    static String produceShortcut() {
+      executions.add("shortcut");
+      return "shortcut";
+    }
+
+    @Produces
+    static String produceRoot(@ChainEnd Present<String> chain, @Shortcut Present<String> shortcut)
+        throws ExecutionException {
+      return chain.get() + ", " + shortcut.get();
+    }
+  }
+
+  @Test
+  public void testPrioritizeCriticalPath() throws Throwable {
+    // Without prioritization, the ready producers start in the order they became ready.
+    assertThat(runWithQueuedExecutor(ProducerContext.builder()))
+        .containsExactly("shortcut", "chain start", "chain end").inOrder();
+
+    // The start of the chain has the longer remaining path, so it goes first.
+    assertThat(runWithQueuedExecutor(ProducerContext.builder().prioritizeCriticalPath()))
+        .containsExactly("chain start", "shortcut", "chain end").inOrder();
+  }
+
+  /**
+   * Runs the priority module on an executor which only runs tasks once they have all been queued,
+   * and returns the order in which the producers were executed.
+   */
+  private static List<String> runWithQueuedExecutor(ProducerContext.Builder builder)
+      throws Throwable {
+    PriorityProducerModule.executions.clear();
+    ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    ProducerContext context = builder
+        .addClasses(PriorityProducerModule.class)
+        .executor(tasks::add)
+        .build();
+    ListenableFuture<String> result = context.newGraph(String.class).run();
+    while (!tasks.isEmpty()) {
+      tasks.poll().run();
+    }
+    assertThat(result.get()).isEqualTo("start end, shortcut");
+    return new ArrayList<>(PriorityProducerModule.executions);
+  }
+
+  static class PrimitiveProducerModule {
+    @Retention(RetentionPolicy.RUNTIME)
+    @BindingAnnotation
+    @interface Failing {}
+
+    @Produces
+    static int produceInt(Present<String> input) throws ExecutionException {
+      return input.get().length();
+    }
+
+    @Produces
+    static long produceLong(PresentInt length) throws ExecutionException {
+      return length.getAsInt() * 1000L;
+    }
+
+    @Produces
+    @Failing
+    static double produceFailure() {
+      throw new IllegalStateException("this is an expected exception");
+    }
+
+    @Produces
+    static Double produceDouble(
+        PresentLong millis, Present<Integer> length, @Failing PresentDouble failing)
+        throws ExecutionException {
+      try {
+        failing.getAsDouble();
+        throw new AssertionError("Expected the failing producer to fail");
+      } catch (ExecutionException expected) {
+      }
+      return millis.getAsLong() / 1000.0 + length.get();
+    }
+  }
+
+  @Test
+  public void testPrimitiveProducers() throws Throwable {
+    ProducerContext context = ProducerContext.createForTesting(PrimitiveProducerModule.class);
+    Graph<Double> graph = context.newGraph(Double.class);
+    graph.addInput(Key.get(String.class), "four");
+    assertThat(graph.run().get()).isEqualTo(8.0);
+
+    // Primitive outputs are boxed when requested through the future of the graph.
+    Graph<Long> longGraph = context.newGraph(Long.class);
+    longGraph.addInput(Key.get(String.class), "four");
+    assertThat(longGraph.run().get()).isEqualTo(4000L);
+  }
+
+  static class HedgedProducerModule {
+    static final ConcurrentLinkedQueue<ListenableFuture<String>> responses =
+        new ConcurrentLinkedQueue<>();
+
+    @Produces
+    @Hedged
+    static ListenableFuture<String> produceGreeting() {
+      ListenableFuture<String> response = responses.poll();
+      return response != null ? response : Futures.immediateFuture("fast");
+    }
+  }
+
+  @Test
+  public void testHedging() throws Throwable {
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    try {
+      ProducerContext context = ProducerContext.builder()
+          .addClasses(HedgedProducerModule.class)
+          .executor(MoreExecutors.directExecutor())
+          .timer(timer)
+          .build();
+      for (int i = 0; i < 40; ++i) {
+        assertThat(context.newGraph(String.class).run().get()).isEqualTo("fast");
+      }
+
+      // Slow calls are hedged by a second call, which wins, while the extra load stays below 5%.
+      for (int i = 0; i < 2; ++i) {
+        SettableFuture<String> slowCall = SettableFuture.create();
+        HedgedProducerModule.responses.add(slowCall);
+        ListenableFuture<String> result = context.newGraph(String.class).run();
+        assertThat(result.get(1, TimeUnit.SECONDS)).isEqualTo("fast");
+        assertThat(slowCall.isCancelled()).isTrue();
+      }
+
+      SettableFuture<String> slowCall = SettableFuture.create();
+      HedgedProducerModule.responses.add(slowCall);
+      ListenableFuture<String> result = context.newGraph(String.class).run();
+      HedgeStats stats = context.hedgeStats().get("HedgedProducerModule.produceGreeting");
+
+      // Runs after the hedge of the slow call would have been started.
+      timer.schedule(() -> { }, stats.delayNanos(), TimeUnit.NANOSECONDS).get();
+      slowCall.set("slow");
+      assertThat(result.get()).isEqualTo("slow");
+
+      stats = context.hedgeStats().get("HedgedProducerModule.produceGreeting");
+      assertThat(stats.executions()).isEqualTo(43);
+      assertThat(stats.hedges()).isEqualTo(2);
+      assertThat(stats.wins()).isEqualTo(2);
+      assertThat(stats.cappedHedges()).isEqualTo(1);
+    } finally {
+      timer.shutdown();
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package me.dinowernli.jproducers;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import me.dinowernli.junit.TestClass;
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@TestClass
+public class ProducerStreamTest {
+  @Test
+  public void testBackpressure() throws Throwable {
+    ProducerStream<Integer> stream = ProducerStream.create(2 /* capacity */);
+    assertThat(stream.emit(1).isDone()).isTrue();
+    ListenableFuture<Void> writable = stream.emit(2);
+    assertThat(writable.isDone()).isFalse();
+
+    assertThat(stream.next().get()).isEqualTo(Optional.of(1));
+    assertThat(writable.isDone()).isTrue();
+  }
+
+  @Test
+  public void testNextWaitsForChunk() throws Throwable {
+    ProducerStream<Integer> stream = ProducerStream.create(1 /* capacity */);
+    ListenableFuture<Optional<Integer>> next = stream.next();
+    assertThat(next.isDone()).isFalse();
+
+    stream.emit(7);
+    assertThat(next.get()).isEqualTo(Optional.of(7));
+    stream.complete();
+    assertThat(stream.next().get()).isEqualTo(Optional.empty());
+  }
+
+  @Test(expected = ExecutionException.class)
+  public void testFailureAfterBufferedChunks() throws Throwable {
+    ProducerStream<Integer> stream = ProducerStream.create(2 /* capacity */);
+    stream.emit(1);
+    stream.fail(new IllegalStateException("this is an expected exception"));
+    assertThat(stream.next().get()).isEqualTo(Optional.of(1));
+    stream.next().get();
+  }
+
+  @Test
+  public void testCancelStopsProducer() throws Throwable {
+    ProducerStream<Integer> stream = ProducerStream.create(1 /* capacity */);
+    ListenableFuture<Void> writable = stream.emit(1);
+    stream.cancel();
+    assertThat(writable.isCancelled()).isTrue();
+    assertThat(stream.emit(2).isCancelled()).isTrue();
+  }
+}
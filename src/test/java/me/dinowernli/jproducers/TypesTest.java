@@ -6,6 +6,8 @@ import me.dinowernli.junit.TestClass;
 import org.junit.Test;
 
 import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.Map;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -17,6 +19,48 @@ public class TypesTest {
     assertThat(Types.extractProducedType(producer)).isEqualTo(String.class);
   }
 
+  @Test
+  public void testBatchElementType() throws Throwable {
+    Method producer = TypesTest.class.getMethod("produceStringBatch");
+    Type batchType = Types.extractProducedType(producer);
+    assertThat(Types.extractBatchElementType(batchType)).isEqualTo(String.class);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBatchElementTypeRequiresCollection() throws Throwable {
+    Method producer = TypesTest.class.getMethod("produceString");
+    Types.extractBatchElementType(Types.extractProducedType(producer));
+  }
+
+  @Test
+  public void testBoxesPrimitives() throws Throwable {
+    Method producer = TypesTest.class.getMethod("produceInt");
+    assertThat(Types.extractProducedType(producer)).isEqualTo(Integer.class);
+  }
+
+  @Test
+  public void testPresentValueType() throws Throwable {
+    Method consumer = TypesTest.class.getMethod("consume", PresentLong.class, Present.class);
+    Type[] parameterTypes = consumer.getGenericParameterTypes();
+    assertThat(Types.presentValueType(parameterTypes[0])).isEqualTo(Long.class);
+    assertThat(Types.presentValueType(parameterTypes[1])).isEqualTo(String.class);
+  }
+
+  @Produces
+  public static int produceInt() {
+    return 0;
+  }
+
+  @Produces
+  public static String consume(PresentLong first, Present<String> second) {
+    return null;
+  }
+
+  @Produces
+  public static ListenableFuture<Map<Integer, String>> produceStringBatch() {
+    return null;
+  }
+
   @Produces
   public static ListenableFuture<String> produceString() {
     return null;
@@ -0,0 +1,273 @@
+package me.dinowernli.jproducers.processor;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Key;
+import me.dinowernli.jproducers.Graph;
+import me.dinowernli.jproducers.ProducerContext;
+import me.dinowernli.jproducers.ProducerFactory;
+import me.dinowernli.jproducers.naming.GeneratedNames;
+import me.dinowernli.junit.TestClass;
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@TestClass
+public class ProducerModuleProcessorTest {
+  @Test
+  public void testGeneratesFactory() throws Throwable {
+    Compilation compilation = compile(module("GreetingModule",
+        "@Produces",
+        "@Timeout(millis = 1000, fallback = \"fallbackName\")",
+        "static ListenableFuture<String> produceName(Present<Short> id) throws Exception {",
+        "  return Futures.immediateFuture(\"user\" + id.get());",
+        "}",
+        "static String fallbackName(Present<Short> id) {",
+        "  return \"unknown\";",
+        "}",
+        "@Produces",
+        "@Inline",
+        "static int produceLength(Present<String> name) throws Exception {",
+        "  return name.get().length();",
+        "}",
+        "@Produces",
+        "@Hedged(percentile = 99, maxExtraLoad = 0.1)",
+        "static ListenableFuture<Long> produceScore(PresentInt length) throws Exception {",
+        "  return Futures.immediateFuture(length.getAsInt() * 10L);",
+        "}",
+        "@ProducesIntoSet",
+        "@ConcurrencyLimit(2)",
+        "static Character produceInitial(Present<String> name) throws Exception {",
+        "  return name.get().charAt(0);",
+        "}",
+        "@Produces",
+        "@Cacheable(maximumSize = 10)",
+        "static Double produceSummary(Present<Long> score,",
+        "    Present<ImmutableSet<Character>> initials, Producer<String> name) throws Exception {",
+        "  return score.get() + initials.get().size() / 2.0;",
+        "}",
+        "@Produces",
+        "@Batched(maxSize = 4)",
+        "static List<Boolean> produceValid(List<Present<Long>> scores) {",
+        "  return Collections.nCopies(scores.size(), true);",
+        "}"));
+    assertThat(compilation.errors()).isEmpty();
+
+    String factory = compilation.generatedSource("fixtures/GreetingModule_ProducerFactory.java");
+    assertThat(factory).contains(".timeout(java.time.Duration.ofMillis(1000L))");
+    assertThat(factory).contains(".fallback(arguments -> fixtures.GreetingModule.fallbackName(");
+    assertThat(factory).contains(".inline()");
+    assertThat(factory).contains("(me.dinowernli.jproducers.Invoker.OfInt) arguments ->");
+    assertThat(factory).contains(".hedged(99.0, 0.1)");
+    assertThat(factory).contains("producesIntoSet(\"GreetingModule.produceInitial\"");
+    assertThat(factory).contains(".concurrencyLimit(2)");
+    assertThat(factory).contains(".maximumSize(10L)");
+    assertThat(factory)
+        .contains(".addLazyDependency(com.google.inject.Key.get(java.lang.String.class))");
+    assertThat(factory).contains(".batched(4, java.time.Duration.ofMillis(5L))");
+    assertThat(compilation.moduleIndex()).containsExactly("fixtures.GreetingModule");
+
+    // The generated factory binds producers which actually run.
+    ProducerContext context = ProducerContext.forFactories(
+        compilation.newFactory("fixtures.GreetingModule_ProducerFactory"));
+    Graph<Double> graph = context.newGraph(Double.class);
+    graph.addInput(Key.get(Short.class), (short) 7);
+    assertThat(graph.run().get()).isEqualTo(50.5);
+  }
+
+  @Test
+  public void testSameKeyInDifferentModules() throws Throwable {
+    Compilation compilation = compile(
+        module("ProdModule",
+            "@Produces",
+            "static String greeting() {",
+            "  return \"prod\";",
+            "}"),
+        module("FakeModule",
+            "@Produces",
+            "static String greeting() {",
+            "  return \"fake\";",
+            "}"));
+    assertThat(compilation.errors()).isEmpty();
+    assertThat(compilation.moduleIndex())
+        .containsExactly("fixtures.FakeModule", "fixtures.ProdModule").inOrder();
+  }
+
+  @Test
+  public void testRejectsDuplicateKeyWithinModule() throws Throwable {
+    Compilation compilation = compile(module("BrokenModule",
+        "@Produces",
+        "static String first() {",
+        "  return \"first\";",
+        "}",
+        "@Produces",
+        "static ListenableFuture<String> second() {",
+        "  return Futures.immediateFuture(\"second\");",
+        "}"));
+    assertThat(compilation.errors()).containsExactly(
+        "Already have producer [first] for key [java.lang.String] in module "
+            + "[fixtures.BrokenModule]. Cannot add new producer [second]");
+  }
+
+  @Test
+  public void testRejectsInvalidMethods() throws Throwable {
+    Compilation compilation = compile(module("BrokenModule",
+        "@Produces",
+        "String nonStatic() {",
+        "  return \"\";",
+        "}",
+        "@Produces",
+        "private static Long hidden() {",
+        "  return 1L;",
+        "}",
+        "@Produces",
+        "static Integer notPresent(String value) {",
+        "  return 1;",
+        "}",
+        "@Produces",
+        "@Hedged",
+        "static Double notFuture() {",
+        "  return 1.0;",
+        "}"));
+    assertThat(compilation.errors()).containsExactly(
+        "Cannot have non-static producer: nonStatic",
+        "Producers must not be private: hidden",
+        "Expected java.lang.String to be a Present or a Producer",
+        "Hedged producers must return a ListenableFuture");
+    assertThat(compilation.moduleIndex()).isEmpty();
+  }
+
+  @Test
+  public void testRejectsInvalidAnnotations() throws Throwable {
+    Compilation compilation = compile(module("BrokenModule",
+        "@Produces",
+        "@Timeout(millis = 10, fallback = \"missing\")",
+        "static ListenableFuture<String> slow() {",
+        "  return Futures.immediateFuture(\"\");",
+        "}",
+        "@Produces",
+        "@Batched",
+        "static Map<Long, Integer> batched(",
+        "    List<Present<Long>> first, List<Present<Long>> second) {",
+        "  return null;",
+        "}",
+        "@Produces",
+        "@Batched",
+        "static Integer notBatch(List<Present<Long>> values) {",
+        "  return null;",
+        "}"));
+    assertThat(compilation.errors()).containsExactly(
+        "Unable to find fallback [missing]",
+        "Batched producers returning a map must have exactly one parameter",
+        "Batched producers must produce a List or a Map, but got: java.lang.Integer");
+  }
+
+  /** Returns the source of a module in the fixtures package with the supplied members. */
+  private static JavaFileObject module(String name, String... members) {
+    String source = Joiner.on('\n').join(
+        "package fixtures;",
+        "import com.google.common.collect.ImmutableSet;",
+        "import com.google.common.util.concurrent.Futures;",
+        "import com.google.common.util.concurrent.ListenableFuture;",
+        "import java.util.Collections;",
+        "import java.util.List;",
+        "import java.util.Map;",
+        "import me.dinowernli.jproducers.Annotations.*;",
+        "import me.dinowernli.jproducers.Present;",
+        "import me.dinowernli.jproducers.PresentInt;",
+        "import me.dinowernli.jproducers.Producer;",
+        "@ProducerModule",
+        "public class " + name + " {",
+        Joiner.on('\n').join(members),
+        "}");
+    return new SimpleJavaFileObject(
+        URI.create("string:///fixtures/" + name + ".java"), JavaFileObject.Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return source;
+      }
+    };
+  }
+
+  /** Compiles the supplied sources with the processor, against the classpath of this test. */
+  private static Compilation compile(JavaFileObject... sources) throws IOException {
+    Path root = Files.createTempDirectory("processor-test");
+    Path classes = Files.createDirectory(root.resolve("classes"));
+    Path generated = Files.createDirectory(root.resolve("generated"));
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    JavaCompiler.CompilationTask task = compiler.getTask(
+        null /* out */,
+        null /* fileManager */,
+        diagnostics,
+        Arrays.asList(
+            "-classpath", System.getProperty("java.class.path"),
+            "-d", classes.toString(),
+            "-s", generated.toString()),
+        null /* classes */,
+        Arrays.asList(sources));
+    task.setProcessors(Collections.singletonList(new ProducerModuleProcessor()));
+    task.call();
+
+    ImmutableList.Builder<String> errors = ImmutableList.builder();
+    for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+      if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+        errors.add(diagnostic.getMessage(null /* locale */));
+      }
+    }
+    return new Compilation(errors.build(), classes, generated);
+  }
+
+  /** The outcome of compiling some fixtures with the processor. */
+  private static class Compilation {
+    private final ImmutableList<String> errors;
+    private final Path classes;
+    private final Path generated;
+
+    private Compilation(ImmutableList<String> errors, Path classes, Path generated) {
+      this.errors = errors;
+      this.classes = classes;
+      this.generated = generated;
+    }
+
+    ImmutableList<String> errors() {
+      return errors;
+    }
+
+    String generatedSource(String path) throws IOException {
+      return new String(Files.readAllBytes(generated.resolve(path)), StandardCharsets.UTF_8);
+    }
+
+    /** Returns the modules listed in the index, or nothing if no index was written. */
+    ImmutableList<String> moduleIndex() throws IOException {
+      Path index = classes.resolve(
+          GeneratedNames.MODULE_INDEX.replace('/', File.separatorChar));
+      return Files.exists(index)
+          ? ImmutableList.copyOf(Files.readAllLines(index, StandardCharsets.UTF_8))
+          : ImmutableList.of();
+    }
+
+    ProducerFactory newFactory(String name) throws ReflectiveOperationException, IOException {
+      URLClassLoader loader = new URLClassLoader(
+          new URL[] {classes.toUri().toURL()}, ProducerModuleProcessorTest.class.getClassLoader());
+      return (ProducerFactory) loader.loadClass(name).getConstructor().newInstance();
+    }
+  }
+}